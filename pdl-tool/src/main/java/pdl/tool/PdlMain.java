@@ -14,16 +14,25 @@
 
 package pdl.tool;
 
-import java.io.FileReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
 
 import pdl.PdlDiag;
+import pdl.PdlParser;
 
 public class PdlMain {
 	public static void main(String[] args) {
@@ -33,6 +42,9 @@ public class PdlMain {
 			}
 			PdlDiag parser = new PdlDiag();
 			List<String> explains = new ArrayList<>();
+			String compileTo = null;
+			String specializeTo = null;
+			Map<String, Object> bindings = new LinkedHashMap<>();
 			for (int i = 0; i < args.length; i++) {
 				if (args[i].equals("--explain")) {
 					if (i + 1 == args.length) {
@@ -40,6 +52,29 @@ public class PdlMain {
 					}
 					explains.addAll(Arrays.asList(args[i + 1].split("[, ]")));
 					i++;
+				} else if (args[i].equals("--compile")) {
+					if (i + 1 == args.length) {
+						usage("not enough arguments for --compile");
+					}
+					compileTo = args[i + 1];
+					i++;
+				} else if (args[i].equals("--specialize")) {
+					if (i + 1 == args.length) {
+						usage("not enough arguments for --specialize");
+					}
+					specializeTo = args[i + 1];
+					i++;
+				} else if (args[i].equals("--bind")) {
+					if (i + 1 == args.length) {
+						usage("not enough arguments for --bind");
+					}
+					String arg = args[i + 1];
+					int equals = arg.indexOf('=');
+					if (equals < 0) {
+						usage("--bind should be in form property=value");
+					}
+					bindings.put(arg.substring(0, equals), arg.substring(equals + 1));
+					i++;
 				} else if (args[i].equals("--help")) {
 					usage(null);
 				} else if (args[i].equals("--set")) {
@@ -54,11 +89,29 @@ public class PdlMain {
 					parser.parse(new StringReader(arg.substring(0, equals) + ":= '" + arg.substring(equals + 1) + "'"),
 							"argv[" + (i + 1) + "]");
 					i++;
+				} else if (args[i].endsWith(".pdlc")) {
+					try (InputStream in = Files.newInputStream(Paths.get(args[i]))) {
+						parser.load(in);
+					}
 				} else {
-					parser.parse(new FileReader(args[i]), args[i]);
+					parser.parse(Paths.get(args[i]));
 				}
 			}
-			if (explains.isEmpty()) {
+			if (specializeTo != null) {
+				PdlParser specialized = parser.specialize(bindings);
+				try (OutputStream out = Files.newOutputStream(Paths.get(specializeTo))) {
+					if (specializeTo.endsWith(".pdlc")) {
+						specialized.write(out);
+					} else {
+						Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+						specialized.print(writer);
+					}
+				}
+			} else if (compileTo != null) {
+				try (OutputStream out = Files.newOutputStream(Paths.get(compileTo))) {
+					parser.write(out);
+				}
+			} else if (explains.isEmpty()) {
 				Properties properties = new Properties() {
 					private static final long serialVersionUID = 1L;
 
@@ -85,7 +138,7 @@ public class PdlMain {
 	private static void usage(String msg) {
 		if (msg != null)
 			System.err.println(msg);
-		System.err.println("usage: rpl [--explain property] [--set property:=value] file ...");
+		System.err.println("usage: rpl [--explain property] [--set property:=value] [--compile out.pdlc] [--bind property=value] [--specialize out.pdl] file ...");
 		System.exit(msg == null ? 0 : 1);
 	}
 
@@ -0,0 +1,167 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The base class of the classes generated by {@link PdlParser#compile()}.
+ * Each property is a method that runs its rules in order, and each
+ * expression is a method that calls the protected operations below.  This
+ * class is only public so that the generated classes, which are defined by
+ * their own class loader, can extend it.
+ */
+public abstract class CompiledRuleSet {
+	private final Map<String, Integer> properties = new HashMap<>();
+	private final Map<PdlExpressionNode, Integer> expressionIndex = new IdentityHashMap<>();
+	private PdlAssignment[] assignments;
+	private PdlExpressionNode[] expressions;
+	private PdlConditionalAssignment[] rules;
+	private PdlExpressionNode[] nodes;
+	private Object[] constants;
+
+	protected CompiledRuleSet() {
+	}
+
+	void init(List<PdlAssignment> assignments, List<PdlExpressionNode> expressions,
+			List<PdlConditionalAssignment> rules, List<PdlExpressionNode> nodes) {
+		this.assignments = assignments.toArray(new PdlAssignment[0]);
+		for (int i = 0; i < this.assignments.length; i++) {
+			properties.put(this.assignments[i].getName(), i);
+		}
+		this.expressions = expressions.toArray(new PdlExpressionNode[0]);
+		for (int i = 0; i < this.expressions.length; i++) {
+			expressionIndex.put(this.expressions[i], i);
+		}
+		this.rules = rules.toArray(new PdlConditionalAssignment[0]);
+		this.nodes = nodes.toArray(new PdlExpressionNode[0]);
+		this.constants = new Object[this.nodes.length];
+		for (int i = 0; i < this.nodes.length; i++) {
+			if (this.nodes[i] instanceof PdlConstantNode) {
+				constants[i] = ((PdlConstantNode) this.nodes[i]).getConstant();
+			}
+		}
+	}
+
+	boolean hasProperty(String name) {
+		return properties.containsKey(name);
+	}
+
+	Object get(PdlScope scope, String name) {
+		return property(properties.get(name), scope);
+	}
+
+	/**
+	 * Evaluates an expression with its generated method if it has one.
+	 */
+	Object evaluate(PdlExpressionNode node, ExpressionScope scope) {
+		Integer index = expressionIndex.get(node);
+		if (index != null) {
+			return expression(index, scope);
+		}
+		return ExpressionCompiler.compile(node).eval(scope);
+	}
+
+	/**
+	 * Runs the rules of a property.
+	 */
+	protected abstract Object property(int property, Object scope);
+
+	protected abstract Object expression(int expression, Object scope);
+
+	protected final Object ruleFallback(Object scope, int property) {
+		return ((PdlScope) scope).evaluateRules(assignments[property]);
+	}
+
+	protected final Object expressionFallback(Object scope, int expression) {
+		return ExpressionCompiler.compile(expressions[expression]).eval((ExpressionScope) scope);
+	}
+
+	protected final boolean isTrue(Object scope, Object value) {
+		return ((ExpressionScope) scope).isTrue(value);
+	}
+
+	protected final boolean applies(Object scope, int rule) {
+		return ((PdlScope) scope).applies(rules[rule]);
+	}
+
+	protected final Object assign(Object scope, int rule, Object result, Object value) {
+		return ((PdlScope) scope).applyAssignment(rules[rule], result, value);
+	}
+
+	protected final Object assignProperties(Object scope, int rule, Object result) {
+		return ((PdlScope) scope).applyPropertySetNodeAssignment(rules[rule], result);
+	}
+
+	protected final Object constant(int node) {
+		return constants[node];
+	}
+
+	protected final Object lookup(Object scope, String name) {
+		return Evaluator.lookup((ExpressionScope) scope, name);
+	}
+
+	protected final Object binary(Object scope, int node, Object leftValue, Object rightValue) {
+		return Evaluator.binary((ExpressionScope) scope, (PdlBinaryOperatorNode) nodes[node], leftValue, rightValue);
+	}
+
+	protected final Object unary(Object scope, int node, Object value) {
+		return Evaluator.unary((ExpressionScope) scope, (PdlUnaryOperatorNode) nodes[node], value);
+	}
+
+	protected final Object attribute(int node, Object object) {
+		return Evaluator.attribute((PdlAttributeNode) nodes[node], object);
+	}
+
+	protected final Object invoke(int node, Object object, Object[] args) {
+		return Evaluator.invoke((PdlInvocationNode) nodes[node], object, args);
+	}
+
+	protected final Object construct(int node, Object[] args) {
+		return Evaluator.construct((PdlInvocationNode) nodes[node], args);
+	}
+
+	protected final Object subscript(Object scope, int node, Object object, Object index) {
+		return Evaluator.subscript((ExpressionScope) scope, (PdlSubscriptNode) nodes[node], object, index);
+	}
+
+	protected final Object list(Object[] values) {
+		return ListValue.of(values);
+	}
+
+	protected final Object set(Object[] values) {
+		LinkedHashSet<Object> set = new LinkedHashSet<>();
+		for (Object value : values) {
+			set.add(value);
+		}
+		return SetValue.of(set);
+	}
+
+	protected final Object dict(int node, Object[] values) {
+		LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+		Iterator<Object> keys = ((PdlDictNode) nodes[node]).getDict().keySet().iterator();
+		for (Object value : values) {
+			map.put(keys.next(), value);
+		}
+		return MapValue.of(map);
+	}
+
+}
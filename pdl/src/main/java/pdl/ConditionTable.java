@@ -0,0 +1,270 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Numbers the distinct conditions of a parser's rules.  A scope keeps which
+ * conditions it has evaluated, and which of those are true, in bitsets
+ * indexed by these numbers, and each rule has a mask of the conditions of
+ * the blocks it is in, so whether a rule applies is a few word-wise ANDs
+ * once its conditions are known.  Conditions written the same way get the
+ * same number wherever they appear, so each is evaluated once per scope.
+ * The numbers of blocks that are replaced are given out again, so
+ * reparsing a source doesn't grow the bitsets of later scopes.  A scope
+ * from before only sees the rules it was created with, which keep their
+ * numbers, so it never mistakes a new condition for an old one.
+ */
+final class ConditionTable {
+	private final Map<String, Integer> ids = new HashMap<>();
+	// the key of each number, or null if its condition has none, and how
+	// many blocks have it
+	private String[] keys = new String[64];
+	private int[] uses = new int[64];
+	// the numbers below size that no block has
+	private final BitSet free = new BitSet();
+	private int size;
+
+	/**
+	 * Returns how many numbers have been given out, including those that are
+	 * free to be given out again.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Numbers the blocks of rules that are joining the parser's rules, and
+	 * sets the mask of each rule.  Blocks numbered by another parser, such
+	 * as a worker, are numbered again.
+	 */
+	void number(Collection<PdlConditionalAssignment> rules) {
+		Set<PdlConditionalBlock> numbered = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (PdlConditionalAssignment rule : rules) {
+			long[] mask = null;
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				if (numbered.add(block)) {
+					block.id = id(block.getCondition());
+				}
+				int word = block.id >>> 6;
+				if (mask == null) {
+					mask = new long[word + 1];
+				} else if (mask.length <= word) {
+					mask = Arrays.copyOf(mask, word + 1);
+				}
+				mask[word] |= 1L << block.id;
+			}
+			rule.mask = mask;
+		}
+	}
+
+	/**
+	 * Frees the numbers of the blocks of rules that are leaving the parser's
+	 * rules once no other block has them.
+	 */
+	void release(Collection<PdlConditionalAssignment> rules) {
+		Set<PdlConditionalBlock> released = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (PdlConditionalAssignment rule : rules) {
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				if (!released.add(block) || block.id < 0) {
+					continue;
+				}
+				int id = block.id;
+				if (--uses[id] == 0) {
+					if (keys[id] != null) {
+						ids.remove(keys[id]);
+						keys[id] = null;
+					}
+					free.set(id);
+				}
+			}
+		}
+	}
+
+	private int id(PdlExpressionNode condition) {
+		Key key = new Key();
+		condition.accept(key);
+		String s = key.s != null ? key.s.toString() : null;
+		Integer id = s != null ? ids.get(s) : null;
+		if (id == null) {
+			id = free.nextSetBit(0);
+			if (id >= 0) {
+				free.clear(id);
+			} else {
+				id = size++;
+				if (id == keys.length) {
+					keys = Arrays.copyOf(keys, id * 2);
+					uses = Arrays.copyOf(uses, id * 2);
+				}
+			}
+			if (s != null) {
+				ids.put(s, id);
+				keys[id] = s;
+			}
+		}
+		uses[id]++;
+		return id;
+	}
+
+	/*
+	 * Spells out an expression so that two expressions have the same key
+	 * only if they are written the same way.  Strings are prefixed with their
+	 * length, and constants with their type.  A constant of any other type
+	 * leaves the expression without a key.
+	 */
+	private static class Key extends PdlExpressionNodeVisitor {
+		StringBuilder s = new StringBuilder();
+
+		private void node(char tag, PdlExpressionNode node) {
+			if (s == null) {
+				return;
+			}
+			s.append(tag);
+			if (node == null) {
+				s.append('_');
+			} else {
+				node.accept(this);
+			}
+		}
+
+		private void string(String string) {
+			if (s != null) {
+				s.append(string.length()).append(':').append(string);
+			}
+		}
+
+		private void value(Object value) {
+			if (s == null) {
+				return;
+			}
+			if (value == null) {
+				s.append('n');
+			} else if (value instanceof String) {
+				s.append('s');
+				string((String) value);
+			} else if (value instanceof Long) {
+				s.append('l').append(value).append(';');
+			} else if (value instanceof BigInteger) {
+				s.append('i').append(value).append(';');
+			} else if (value instanceof BigDecimal) {
+				s.append('d').append(value).append(';');
+			} else if (value instanceof Boolean) {
+				s.append('b').append(value).append(';');
+			} else if (value instanceof List<?> || value instanceof Set<?>) {
+				s.append(value instanceof Set<?> ? '{' : '[').append(((Collection<?>) value).size());
+				for (Object element : (Collection<?>) value) {
+					value(element);
+				}
+			} else if (value instanceof Map<?, ?>) {
+				s.append('<').append(((Map<?, ?>) value).size());
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+					value(entry.getKey());
+					value(entry.getValue());
+				}
+			} else {
+				s = null;
+			}
+		}
+
+		@Override
+		public void visit(PdlConstantNode rplConstantNode) {
+			// a numeric literal is a number in arithmetic and comparisons
+			s.append(rplConstantNode.getNumber() != null ? '#' : 'c');
+			value(rplConstantNode.getConstant());
+		}
+
+		@Override
+		public void visit(PdlGetValueNode rplGetValueNode) {
+			s.append('v');
+			string(rplGetValueNode.getName());
+		}
+
+		@Override
+		public void visit(PdlAttributeNode rplAttributeNode) {
+			s.append('a');
+			string(rplAttributeNode.getAttributeName());
+			node('.', rplAttributeNode.getTarget());
+		}
+
+		@Override
+		public void visit(PdlInvocationNode rplInvocationNode) {
+			s.append(rplInvocationNode.isConstructor() ? 'N' : 'i');
+			string(rplInvocationNode.getMethodName());
+			if (!rplInvocationNode.isConstructor()) {
+				node('.', rplInvocationNode.getTarget());
+			}
+			if (s != null) {
+				s.append(rplInvocationNode.getArguments().size());
+			}
+			for (PdlExpressionNode argument : rplInvocationNode.getArguments()) {
+				node(',', argument);
+			}
+		}
+
+		@Override
+		public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+			s.append('b').append(rplBinaryOperatorNode.getOperator());
+			node('(', rplBinaryOperatorNode.getLeft());
+			node(',', rplBinaryOperatorNode.getRight());
+		}
+
+		@Override
+		public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+			s.append('u').append(rplUnaryOperatorNode.getOperator());
+			node('(', rplUnaryOperatorNode.getTarget());
+		}
+
+		@Override
+		public void visit(PdlListNode rplListNode) {
+			s.append('l').append(rplListNode.getElements().size());
+			for (PdlExpressionNode element : rplListNode.getElements()) {
+				node(',', element);
+			}
+		}
+
+		@Override
+		public void visit(PdlDictNode rplDictNode) {
+			s.append(rplDictNode.isSet() ? 'S' : 'd').append(rplDictNode.getDict().size());
+			for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
+				if (rplDictNode.isSet()) {
+					node(',', (PdlExpressionNode) entry.getKey());
+				} else if (s != null) {
+					s.append(',');
+					string(String.valueOf(entry.getKey()));
+					node(':', (PdlExpressionNode) entry.getValue());
+				}
+			}
+		}
+
+		@Override
+		public void visit(PdlSubscriptNode rplSubscriptNode) {
+			s.append('x');
+			node('(', rplSubscriptNode.getTarget());
+			node('[', rplSubscriptNode.getIndex());
+		}
+	}
+
+}
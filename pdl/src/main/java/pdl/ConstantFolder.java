@@ -0,0 +1,289 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces expressions that only depend on constants with a
+ * {@link PdlConstantNode} holding their value, so
+ * <code>1024 * 1024 * 64</code> or <code>[1, 2, 3]</code> are evaluated once
+ * when they are parsed rather than every time they are used.  The folded
+ * node keeps the position of the expression it replaces.
+ * <p>
+ * Only operators, lists, dicts and subscripts are folded; attributes and
+ * invocations call into Java and are always left alone, as is anything
+ * that fails to evaluate, so the error is reported when the expression is
+ * used.  Folded lists, sets and dicts are immutable, so every use shares
+ * them.
+ * <p>
+ * A folder may also be given the values of some properties, as
+ * {@link Specializer} does, in which case references to them are folded
+ * too, except in property sets, where names refer to the set's own
+ * properties first.  A <code>&amp;&amp;</code> or <code>||</code> whose left
+ * side is constant is folded to its result or to its right side.
+ */
+class ConstantFolder extends PdlExpressionNodeVisitor {
+
+	private static class FoldScope extends ExpressionScope {
+		@Override
+		Object eval(String name) {
+			throw new IllegalStateException(name);
+		}
+
+		@Override
+		List<PdlNode> getTrace() {
+			return null;
+		}
+
+		@Override
+		boolean isInterpreted() {
+			return true;
+		}
+	}
+
+	private final FoldScope scope = new FoldScope();
+	private final Evaluator evaluator = new Evaluator(scope);
+	private final Map<PdlExpressionNode, PdlExpressionNode> folded = new IdentityHashMap<>();
+	// blocks are shared by all the rules in them
+	private final Set<PdlConditionalBlock> blocks = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Map<String, Object> known;
+	private boolean inPropertySet;
+	private PdlExpressionNode result;
+
+	ConstantFolder() {
+		this(null);
+	}
+
+	ConstantFolder(Map<String, Object> known) {
+		this.known = known;
+	}
+
+	void fold(List<PdlConditionalAssignment> rules) {
+		for (PdlConditionalAssignment rule : rules) {
+			for (PdlConditionalBlock block = rule.getBlock(); block != null && blocks.add(block); block = block
+					.getParent()) {
+				block.setCondition(fold(block.getCondition()));
+			}
+			if (rule.getPropertySet() != null) {
+				inPropertySet = true;
+				for (Map.Entry<String, PdlExpressionNode> entry : rule.getPropertySet().getProperties().entrySet()) {
+					entry.setValue(fold(entry.getValue()));
+				}
+				inPropertySet = false;
+			} else if (rule.getValue() != null) {
+				rule.setValue(fold(rule.getValue()));
+			}
+		}
+	}
+
+	PdlExpressionNode fold(PdlExpressionNode node) {
+		PdlExpressionNode replacement = folded.get(node);
+		if (replacement == null) {
+			result = node;
+			node.accept(this);
+			replacement = result;
+			folded.put(node, replacement);
+		}
+		return replacement;
+	}
+
+	static boolean isConstant(PdlExpressionNode node) {
+		return node instanceof PdlConstantNode;
+	}
+
+	boolean isTrue(Object value) {
+		return scope.isTrue(value);
+	}
+
+	/*
+	 * Evaluates a node whose operands are all constants, leaving the node
+	 * as is if that fails or gives something other than a string, number,
+	 * boolean or a list, set or map of them.
+	 */
+	private void evaluate(PdlExpressionNode node) {
+		Object value;
+		try {
+			value = evaluator.eval(node);
+		} catch (RuntimeException e) {
+			return;
+		}
+		if (!isFoldable(value)) {
+			return;
+		}
+		result = constant(node, value);
+	}
+
+	/**
+	 * Returns a constant node at the position of another node.
+	 */
+	static PdlConstantNode constant(PdlNode node, Object value) {
+		PdlConstantNode constant = new PdlConstantNode();
+		constant.setSource(node.getSource());
+		constant.setLine(node.getLine());
+		constant.setCol(node.getColumn());
+		constant.setValue(String.valueOf(value));
+		constant.setConstant(value);
+		return constant;
+	}
+
+	static boolean isFoldable(Object value) {
+		if (value == null || value instanceof String || value instanceof Boolean || value instanceof Long
+				|| value instanceof BigInteger || value instanceof BigDecimal) {
+			return true;
+		} else if (value instanceof Collection<?>) {
+			for (Object element : (Collection<?>) value) {
+				if (!isFoldable(element)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (value instanceof Map<?, ?>) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!isFoldable(entry.getKey()) || !isFoldable(entry.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void visit(PdlConstantNode rplConstantNode) {
+	}
+
+	@Override
+	public void visit(PdlGetValueNode rplGetValueNode) {
+		if (known != null && !inPropertySet && known.containsKey(rplGetValueNode.getName())) {
+			result = constant(rplGetValueNode, known.get(rplGetValueNode.getName()));
+		}
+	}
+
+	@Override
+	public void visit(PdlAttributeNode rplAttributeNode) {
+		rplAttributeNode.setTarget(fold(rplAttributeNode.getTarget()));
+		result = rplAttributeNode;
+	}
+
+	@Override
+	public void visit(PdlInvocationNode rplInvocationNode) {
+		if (!rplInvocationNode.isConstructor()) {
+			rplInvocationNode.setTarget(fold(rplInvocationNode.getTarget()));
+		}
+		List<PdlExpressionNode> arguments = rplInvocationNode.getArguments();
+		for (int i = 0; i < arguments.size(); i++) {
+			arguments.set(i, fold(arguments.get(i)));
+		}
+		result = rplInvocationNode;
+	}
+
+	@Override
+	public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+		PdlExpressionNode left = fold(rplBinaryOperatorNode.getLeft());
+		PdlExpressionNode right = fold(rplBinaryOperatorNode.getRight());
+		rplBinaryOperatorNode.setLeft(left);
+		rplBinaryOperatorNode.withRight(right);
+		result = rplBinaryOperatorNode;
+		if (isConstant(left) && isConstant(right)) {
+			evaluate(rplBinaryOperatorNode);
+		} else if (isConstant(left)) {
+			Object value = ((PdlConstantNode) left).getConstant();
+			switch (rplBinaryOperatorNode.getOperator()) {
+			case PdlBinaryOperatorNode.L_AND:
+				result = isTrue(value) ? right : constant(rplBinaryOperatorNode, null);
+				break;
+			case PdlBinaryOperatorNode.L_OR:
+				result = isTrue(value) ? left : right;
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+		PdlExpressionNode target = fold(rplUnaryOperatorNode.getTarget());
+		rplUnaryOperatorNode.withTarget(target);
+		result = rplUnaryOperatorNode;
+		if (isConstant(target)) {
+			evaluate(rplUnaryOperatorNode);
+		}
+	}
+
+	@Override
+	public void visit(PdlListNode rplListNode) {
+		List<PdlExpressionNode> elements = rplListNode.getElements();
+		boolean constant = true;
+		for (int i = 0; i < elements.size(); i++) {
+			PdlExpressionNode element = fold(elements.get(i));
+			elements.set(i, element);
+			constant &= isConstant(element);
+		}
+		result = rplListNode;
+		if (constant) {
+			evaluate(rplListNode);
+		}
+	}
+
+	@Override
+	public void visit(PdlDictNode rplDictNode) {
+		Map<Object, Object> dict = rplDictNode.getDict();
+		boolean constant = true;
+		if (rplDictNode.isSet()) {
+			List<Object> elements = new ArrayList<>(dict.keySet());
+			dict.clear();
+			for (Object element : elements) {
+				PdlExpressionNode node = fold((PdlExpressionNode) element);
+				dict.put(node, Boolean.TRUE);
+				constant &= isConstant(node);
+			}
+		} else {
+			for (Map.Entry<Object, Object> entry : dict.entrySet()) {
+				PdlExpressionNode node = fold((PdlExpressionNode) entry.getValue());
+				entry.setValue(node);
+				constant &= isConstant(node);
+			}
+		}
+		result = rplDictNode;
+		if (constant) {
+			evaluate(rplDictNode);
+		}
+	}
+
+	@Override
+	public void visit(PdlSubscriptNode rplSubscriptNode) {
+		PdlExpressionNode target = fold(rplSubscriptNode.getTarget());
+		PdlExpressionNode index = fold(rplSubscriptNode.getIndex());
+		rplSubscriptNode.setTarget(target);
+		rplSubscriptNode.setIndex(index);
+		result = rplSubscriptNode;
+		// anything else logs a warning when evaluated
+		if (isConstant(index) && isConstant(target)) {
+			Object value = ((PdlConstantNode) target).getConstant();
+			if (value instanceof Collection<?> || value instanceof Map<?, ?>) {
+				evaluate(rplSubscriptNode);
+			}
+		}
+	}
+
+}
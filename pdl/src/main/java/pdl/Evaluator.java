@@ -14,11 +14,8 @@
 
 package pdl;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.MathContext;
@@ -35,9 +32,18 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The reference interpreter.  It walks the expression tree keeping
+ * intermediate values in an array indexed by the slots assigned by
+ * {@link FrameLayout}, which is dropped once the tree is evaluated, and records
+ * every node it evaluates when the scope is tracing.  The operations
+ * themselves are static methods shared with {@link ExpressionCompiler}, so
+ * both give the same results.
+ */
 class Evaluator extends ValueFunctions {
 	private static final Map<Class<?>, Class<?>> PRIMITIVE_TYPES = new HashMap<>();
 	private static final Logger logger = LoggerFactory.getLogger(Evaluator.class);
+	private static final long MAX_DECIMAL64 = 10_000_000_000_000_000L;
 
 	static {
 		PRIMITIVE_TYPES.put(Byte.TYPE, Integer.class);
@@ -50,124 +56,48 @@ class Evaluator extends ValueFunctions {
 	}
 
 	private class EvalTraversal extends PdlExpressionNodeTraversal {
+		private final Object[] frame;
+
+		EvalTraversal(PdlExpressionNode root) {
+			frame = new Object[FrameLayout.frameSize(root)];
+		}
+
+		Object getValue(PdlExpressionNode expression) {
+			return frame[expression.slot];
+		}
+
+		void setValue(PdlExpressionNode expression, Object value) {
+			frame[expression.slot] = value;
+			List<PdlNode> trace = scope.getTrace();
+			if (trace != null) {
+				trace.add(expression);
+			}
+		}
 
 		@Override
 		public void postVisit(PdlGetValueNode rplGetValueNode) {
-			String name = rplGetValueNode.getName();
-			Object value = scope.eval(name);
-			// since these are mutable values we return copies
-			if (value instanceof Map<?, ?>) {
-				value = new LinkedHashMap<Object, Object>((Map<?, ?>) value);
-			} else if (value instanceof Set<?>) {
-				value = new LinkedHashSet<Object>((Set<?>) value);
-			} else if (value instanceof Collection<?>) {
-				value = new ArrayList<Object>((Collection<?>) value);
-			} else if (value instanceof PdlPropertySet) {
-				value = new PdlPropertySet((PdlPropertySet) value);
-			}
-			setValue(rplGetValueNode, value);
+			setValue(rplGetValueNode, lookup(scope, rplGetValueNode.getName()));
 		}
 
 		@Override
 		public void postVisit(PdlListNode rplListNode) {
-			List<Object> values = new ArrayList<>();
-			for (PdlExpressionNode element : rplListNode.getElements()) {
-				values.add(getValue(element));
+			List<PdlExpressionNode> elements = rplListNode.getElements();
+			Object[] values = new Object[elements.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = getValue(elements.get(i));
 			}
-			setValue(rplListNode, values);
+			setValue(rplListNode, ListValue.of(values));
 		}
 
 		@Override
 		public void postVisit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
-			Object value = getValue(rplUnaryOperatorNode.getTarget());
-			switch (rplUnaryOperatorNode.getOperator()) {
-			case '+':
-			case '-': {
-				BigDecimal n = scope.asBigDecimal(value);
-				if (n == null)
-					n = BigDecimal.ZERO;
-				switch (rplUnaryOperatorNode.getOperator()) {
-				case '+':
-					setValue(rplUnaryOperatorNode, n);
-					break;
-				case '-':
-					setValue(rplUnaryOperatorNode, BigDecimal.ZERO.subtract(n));
-					break;
-				}
-				break;
-			}
-			case '~': {
-				BigInteger n = scope.asBigInteger(value);
-				if (n == null)
-					setValue(rplUnaryOperatorNode, BigInteger.valueOf(~0));
-				else
-					setValue(rplUnaryOperatorNode, n.not());
-				break;
-			}
-
-			case '!':
-				if (scope.isTrue(value)) {
-					setValue(rplUnaryOperatorNode, "false");
-				} else {
-					setValue(rplUnaryOperatorNode, "true");
-				}
-				break;
-			default:
-				throw evalException(rplUnaryOperatorNode, "unknown operator", null);
-			}
-		}
-
-		private RuntimeException evalException(PdlExpressionNode expr, String msg, Throwable t) {
-			return new PdlEvalException(expr.diagMessage(msg), t);
+			setValue(rplUnaryOperatorNode,
+					unary(scope, rplUnaryOperatorNode, getValue(rplUnaryOperatorNode.getTarget())));
 		}
 
 		@Override
 		public void postVisit(PdlAttributeNode rplAttributeNode) {
-			Object object = getValue(rplAttributeNode.getTarget());
-			if (object != null) {
-				String attributeName = rplAttributeNode.getAttributeName();
-				if (object instanceof ExpressionScope) {
-					ExpressionScope expressionScope = (ExpressionScope) object;
-					Object value = expressionScope.eval(attributeName);
-					setValue(rplAttributeNode, value);
-					return;
-				}
-				if (object instanceof Map<?, ?>) {
-					setValue(rplAttributeNode, ((Map<?, ?>) object).get(attributeName));
-					return;
-				}
-				// handle array.length specially
-				if (object.getClass().isArray() && attributeName.equals("length")) {
-					setValue(rplAttributeNode, Array.getLength(object));
-					return;
-				}
-				// look for field
-				for (Field field : object.getClass().getFields()) {
-					if (field.getName().equals(attributeName)) {
-						try {
-							setValue(rplAttributeNode, field.get(object));
-						} catch (IllegalArgumentException | IllegalAccessException e) {
-							logger.warn("could not get value of '" + attributeName + "'", e);
-						}
-						return;
-					}
-				}
-				// look for getter
-				String getterName = "get" + Character.toUpperCase(attributeName.charAt(0));
-				if (attributeName.length() > 1) {
-					getterName += attributeName.substring(1);
-				}
-				for (Method method : object.getClass().getMethods()) {
-					if (method.getName().equals(getterName) && method.getParameterTypes().length == 0) {
-						try {
-							setValue(rplAttributeNode, method.invoke(object));
-						} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-							logger.warn("could not get value of '" + attributeName + "'", e);
-						}
-						return;
-					}
-				}
-			}
+			setValue(rplAttributeNode, attribute(rplAttributeNode, getValue(rplAttributeNode.getTarget())));
 		}
 
 		@Override
@@ -194,299 +124,599 @@ class Evaluator extends ValueFunctions {
 		public void postVisit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
 			Object leftValue = getValue(rplBinaryOperatorNode.getLeft());
 			Object rightValue = getValue(rplBinaryOperatorNode.getRight());
-			Object result = null;
-			switch (rplBinaryOperatorNode.getOperator()) {
-			case '+': {
-				result = scope.plus(rplBinaryOperatorNode, leftValue, rightValue);
+			setValue(rplBinaryOperatorNode, binary(scope, rplBinaryOperatorNode, leftValue, rightValue));
+		}
+
+		@Override
+		public void postVisit(PdlConstantNode rplConstantNode) {
+			setValue(rplConstantNode, rplConstantNode.getConstant());
+		}
+
+		@Override
+		public void postVisit(PdlInvocationNode rplInvocationNode) {
+			Object[] args = new Object[rplInvocationNode.getArguments().size()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = getValue(rplInvocationNode.getArguments().get(i));
+			}
+			if (rplInvocationNode.isConstructor()) {
+				setValue(rplInvocationNode, construct(rplInvocationNode, args));
+			} else {
+				setValue(rplInvocationNode, invoke(rplInvocationNode, getValue(rplInvocationNode.getTarget()), args));
+			}
+		}
+
+		@Override
+		public void postVisit(PdlSubscriptNode rplSubscriptNode) {
+			Object object = getValue(rplSubscriptNode.getTarget());
+			Object index = getValue(rplSubscriptNode.getIndex());
+			setValue(rplSubscriptNode, subscript(scope, rplSubscriptNode, object, index));
+		}
+
+		@Override
+		public void postVisit(PdlDictNode rplDictNode) {
+			if (rplDictNode.isSet()) {
+				LinkedHashSet<Object> result = new LinkedHashSet<Object>();
+				for (Object element : rplDictNode.getDict().keySet()) {
+					result.add(getValue((PdlExpressionNode) element));
+				}
+				setValue(rplDictNode, SetValue.of(result));
+			} else {
+				LinkedHashMap<Object, Object> result = new LinkedHashMap<Object, Object>();
+				for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
+					result.put(entry.getKey(), getValue((PdlExpressionNode) entry.getValue()));
+				}
+				setValue(rplDictNode, MapValue.of(result));
+			}
+		}
+	}
+
+	private static RuntimeException evalException(PdlExpressionNode expr, String msg, Throwable t) {
+		return new PdlEvalException(expr.diagMessage(msg), t);
+	}
+
+	static Object lookup(ExpressionScope scope, String name) {
+		Object value = scope.eval(name);
+		// PDL lists, sets, maps and property sets are immutable, but java
+		// collections are copied in case a method call changes them
+		if (value instanceof Map<?, ?> && !(value instanceof MapValue)) {
+			value = new LinkedHashMap<Object, Object>((Map<?, ?>) value);
+		} else if (value instanceof Set<?> && !(value instanceof SetValue)) {
+			value = new LinkedHashSet<Object>((Set<?>) value);
+		} else if (value instanceof Collection<?> && !(value instanceof ListValue)) {
+			value = new ArrayList<Object>((Collection<?>) value);
+		}
+		return value;
+	}
+
+	/*
+	 * Numeric literals evaluate to their text, but arithmetic and
+	 * comparisons on an integer literal use the number it was decoded to when
+	 * it was parsed rather than parsing the text again.
+	 */
+	private static Object number(PdlExpressionNode operand, Object value) {
+		if (operand instanceof PdlConstantNode) {
+			Number number = ((PdlConstantNode) operand).getNumber();
+			if (number != null) {
+				return number;
+			}
+		}
+		return value;
+	}
+
+	static Object unary(ExpressionScope scope, PdlUnaryOperatorNode rplUnaryOperatorNode, Object value) {
+		Object number = number(rplUnaryOperatorNode.getTarget(), value);
+		Long longValue = asLong(number);
+		if (longValue != null) {
+			long n = longValue;
+			switch (rplUnaryOperatorNode.getOperator()) {
+			case '+':
+				return n;
+			case '-':
+				if (n != Long.MIN_VALUE) {
+					return -n;
+				}
 				break;
+			case '~':
+				return ~n;
 			}
-			case PdlBinaryOperatorNode.EQ:
-			case PdlBinaryOperatorNode.NEQ:
-			case PdlBinaryOperatorNode.GTE: 
+		}
+		switch (rplUnaryOperatorNode.getOperator()) {
+		case '+':
+		case '-': {
+			BigDecimal n = scope.asBigDecimal(number);
+			if (n == null)
+				n = BigDecimal.ZERO;
+			return rplUnaryOperatorNode.getOperator() == '+' ? n : BigDecimal.ZERO.subtract(n);
+		}
+		case '~': {
+			BigInteger n = scope.asBigInteger(number);
+			if (n == null)
+				return BigInteger.valueOf(~0);
+			else
+				return n.not();
+		}
+		case '!':
+			return scope.isTrue(value) ? "false" : "true";
+		default:
+			throw evalException(rplUnaryOperatorNode, "unknown operator", null);
+		}
+	}
+
+	/*
+	 * Orders two values for the comparison operators: as numbers if both are
+	 * numbers, or with compareTo if they are of the same Comparable class.
+	 * Returns null if they can't be ordered.  Null is greater than anything
+	 * else.
+	 */
+	private static Integer compare(ExpressionScope scope, Object leftValue, Object rightValue) {
+		if (leftValue == rightValue) {
+			return 0;
+		} else if (leftValue == null) {
+			return 1;
+		}
+		BigDecimal leftNumber = scope.asBigDecimal(leftValue);
+		BigDecimal rightNumber;
+		if (leftNumber != null && ((rightNumber = scope.asBigDecimal(rightValue)) != null)) {
+			return Integer.signum(leftNumber.compareTo(rightNumber));
+		} else if (leftValue instanceof Comparable && rightValue instanceof Comparable
+				&& leftValue.getClass().isAssignableFrom(rightValue.getClass())) {
+			@SuppressWarnings("unchecked")
+			Comparable<Object> leftCmp = (Comparable<Object>) leftValue;
+			return Integer.signum(leftCmp.compareTo(rightValue));
+		}
+		return null;
+	}
+
+	/**
+	 * Whether two values are <code>==</code>: ordered the same by the
+	 * comparison operators, or else equal.
+	 */
+	static boolean equal(ExpressionScope scope, Object leftValue, Object rightValue) {
+		Integer cmp = compare(scope, leftValue, rightValue);
+		return cmp != null ? cmp == 0 : leftValue != null && leftValue.equals(rightValue);
+	}
+
+	/**
+	 * Whether <code>value in container</code>: whether a collection has an
+	 * element or a map a key that is <code>==</code> to the value, or whether
+	 * a string contains it.
+	 */
+	static boolean contains(ExpressionScope scope, Object container, Object value) {
+		Collection<?> elements;
+		if (container instanceof Collection<?>) {
+			elements = (Collection<?>) container;
+		} else if (container instanceof Map<?, ?>) {
+			elements = ((Map<?, ?>) container).keySet();
+		} else if (container instanceof String) {
+			return value != null && ((String) container).contains(String.valueOf(value));
+		} else {
+			return false;
+		}
+		if (value != null && elements.contains(value)) {
+			return true;
+		} else if (value instanceof String && classify((String) value) == NOT_NUMERIC) {
+			// only equal to a string that equals it
+			return false;
+		}
+		for (Object element : elements) {
+			if (equal(scope, value, element)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static Object attribute(PdlAttributeNode rplAttributeNode, Object object) {
+		if (object == null) {
+			return null;
+		}
+		String attributeName = rplAttributeNode.getAttributeName();
+		if (object instanceof ExpressionScope) {
+			return ((ExpressionScope) object).eval(attributeName);
+		}
+		if (object instanceof Map<?, ?>) {
+			return ((Map<?, ?>) object).get(attributeName);
+		}
+		// handle array.length specially
+		if (object.getClass().isArray() && attributeName.equals("length")) {
+			return Array.getLength(object);
+		}
+		MethodHandle getter = MemberCache.getter(rplAttributeNode, object.getClass());
+		try {
+			return (Object) getter.invokeExact(object);
+		} catch (Throwable t) {
+			logger.warn("could not get value of '" + attributeName + "'", t);
+		}
+		return null;
+	}
+
+	/**
+	 * Applies a binary operator other than the short-circuit
+	 * <code>&amp;&amp;</code> and <code>||</code>, which are handled by the
+	 * callers.
+	 */
+	static Object binary(ExpressionScope scope, PdlBinaryOperatorNode rplBinaryOperatorNode, Object leftValue,
+			Object rightValue) {
+		Object left = number(rplBinaryOperatorNode.getLeft(), leftValue);
+		Object right = number(rplBinaryOperatorNode.getRight(), rightValue);
+		Long a = asLong(left);
+		Long b = a != null ? asLong(right) : null;
+		if (b != null) {
+			Object result = binary(rplBinaryOperatorNode.getOperator(), a, b);
+			if (result != null) {
+				return result;
+			}
+		}
+		Object result = null;
+		switch (rplBinaryOperatorNode.getOperator()) {
+		case '+': {
+			BigDecimal leftNumber, rightNumber;
+			if ((left != leftValue || right != rightValue) && (leftNumber = scope.asBigDecimal(left)) != null
+					&& (rightNumber = scope.asBigDecimal(right)) != null) {
+				result = leftNumber.add(rightNumber);
+			} else {
+				result = scope.plus(rplBinaryOperatorNode, leftValue, rightValue);
+			}
+			break;
+		}
+		case PdlBinaryOperatorNode.EQ:
+			result = equal(scope, left, right);
+			break;
+		case PdlBinaryOperatorNode.NEQ:
+			result = !equal(scope, left, right);
+			break;
+		case PdlBinaryOperatorNode.GTE: 
+		case PdlBinaryOperatorNode.LTE:
+		case '>':
+		case '<':
+		{
+			Integer cmp = compare(scope, left, right);
+			if (cmp == null) {
+				throw evalException(rplBinaryOperatorNode, "cannot compare non-Comparable objects", null);
+			}
+			switch (rplBinaryOperatorNode.getOperator()) {
+			case PdlBinaryOperatorNode.GTE:
+				result = cmp >= 0;
+				break;
 			case PdlBinaryOperatorNode.LTE:
+				result = cmp <= 0;
+				break;
 			case '>':
+				result = cmp > 0;
+				break;
 			case '<':
-			{
-				int op = rplBinaryOperatorNode.getOperator();
-				final int cmp;
-				if (leftValue == rightValue) {
-					cmp = 0;
-				} else if (leftValue != null) {
-					BigDecimal leftNumber = scope.asBigDecimal(leftValue);
-					BigDecimal rightNumber;
-					if (leftNumber != null && ((rightNumber = scope.asBigDecimal(rightValue)) != null)) {
-						cmp = leftNumber.compareTo(rightNumber);
-					} else if (leftValue instanceof Comparable && rightValue instanceof Comparable
-							&& leftValue.getClass().isAssignableFrom(rightValue.getClass())) {
-						@SuppressWarnings("unchecked")
-						Comparable<Object> leftCmp = (Comparable<Object>) leftValue;
-						cmp = leftCmp.compareTo(rightValue);
-					} else if (op == PdlBinaryOperatorNode.EQ || op == PdlBinaryOperatorNode.NEQ) {
-						cmp = leftValue.equals(rightValue) ? 0 : 1;
-					} else {
-						throw evalException(rplBinaryOperatorNode, "cannot compare non-Comparable objects", null);
-					}
-				} else {
-					cmp = 1;
-				}
-				switch (op) {
-				case PdlBinaryOperatorNode.EQ:
-					result = cmp == 0;
-					break;
-				case PdlBinaryOperatorNode.NEQ:
-					result = cmp != 0;
-					break;
-				case PdlBinaryOperatorNode.GTE:
-					result = cmp >= 0;
-					break;
-				case PdlBinaryOperatorNode.LTE:
-					result = cmp <= 0;
-					break;
-				case '>':
-					result = cmp > 0;
-					break;
-				case '<':
-					result = cmp < 0;
-					break;
-				}
+				result = cmp < 0;
 				break;
 			}
-			case '-': {
-				if (leftValue instanceof Collection<?>) {
-					List<Object> list = new ArrayList<>();
-					list.addAll((Collection<?>) leftValue);
-					if (rightValue instanceof Collection<?>) {
-						list.removeAll((Collection<?>) rightValue);
-					} else {
-						list.remove(rightValue);
-					}
-					result = list;
-				} else if (leftValue instanceof Map<?, ?>) {
-					@SuppressWarnings("unchecked")
-					Map<Object, Object> map = (Map<Object, Object>) leftValue;
-					if (rightValue instanceof Collection<?>) {
-						for (Object element : (Collection<?>) rightValue) {
-							map.remove(element);
-						}
-					} else {
-						map.remove(rightValue);
-					}
+			break;
+		}
+		case PdlBinaryOperatorNode.IN:
+			result = contains(scope, rightValue, leftValue);
+			break;
+		case PdlBinaryOperatorNode.NOT_IN:
+			result = !contains(scope, rightValue, leftValue);
+			break;
+		case '-': {
+			if (leftValue instanceof Collection<?>) {
+				List<Object> list = new ArrayList<>();
+				list.addAll((Collection<?>) leftValue);
+				if (rightValue instanceof Collection<?>) {
+					list.removeAll((Collection<?>) rightValue);
 				} else {
-					BigDecimal leftNumber = scope.asBigDecimal(leftValue);
-					BigDecimal rightNumber = scope.asBigDecimal(rightValue);
-					if (leftNumber == null)
-						leftNumber = BigDecimal.ZERO;
-					if (rightNumber == null)
-						rightNumber = BigDecimal.ZERO;
-					result = leftNumber.subtract(rightNumber);
+					list.remove(rightValue);
 				}
-				break;
-			}
-			case '*':
-			case '/': {
-				BigDecimal leftNumber = scope.asBigDecimal(leftValue);
-				BigDecimal rightNumber = scope.asBigDecimal(rightValue);
+				result = ListValue.copyOf(list);
+			} else if (leftValue instanceof Map<?, ?>) {
+				result = MapValue.copyOf((Map<?, ?>) leftValue).minus(rightValue);
+			} else {
+				BigDecimal leftNumber = scope.asBigDecimal(left);
+				BigDecimal rightNumber = scope.asBigDecimal(right);
 				if (leftNumber == null)
 					leftNumber = BigDecimal.ZERO;
 				if (rightNumber == null)
 					rightNumber = BigDecimal.ZERO;
-				switch (rplBinaryOperatorNode.getOperator()) {
-				case '*':
-					result = leftNumber.multiply(rightNumber);
-					break;
-				case '/':
-					result = leftNumber.divide(rightNumber, MathContext.DECIMAL64);
-					break;
-				}
+				result = leftNumber.subtract(rightNumber);
+			}
+			break;
+		}
+		case '*':
+		case '/': {
+			BigDecimal leftNumber = scope.asBigDecimal(left);
+			BigDecimal rightNumber = scope.asBigDecimal(right);
+			if (leftNumber == null)
+				leftNumber = BigDecimal.ZERO;
+			if (rightNumber == null)
+				rightNumber = BigDecimal.ZERO;
+			switch (rplBinaryOperatorNode.getOperator()) {
+			case '*':
+				result = leftNumber.multiply(rightNumber);
+				break;
+			case '/':
+				result = leftNumber.divide(rightNumber, MathContext.DECIMAL64);
 				break;
 			}
+			break;
+		}
+		case '%':
+		case '^':
+		case '|':
+		case '&':
+		case PdlBinaryOperatorNode.L_SHIFT:
+		case PdlBinaryOperatorNode.R_SHIFT: {
+			BigInteger leftNumber = scope.asBigInteger(left);
+			BigInteger rightNumber = scope.asBigInteger(right);
+			if (leftNumber == null)
+				leftNumber = BigInteger.ZERO;
+			if (rightNumber == null)
+				rightNumber = BigInteger.ZERO;
+			switch (rplBinaryOperatorNode.getOperator()) {
 			case '%':
+				result = leftNumber.mod(rightNumber);
+				break;
 			case '^':
+				result = leftNumber.xor(rightNumber);
+				break;
 			case '|':
+				result = leftNumber.or(rightNumber);
+				break;
 			case '&':
+				result = leftNumber.and(rightNumber);
+				break;
 			case PdlBinaryOperatorNode.L_SHIFT:
-			case PdlBinaryOperatorNode.R_SHIFT: {
-				BigInteger leftNumber = scope.asBigInteger(leftValue);
-				BigInteger rightNumber = scope.asBigInteger(rightValue);
-				if (leftNumber == null)
-					leftNumber = BigInteger.ZERO;
-				if (rightNumber == null)
-					rightNumber = BigInteger.ZERO;
-				switch (rplBinaryOperatorNode.getOperator()) {
-				case '%':
-					result = leftNumber.mod(rightNumber);
-					break;
-				case '^':
-					result = leftNumber.xor(rightNumber);
-					break;
-				case '|':
-					result = leftNumber.or(rightNumber);
-					break;
-				case '&':
-					result = leftNumber.and(rightNumber);
-					break;
-				case PdlBinaryOperatorNode.L_SHIFT:
-					result = leftNumber.shiftLeft(rightNumber.intValue());
-					break;
-				case PdlBinaryOperatorNode.R_SHIFT:
-					result = leftNumber.shiftRight(rightNumber.intValue());
-					break;
-				}
+				result = leftNumber.shiftLeft(rightNumber.intValue());
 				break;
-			}
-			case PdlBinaryOperatorNode.L_AND:
-			case PdlBinaryOperatorNode.L_OR:
-				// in both cases, the shortcut preVisit has done the conditional
-				// eval
-				result = rightValue;
+			case PdlBinaryOperatorNode.R_SHIFT:
+				result = leftNumber.shiftRight(rightNumber.intValue());
 				break;
 			}
-			setValue(rplBinaryOperatorNode, result);
+			break;
+		}
+		case PdlBinaryOperatorNode.L_AND:
+		case PdlBinaryOperatorNode.L_OR:
+			// in both cases, the caller has done the conditional eval
+			result = rightValue;
+			break;
 		}
+		return result;
+	}
 
-		@Override
-		public void postVisit(PdlConstantNode rplConstantNode) {
-			setValue(rplConstantNode, rplConstantNode.getValue());
+	/*
+	 * Integer arithmetic and comparisons on longs, giving the same results as
+	 * the BigDecimal and BigInteger arithmetic above.  Returns null if the
+	 * result doesn't fit in a long, if a division isn't exact or would be
+	 * rounded to DECIMAL64, or for anything that throws, so the caller falls
+	 * back to the general case.
+	 */
+	private static Object binary(int op, long a, long b) {
+		switch (op) {
+		case '+': {
+			long r = a + b;
+			return ((a ^ r) & (b ^ r)) < 0 ? null : (Object) r;
+		}
+		case '-': {
+			long r = a - b;
+			return ((a ^ b) & (a ^ r)) < 0 ? null : (Object) r;
+		}
+		case '*': {
+			long r = a * b;
+			if (((Math.abs(a) | Math.abs(b)) >>> 31) != 0
+					&& ((b != 0 && r / b != a) || (a == Long.MIN_VALUE && b == -1))) {
+				return null;
+			}
+			return r;
+		}
+		case '/':
+			if (b == 0 || a % b != 0 || (a == Long.MIN_VALUE && b == -1)) {
+				return null;
+			}
+			long q = a / b;
+			// DECIMAL64 keeps 16 digits
+			return q > -MAX_DECIMAL64 && q < MAX_DECIMAL64 ? (Object) q : null;
+		case '%':
+			// BigInteger.mod is never negative, and throws unless b > 0
+			return b > 0 ? (Object) Math.floorMod(a, b) : null;
+		case '^':
+			return a ^ b;
+		case '|':
+			return a | b;
+		case '&':
+			return a & b;
+		case PdlBinaryOperatorNode.L_SHIFT: {
+			int n = (int) b;
+			if (n < 0 || n > 63) {
+				return null;
+			}
+			long r = a << n;
+			return r >> n == a ? (Object) r : null;
+		}
+		case PdlBinaryOperatorNode.R_SHIFT: {
+			int n = (int) b;
+			return n >= 0 ? (Object) (a >> Math.min(n, 63)) : null;
 		}
+		case PdlBinaryOperatorNode.EQ:
+			return a == b;
+		case PdlBinaryOperatorNode.NEQ:
+			return a != b;
+		case PdlBinaryOperatorNode.GTE:
+			return a >= b;
+		case PdlBinaryOperatorNode.LTE:
+			return a <= b;
+		case '>':
+			return a > b;
+		case '<':
+			return a < b;
+		}
+		return null;
+	}
 
-		@Override
-		public void postVisit(PdlInvocationNode rplInvocationNode) {
-			if (rplInvocationNode.isConstructor()) {
-				String typeName = rplInvocationNode.getMethodName();
-				Class<?> type;
-				if (typeName.indexOf('.') < 0) {
-					// try java.lang, java.util
-					type = findClass("java.lang." + typeName);
-					if (type == null) {
-						type = findClass("java.util." + typeName);
-					}
-				} else {
-					type = findClass(typeName);
+	/*
+	 * Integer literals are passed to java methods as the numbers they were
+	 * decoded to.
+	 */
+	private static Object[] arguments(PdlInvocationNode rplInvocationNode, Object[] args) {
+		Object[] numbers = args;
+		List<PdlExpressionNode> arguments = rplInvocationNode.getArguments();
+		for (int i = 0; i < args.length; i++) {
+			Object number = number(arguments.get(i), args[i]);
+			if (number != args[i]) {
+				if (numbers == args) {
+					numbers = args.clone();
 				}
+				numbers[i] = number;
+			}
+		}
+		return numbers;
+	}
+
+	static Object construct(PdlInvocationNode rplInvocationNode, Object[] args) {
+		args = arguments(rplInvocationNode, args);
+		String typeName = rplInvocationNode.getMethodName();
+		Class<?> type = constructorType(rplInvocationNode);
+		if (type == null) {
+			throw evalException(rplInvocationNode, "no such class '" + typeName + "'", null);
+		}
+		MemberCache.InvocationSite site;
+		try {
+			site = MemberCache.constructor(rplInvocationNode, type, args);
+		} catch (IllegalAccessException e) {
+			throw evalException(rplInvocationNode, "constructor for '" + typeName + "' failed", e);
+		}
+		if (site == null) {
+			throw evalException(rplInvocationNode, "cannot find a constructor for '" + typeName + "'", null);
+		}
+		try {
+			return (Object) site.handle.invokeExact(coerceArgs(site.parameterTypes, args));
+		} catch (Throwable t) {
+			throw evalException(rplInvocationNode, "constructor for '" + typeName + "' failed", t);
+		}
+	}
+
+	/**
+	 * Returns the class a constructor node creates, or null if there is no
+	 * such class.  Names without a package are looked up in
+	 * <code>java.lang</code> and then <code>java.util</code>.  The class is
+	 * only looked up the first time, so classes that can't be found don't
+	 * cost a <code>ClassNotFoundException</code> every time.
+	 */
+	static Class<?> constructorType(PdlInvocationNode rplInvocationNode) {
+		Class<?> type = rplInvocationNode.type;
+		if (type == null) {
+			String typeName = rplInvocationNode.getMethodName();
+			if (typeName.indexOf('.') < 0) {
+				type = findClass("java.lang." + typeName);
 				if (type == null) {
-					throw evalException(rplInvocationNode, "no such class '" + typeName + "'", null);
-				} else {
-					Object[] args = getInvocationArgs(rplInvocationNode);
-					for (Constructor<?> ctor : type.getConstructors()) {
-						if (isCallableWith(ctor.getParameterTypes(), args)) {
-							try {
-								Object value = ctor.newInstance(args);
-								setValue(rplInvocationNode, value);
-							} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-									| InvocationTargetException e) {
-								throw evalException(rplInvocationNode, "constructor for '" + typeName + "' failed", e);
-							}
-							return;
-						}
-					}
-					throw evalException(rplInvocationNode, "cannot find a constructor for '" + typeName + "'", null);
+					type = findClass("java.util." + typeName);
 				}
 			} else {
-				Object object = getValue(rplInvocationNode.getTarget());
-				if (object == null) {
-					return;
-				}
-				String name = rplInvocationNode.getMethodName();
-				Object[] args = getInvocationArgs(rplInvocationNode);
-				for (Method method : object.getClass().getMethods()) {
-					if (method.getName().equals(name) && isCallableWith(method.getParameterTypes(), args)) {
-						Object value;
-						try {
-							value = method.invoke(object, args);
-						} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-							throw evalException(rplInvocationNode, "invocation failed for '" + name + "'", e);
-						}
-						setValue(rplInvocationNode, value);
-						return;
-					}
-				}
-				throw evalException(rplInvocationNode, "cannot find method '" + name + "'", null);
+				type = findClass(typeName);
 			}
+			// void stands for a class that can't be found
+			rplInvocationNode.type = type = type != null ? type : Void.TYPE;
+		}
+		return type != Void.TYPE ? type : null;
+	}
+
+	static Object invoke(PdlInvocationNode rplInvocationNode, Object object, Object[] args) {
+		if (object == null) {
+			return null;
 		}
+		args = arguments(rplInvocationNode, args);
+		String name = rplInvocationNode.getMethodName();
+		MemberCache.InvocationSite site;
+		try {
+			site = MemberCache.method(rplInvocationNode, object.getClass(), args);
+		} catch (IllegalAccessException e) {
+			throw evalException(rplInvocationNode, "invocation failed for '" + name + "'", e);
+		}
+		if (site == null) {
+			throw evalException(rplInvocationNode, "cannot find method '" + name + "'", null);
+		}
+		try {
+			return (Object) site.handle.invokeExact(object, coerceArgs(site.parameterTypes, args));
+		} catch (Throwable t) {
+			throw evalException(rplInvocationNode, "invocation failed for '" + name + "'", t);
+		}
+	}
 
-		private boolean isCallableWith(Class<?>[] parameterTypes, Object[] args) {
-			if (parameterTypes.length != args.length) {
-				return false;
+	static boolean isCallableWith(Class<?>[] parameterTypes, Object[] args) {
+		if (parameterTypes.length != args.length) {
+			return false;
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (parameterTypes[i].isInstance(args[i])) {
+				continue;
 			}
-			for (int i = 0; i < args.length; i++) {
-				if (parameterTypes[i].isInstance(args[i])) {
+			// isInstance returns false for primitive types
+			Class<?> boxedClass = parameterTypes[i];
+			if (boxedClass.isPrimitive()) {
+				boxedClass = PRIMITIVE_TYPES.get(parameterTypes[i]);
+				if (boxedClass != null && boxedClass.isInstance(args[i])) {
 					continue;
 				}
-				// isInstance returns false for primitive types
-				if (parameterTypes[i].isPrimitive()) {
-					Class<?> boxedClass = PRIMITIVE_TYPES.get(parameterTypes[i]);
-					if (boxedClass != null && boxedClass.isInstance(args[i])) {
-						continue;
-					}
-				}
-				return false;
 			}
-			return true;
+			if (boxedClass == Integer.class && isInt(args[i])) {
+				continue;
+			}
+			return false;
 		}
+		return true;
+	}
 
-		public Object[] getInvocationArgs(PdlInvocationNode rplInvocationNode) {
-			Object[] args = new Object[rplInvocationNode.getArguments().size()];
-			for (int i = 0; i < args.length; i++) {
-				args[i] = getValue(rplInvocationNode.getArguments().get(i));
+	static boolean isInt(Object arg) {
+		return arg instanceof Long && (Long) arg == ((Long) arg).intValue();
+	}
+
+	/**
+	 * Numeric literals are passed as Longs, so narrow them to int where a method takes
+	 * an int.
+	 */
+	private static Object[] coerceArgs(Class<?>[] parameterTypes, Object[] args) {
+		Object[] coerced = args;
+		for (int i = 0; i < args.length; i++) {
+			if ((parameterTypes[i] == Integer.TYPE || parameterTypes[i] == Integer.class) && isInt(args[i])) {
+				if (coerced == args) {
+					coerced = args.clone();
+				}
+				coerced[i] = ((Long) args[i]).intValue();
 			}
-			return args;
 		}
+		return coerced;
+	}
 
-		private Class<?> findClass(String name) {
-			try {
-				return Class.forName(name);
-			} catch (ClassNotFoundException e) {
-				return null;
-			}
+	private static Class<?> findClass(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			return null;
 		}
+	}
 
-		@Override
-		public void postVisit(PdlSubscriptNode rplSubscriptNode) {
-			Object object = getValue(rplSubscriptNode.getTarget());
-			Object index = getValue(rplSubscriptNode.getIndex());
-			if (object instanceof Collection<?>) {
-				BigInteger bi = scope.asBigInteger(index);
-				if (bi != null) {
-					int i = bi.intValue();
-					if (i >= 0 && i < ((Collection<?>) object).size()) {
-						if (object instanceof List<?>) {
-							setValue(rplSubscriptNode, ((List<?>) object).get(i));
-						} else {
-							Iterator<?> iter = ((Collection<?>) object).iterator();
-							Object value = iter.next();
-							while (i > 0) {
-								value = iter.next();
-								i = i - 1;
-							}
-							setValue(rplSubscriptNode, value);
+	static Object subscript(ExpressionScope scope, PdlSubscriptNode rplSubscriptNode, Object object, Object index) {
+		if (object instanceof Collection<?>) {
+			BigInteger bi = scope.asBigInteger(index);
+			if (bi != null) {
+				int i = bi.intValue();
+				if (i >= 0 && i < ((Collection<?>) object).size()) {
+					if (object instanceof List<?>) {
+						return ((List<?>) object).get(i);
+					} else {
+						Iterator<?> iter = ((Collection<?>) object).iterator();
+						Object value = iter.next();
+						while (i > 0) {
+							value = iter.next();
+							i = i - 1;
 						}
+						return value;
 					}
-					return;
 				}
-			} else if (object instanceof Map<?, ?> && index != null) {
-				Map<?, ?> map = (Map<?, ?>) object;
-				setValue(rplSubscriptNode, map.get(index));
-			} else {
-				logger.warn(rplSubscriptNode.diagMessage("object is not subscriptable"));
-			}
-		}
-
-		@Override
-		public void postVisit(PdlDictNode rplDictNode) {
-			if (rplDictNode.isSet()) {
-				Set<Object> result = new LinkedHashSet<Object>();
-				for (Object element : rplDictNode.getDict().keySet()) {
-					result.add(getValue((PdlExpressionNode) element));
-				}
-				setValue(rplDictNode, result);
-			} else {
-				Map<Object, Object> result = new LinkedHashMap<Object, Object>();
-				for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
-					result.put(entry.getKey(), getValue((PdlExpressionNode) entry.getValue()));
-				}
-				setValue(rplDictNode, result);
 			}
+		} else if (object instanceof Map<?, ?> && index != null) {
+			Map<?, ?> map = (Map<?, ?>) object;
+			return map.get(index);
+		} else {
+			logger.warn(rplSubscriptNode.diagMessage("object is not subscriptable"));
 		}
+		return null;
 	}
 
 	private final ExpressionScope scope;
@@ -498,21 +728,10 @@ class Evaluator extends ValueFunctions {
 		scope = rplScope;
 	}
 
-	Object getValue(PdlExpressionNode expression) {
-		return scope.getValues().get(expression);
-	}
-
-	void setValue(PdlExpressionNode expression, Object value) {
-		scope.getValues().put(expression, value);
-		List<PdlNode> trace = scope.getTrace();
-		if (trace != null) {
-			trace.add(expression);
-		}
-	}
-
 	public Object eval(PdlExpressionNode expr) {
-		new EvalTraversal().traverse(expr);
-		return getValue(expr);
+		EvalTraversal traversal = new EvalTraversal(expr);
+		traversal.traverse(expr);
+		return traversal.getValue(expr);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,180 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles expression trees into trees of closures that return their values
+ * directly, rather than walking the tree and keeping intermediate values in
+ * a map as {@link Evaluator} does.  The closures call the same operations as
+ * the interpreter.  Compiled expressions are cached on their nodes, so a
+ * tree is only compiled the first time it is evaluated.
+ */
+class ExpressionCompiler extends PdlExpressionNodeVisitor {
+
+	private CompiledExpression result;
+
+	static CompiledExpression compile(PdlExpressionNode node) {
+		CompiledExpression compiled = node.compiled;
+		if (compiled == null) {
+			ExpressionCompiler compiler = new ExpressionCompiler();
+			node.accept(compiler);
+			// compiling the same node twice is harmless
+			compiled = node.compiled = compiler.result;
+		}
+		return compiled;
+	}
+
+	private static CompiledExpression[] compile(List<PdlExpressionNode> nodes) {
+		CompiledExpression[] compiled = new CompiledExpression[nodes.size()];
+		for (int i = 0; i < compiled.length; i++) {
+			compiled[i] = compile(nodes.get(i));
+		}
+		return compiled;
+	}
+
+	private static Object[] eval(CompiledExpression[] expressions, ExpressionScope scope) {
+		Object[] values = new Object[expressions.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = expressions[i].eval(scope);
+		}
+		return values;
+	}
+
+	@Override
+	public void visit(PdlConstantNode rplConstantNode) {
+		Object value = rplConstantNode.getConstant();
+		result = scope -> value;
+	}
+
+	@Override
+	public void visit(PdlGetValueNode rplGetValueNode) {
+		String name = rplGetValueNode.getName();
+		result = scope -> Evaluator.lookup(scope, name);
+	}
+
+	@Override
+	public void visit(PdlAttributeNode rplAttributeNode) {
+		CompiledExpression target = compile(rplAttributeNode.getTarget());
+		result = scope -> Evaluator.attribute(rplAttributeNode, target.eval(scope));
+	}
+
+	@Override
+	public void visit(PdlInvocationNode rplInvocationNode) {
+		CompiledExpression[] arguments = compile(rplInvocationNode.getArguments());
+		if (rplInvocationNode.isConstructor()) {
+			result = scope -> Evaluator.construct(rplInvocationNode, eval(arguments, scope));
+		} else {
+			CompiledExpression target = compile(rplInvocationNode.getTarget());
+			result = scope -> {
+				Object object = target.eval(scope);
+				return Evaluator.invoke(rplInvocationNode, object, eval(arguments, scope));
+			};
+		}
+	}
+
+	@Override
+	public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+		CompiledExpression left = compile(rplBinaryOperatorNode.getLeft());
+		CompiledExpression right = compile(rplBinaryOperatorNode.getRight());
+		switch (rplBinaryOperatorNode.getOperator()) {
+		case PdlBinaryOperatorNode.L_AND:
+			result = scope -> scope.isTrue(left.eval(scope)) ? right.eval(scope) : null;
+			break;
+		case PdlBinaryOperatorNode.L_OR:
+			result = scope -> {
+				Object value = left.eval(scope);
+				return scope.isTrue(value) ? value : right.eval(scope);
+			};
+			break;
+		default:
+			result = scope -> {
+				Object value = left.eval(scope);
+				return Evaluator.binary(scope, rplBinaryOperatorNode, value, right.eval(scope));
+			};
+		}
+	}
+
+	@Override
+	public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+		CompiledExpression target = compile(rplUnaryOperatorNode.getTarget());
+		if (rplUnaryOperatorNode.getOperator() == '!') {
+			result = scope -> scope.isTrue(target.eval(scope)) ? "false" : "true";
+		} else {
+			result = scope -> Evaluator.unary(scope, rplUnaryOperatorNode, target.eval(scope));
+		}
+	}
+
+	@Override
+	public void visit(PdlListNode rplListNode) {
+		CompiledExpression[] elements = compile(rplListNode.getElements());
+		result = scope -> {
+			Object[] values = new Object[elements.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = elements[i].eval(scope);
+			}
+			return ListValue.of(values);
+		};
+	}
+
+	@Override
+	public void visit(PdlSubscriptNode rplSubscriptNode) {
+		CompiledExpression target = compile(rplSubscriptNode.getTarget());
+		CompiledExpression index = compile(rplSubscriptNode.getIndex());
+		result = scope -> {
+			Object object = target.eval(scope);
+			return Evaluator.subscript(scope, rplSubscriptNode, object, index.eval(scope));
+		};
+	}
+
+	@Override
+	public void visit(PdlDictNode rplDictNode) {
+		if (rplDictNode.isSet()) {
+			List<PdlExpressionNode> nodes = new ArrayList<>();
+			for (Object element : rplDictNode.getDict().keySet()) {
+				nodes.add((PdlExpressionNode) element);
+			}
+			CompiledExpression[] elements = compile(nodes);
+			result = scope -> {
+				LinkedHashSet<Object> values = new LinkedHashSet<>();
+				for (CompiledExpression element : elements) {
+					values.add(element.eval(scope));
+				}
+				return SetValue.of(values);
+			};
+		} else {
+			List<PdlExpressionNode> nodes = new ArrayList<>();
+			Object[] keys = new Object[rplDictNode.getDict().size()];
+			for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
+				keys[nodes.size()] = entry.getKey();
+				nodes.add((PdlExpressionNode) entry.getValue());
+			}
+			CompiledExpression[] values = compile(nodes);
+			result = scope -> {
+				LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+				for (int i = 0; i < keys.length; i++) {
+					map.put(keys[i], values[i].eval(scope));
+				}
+				return MapValue.of(map);
+			};
+		}
+	}
+
+}
@@ -14,18 +14,36 @@
 
 package pdl;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 abstract class ExpressionScope extends ValueFunctions {
 
-	private final Map<PdlExpressionNode, Object> values = new HashMap<>();
-
 	abstract Object eval(String name);
 	
 	abstract List<PdlNode> getTrace();
 
-	Map<PdlExpressionNode, Object> getValues() { return values; }
+	abstract boolean isInterpreted();
+
+	/**
+	 * Evaluates an expression in this scope, using the compiled form unless
+	 * the scope is tracing or asks for the interpreter.
+	 */
+	Object evaluate(PdlExpressionNode node) {
+		if (isInterpreted() || getTrace() != null) {
+			return new Evaluator(this).eval(node);
+		}
+		CompiledRuleSet ruleSet = getRuleSet();
+		if (ruleSet != null) {
+			return ruleSet.evaluate(node, this);
+		}
+		return ExpressionCompiler.compile(node).eval(this);
+	}
+
+	/**
+	 * Returns the generated class to evaluate with, if any.
+	 */
+	CompiledRuleSet getRuleSet() {
+		return null;
+	}
 
 }
@@ -0,0 +1,106 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.List;
+
+/**
+ * Numbers the nodes of expression trees in post order, so each node has a
+ * slot in the array {@link Evaluator} keeps intermediate values in while it
+ * evaluates the tree, and the root's slot is the last.  Trees are numbered
+ * once they are parsed and folded or loaded.
+ */
+class FrameLayout extends PdlExpressionNodeTraversal {
+	private int slots;
+
+	static void number(List<PdlConditionalAssignment> rules) {
+		for (PdlConditionalAssignment rule : rules) {
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				number(block.getCondition());
+			}
+			if (rule.getPropertySet() != null) {
+				for (PdlExpressionNode value : rule.getPropertySet().getProperties().values()) {
+					number(value);
+				}
+			} else if (rule.getValue() != null) {
+				number(rule.getValue());
+			}
+		}
+	}
+
+	static void number(PdlExpressionNode root) {
+		new FrameLayout().traverse(root);
+	}
+
+	/**
+	 * Returns the number of slots needed to evaluate a tree.
+	 */
+	static int frameSize(PdlExpressionNode root) {
+		if (root.slot < 0) {
+			number(root);
+		}
+		return root.slot + 1;
+	}
+
+	private void assign(PdlExpressionNode node) {
+		node.slot = slots++;
+	}
+
+	@Override
+	public void postVisit(PdlDictNode rplDictNode) {
+		assign(rplDictNode);
+	}
+
+	@Override
+	public void postVisit(PdlSubscriptNode rplSubscriptNode) {
+		assign(rplSubscriptNode);
+	}
+
+	@Override
+	public void postVisit(PdlGetValueNode rplGetValueNode) {
+		assign(rplGetValueNode);
+	}
+
+	@Override
+	public void postVisit(PdlListNode rplListNode) {
+		assign(rplListNode);
+	}
+
+	@Override
+	public void postVisit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+		assign(rplUnaryOperatorNode);
+	}
+
+	@Override
+	public void postVisit(PdlAttributeNode rplAttributeNode) {
+		assign(rplAttributeNode);
+	}
+
+	@Override
+	public void postVisit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+		assign(rplBinaryOperatorNode);
+	}
+
+	@Override
+	public void postVisit(PdlConstantNode rplConstantNode) {
+		assign(rplConstantNode);
+	}
+
+	@Override
+	public void postVisit(PdlInvocationNode rplInvocationNode) {
+		assign(rplInvocationNode);
+	}
+
+}
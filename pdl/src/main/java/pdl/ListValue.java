@@ -0,0 +1,99 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The immutable list a list literal, or adding to a list, evaluates to.
+ * Adding to a list shares its elements with the result: the first list to
+ * add to a backing array claims the free space after its elements, so a
+ * run of <code>+=</code> rules builds a list without copying it each time,
+ * and every list along the way keeps its value.
+ */
+final class ListValue extends AbstractList<Object> implements RandomAccess {
+	static final ListValue EMPTY = new ListValue(new Elements(new Object[0], 0), 0);
+
+	private static final class Elements {
+		final Object[] array;
+		// how much of the array is claimed by some list
+		final AtomicInteger used;
+
+		Elements(Object[] array, int used) {
+			this.array = array;
+			this.used = new AtomicInteger(used);
+		}
+	}
+
+	private final Elements elements;
+	private final int size;
+
+	private ListValue(Elements elements, int size) {
+		this.elements = elements;
+		this.size = size;
+	}
+
+	/**
+	 * Returns a list of the values, which must not be changed afterwards.
+	 */
+	static ListValue of(Object[] values) {
+		return new ListValue(new Elements(values, values.length), values.length);
+	}
+
+	static ListValue copyOf(Collection<?> collection) {
+		if (collection instanceof ListValue) {
+			return (ListValue) collection;
+		}
+		return of(collection.toArray());
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return elements.array[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns this list with the elements of a collection, or a single value,
+	 * added to the end.
+	 */
+	ListValue plus(Object value) {
+		Object[] values = value instanceof Collection<?> ? ((Collection<?>) value).toArray() : new Object[] { value };
+		if (values.length == 0) {
+			return this;
+		}
+		int newSize = size + values.length;
+		Object[] array = elements.array;
+		Elements target = elements;
+		if (newSize > array.length || !elements.used.compareAndSet(size, newSize)) {
+			array = new Object[Math.max(newSize, size * 2)];
+			System.arraycopy(elements.array, 0, array, 0, size);
+			target = new Elements(array, newSize);
+		}
+		System.arraycopy(values, 0, array, size, values.length);
+		return new ListValue(target, newSize);
+	}
+
+}
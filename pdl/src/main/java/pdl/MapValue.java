@@ -0,0 +1,91 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The immutable map a dict literal, or adding to or subtracting from a
+ * map, evaluates to.  Changing a map copies it.
+ */
+final class MapValue extends AbstractMap<Object, Object> {
+	private final Map<Object, Object> map;
+
+	private MapValue(Map<Object, Object> map) {
+		this.map = map;
+	}
+
+	/**
+	 * Returns a map of the entries, which must not be changed afterwards.
+	 */
+	static MapValue of(LinkedHashMap<Object, Object> entries) {
+		return new MapValue(entries);
+	}
+
+	static MapValue copyOf(Map<?, ?> map) {
+		if (map instanceof MapValue) {
+			return (MapValue) map;
+		}
+		return new MapValue(new LinkedHashMap<Object, Object>(map));
+	}
+
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() {
+		return Collections.unmodifiableMap(map).entrySet();
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Returns this map with the entries of another map added.
+	 */
+	MapValue plus(Map<?, ?> entries) {
+		LinkedHashMap<Object, Object> result = new LinkedHashMap<Object, Object>(map);
+		result.putAll(entries);
+		return new MapValue(result);
+	}
+
+	/**
+	 * Returns this map without the keys in a collection, or a single key.
+	 */
+	MapValue minus(Object keys) {
+		LinkedHashMap<Object, Object> result = new LinkedHashMap<Object, Object>(map);
+		if (keys instanceof Collection<?>) {
+			result.keySet().removeAll((Collection<?>) keys);
+		} else {
+			result.remove(keys);
+		}
+		return new MapValue(result);
+	}
+
+}
@@ -0,0 +1,330 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the fields, getters, methods and constructors used by attribute
+ * and invocation nodes to method handles.  Members are looked up by name once per class and
+ * kept in a bounded cache shared by every parser, and each node remembers
+ * what it resolved for the last class it saw, so a node that always sees the
+ * same class goes straight to the handle.
+ */
+final class MemberCache {
+	static final int MAX_CLASSES = 512;
+
+	private static final Logger logger = LoggerFactory.getLogger(MemberCache.class);
+	private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodHandle NO_ATTRIBUTE = MethodHandles
+			.dropArguments(MethodHandles.constant(Object.class, null), 0, Object.class);
+	// stands for a Long argument that fits in an int, see Evaluator.isCallableWith
+	private static final Class<?> INT_LONG = Integer.TYPE;
+
+	private static final Map<Class<?>, ClassMembers> classes = Collections
+			.synchronizedMap(new LinkedHashMap<Class<?>, ClassMembers>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Class<?>, ClassMembers> eldest) {
+					return size() > MAX_CLASSES;
+				}
+			});
+
+	/**
+	 * The handle an attribute node resolved for a receiver class.
+	 */
+	static final class AttributeSite {
+		final Class<?> type;
+		final MethodHandle getter;
+
+		AttributeSite(Class<?> type, MethodHandle getter) {
+			this.type = type;
+			this.getter = getter;
+		}
+	}
+
+	/**
+	 * The method an invocation node resolved for a receiver class and the
+	 * argument types it was called with.  For a constructor the class is the
+	 * one created, and the handle takes just the arguments.
+	 */
+	static final class InvocationSite {
+		final Class<?> type;
+		final Class<?>[] argTypes;
+		final Class<?>[] parameterTypes;
+		final MethodHandle handle;
+
+		InvocationSite(Class<?> type, Class<?>[] argTypes, Executable executable, MethodHandle handle) {
+			this.type = type;
+			this.argTypes = argTypes;
+			this.parameterTypes = executable.getParameterTypes();
+			this.handle = handle;
+		}
+
+		boolean matches(Class<?> type, Object[] args) {
+			if (this.type != type || argTypes.length != args.length) {
+				return false;
+			}
+			for (int i = 0; i < args.length; i++) {
+				if (argTypes[i] != argType(args[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class ClassMembers {
+		private final Class<?> type;
+		private final Map<String, Method[]> methods = new HashMap<>();
+		private final ConcurrentHashMap<String, MethodHandle> getters = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<Executable, MethodHandle> handles = new ConcurrentHashMap<>();
+		private volatile Constructor<?>[] constructors;
+
+		ClassMembers(Class<?> type) {
+			this.type = type;
+			Map<String, List<Method>> byName = new LinkedHashMap<>();
+			for (Method method : type.getMethods()) {
+				byName.computeIfAbsent(method.getName(), k -> new ArrayList<>()).add(method);
+			}
+			for (Map.Entry<String, List<Method>> entry : byName.entrySet()) {
+				methods.put(entry.getKey(), entry.getValue().toArray(new Method[0]));
+			}
+		}
+
+		MethodHandle getter(String attributeName) {
+			return getters.computeIfAbsent(attributeName, this::findGetter);
+		}
+
+		private MethodHandle findGetter(String attributeName) {
+			try {
+				for (Field field : type.getFields()) {
+					if (field.getName().equals(attributeName)) {
+						MethodHandle handle = lookup.unreflectGetter(field);
+						if (Modifier.isStatic(field.getModifiers())) {
+							handle = MethodHandles.dropArguments(handle, 0, Object.class);
+						}
+						return handle.asType(GETTER);
+					}
+				}
+				String getterName = "get" + Character.toUpperCase(attributeName.charAt(0));
+				if (attributeName.length() > 1) {
+					getterName += attributeName.substring(1);
+				}
+				Method[] candidates = methods.get(getterName);
+				if (candidates != null) {
+					for (Method method : candidates) {
+						if (method.getParameterTypes().length == 0) {
+							return handle(method).asType(GETTER);
+						}
+					}
+				}
+			} catch (IllegalAccessException e) {
+				logger.warn("could not get value of '" + attributeName + "'", e);
+			}
+			return NO_ATTRIBUTE;
+		}
+
+		Method findMethod(String name, Object[] args) {
+			Method[] candidates = methods.get(name);
+			if (candidates != null) {
+				for (Method method : candidates) {
+					if (Evaluator.isCallableWith(method.getParameterTypes(), args)) {
+						return method;
+					}
+				}
+			}
+			return null;
+		}
+
+		Constructor<?> findConstructor(Object[] args) {
+			Constructor<?>[] candidates = constructors;
+			if (candidates == null) {
+				candidates = type.getConstructors();
+				constructors = candidates;
+			}
+			for (Constructor<?> constructor : candidates) {
+				if (Evaluator.isCallableWith(constructor.getParameterTypes(), args)) {
+					return constructor;
+				}
+			}
+			return null;
+		}
+
+		/*
+		 * A handle taking an Object[] of arguments.
+		 */
+		MethodHandle spreader(Constructor<?> constructor) throws IllegalAccessException {
+			MethodHandle handle = handles.get(constructor);
+			if (handle == null) {
+				int arity = constructor.getParameterTypes().length;
+				handle = lookup.unreflectConstructor(constructor).asFixedArity()
+						.asType(MethodType.genericMethodType(arity)).asSpreader(Object[].class, arity);
+				handles.put(constructor, handle);
+			}
+			return handle;
+		}
+
+		/*
+		 * A handle taking the receiver and an Object[] of arguments.
+		 */
+		MethodHandle spreader(Method method) throws IllegalAccessException {
+			MethodHandle handle = handles.get(method);
+			if (handle == null) {
+				int arity = method.getParameterTypes().length;
+				handle = handle(method).asType(MethodType.genericMethodType(arity + 1)).asSpreader(Object[].class,
+						arity);
+				handles.put(method, handle);
+			}
+			return handle;
+		}
+
+		private MethodHandle handle(Method method) throws IllegalAccessException {
+			MethodHandle handle;
+			try {
+				handle = lookup.unreflect(method).asFixedArity();
+			} catch (IllegalAccessException e) {
+				// a public method of a class that isn't public or exported,
+				// so call it through a public class or interface instead
+				handle = inherited(type, method);
+				if (handle == null) {
+					throw e;
+				}
+			}
+			if (Modifier.isStatic(method.getModifiers())) {
+				handle = MethodHandles.dropArguments(handle, 0, Object.class);
+			}
+			return handle;
+		}
+
+		private static MethodHandle inherited(Class<?> type, Method method) {
+			if (type == null || Modifier.isStatic(method.getModifiers())) {
+				return null;
+			}
+			if (Modifier.isPublic(type.getModifiers())) {
+				try {
+					return lookup.unreflect(type.getMethod(method.getName(), method.getParameterTypes())).asFixedArity();
+				} catch (NoSuchMethodException | IllegalAccessException e) {
+					// keep looking
+				}
+			}
+			for (Class<?> superType : type.getInterfaces()) {
+				MethodHandle handle = inherited(superType, method);
+				if (handle != null) {
+					return handle;
+				}
+			}
+			return inherited(type.getSuperclass(), method);
+		}
+	}
+
+	private MemberCache() {
+	}
+
+	private static ClassMembers members(Class<?> type) {
+		ClassMembers members = classes.get(type);
+		if (members == null) {
+			members = new ClassMembers(type);
+			classes.put(type, members);
+		}
+		return members;
+	}
+
+	private static Class<?>[] argTypes(Object[] args) {
+		Class<?>[] argTypes = new Class<?>[args.length];
+		for (int i = 0; i < args.length; i++) {
+			argTypes[i] = argType(args[i]);
+		}
+		return argTypes;
+	}
+
+	private static Class<?> argType(Object arg) {
+		if (arg == null) {
+			return null;
+		}
+		return Evaluator.isInt(arg) ? INT_LONG : arg.getClass();
+	}
+
+	/**
+	 * Returns a handle of type <code>(Object)Object</code> that gets the
+	 * attribute from an object of the given class, or returns null if there is
+	 * no such attribute.
+	 */
+	static MethodHandle getter(PdlAttributeNode node, Class<?> type) {
+		AttributeSite site = node.site;
+		if (site == null || site.type != type) {
+			site = new AttributeSite(type, members(type).getter(node.getAttributeName()));
+			node.site = site;
+		}
+		return site.getter;
+	}
+
+	/**
+	 * Returns the site for calling the node's method on an object of the given
+	 * class with the arguments, or null if there is no such method.
+	 */
+	static InvocationSite method(PdlInvocationNode node, Class<?> type, Object[] args) throws IllegalAccessException {
+		InvocationSite site = node.site;
+		if (site == null || !site.matches(type, args)) {
+			ClassMembers members = members(type);
+			Method method = members.findMethod(node.getMethodName(), args);
+			if (method == null) {
+				return null;
+			}
+			site = new InvocationSite(type, argTypes(args), method, members.spreader(method));
+			node.site = site;
+		}
+		return site;
+	}
+
+	/**
+	 * Returns the site for creating an object of the given class with the
+	 * arguments, or null if it has no such constructor.
+	 */
+	static InvocationSite constructor(PdlInvocationNode node, Class<?> type, Object[] args)
+			throws IllegalAccessException {
+		InvocationSite site = node.site;
+		if (site == null || !site.matches(type, args)) {
+			ClassMembers members = members(type);
+			Constructor<?> constructor = members.findConstructor(args);
+			if (constructor == null) {
+				return null;
+			}
+			site = new InvocationSite(type, argTypes(args), constructor, members.spreader(constructor));
+			node.site = site;
+		}
+		return site;
+	}
+
+}
@@ -0,0 +1,176 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs an action for every property of a scope on an executor.  The
+ * properties are ordered by the names their rules refer to: a property is
+ * started once every property it refers to has been done, and properties
+ * that don't refer to each other run at the same time.  Properties that
+ * are part of a cycle, or refer to one, are left to run one at a time at
+ * the end, where they fail as they would in {@link PdlScope#toMap()}.
+ */
+final class ParallelEvaluator {
+	private final int[][] dependents;
+	private final AtomicInteger[] pending;
+	private final Executor executor;
+	private final IntConsumer action;
+	// tasks submitted but not finished, plus one until all roots are submitted
+	private final AtomicInteger running = new AtomicInteger(1);
+	private final CompletableFuture<Void> finished = new CompletableFuture<>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	/**
+	 * @param names the names of the properties, in order
+	 * @param action called with the index of each property in names
+	 */
+	ParallelEvaluator(List<String> names, Map<String, PdlAssignment> assignments, Executor executor,
+			IntConsumer action) {
+		this.executor = executor;
+		this.action = action;
+		Map<String, Integer> indexes = new HashMap<>();
+		for (int i = 0; i < names.size(); i++) {
+			indexes.put(names.get(i), i);
+		}
+		List<List<Integer>> edges = new ArrayList<>();
+		pending = new AtomicInteger[names.size()];
+		for (int i = 0; i < names.size(); i++) {
+			edges.add(new ArrayList<>());
+		}
+		for (int i = 0; i < names.size(); i++) {
+			Set<Integer> dependencies = new LinkedHashSet<>();
+			for (String name : references(assignments.get(names.get(i)))) {
+				Integer dependency = indexes.get(name);
+				if (dependency != null) {
+					dependencies.add(dependency);
+				}
+			}
+			for (Integer dependency : dependencies) {
+				edges.get(dependency).add(i);
+			}
+			pending[i] = new AtomicInteger(dependencies.size());
+		}
+		dependents = new int[names.size()][];
+		for (int i = 0; i < dependents.length; i++) {
+			List<Integer> list = edges.get(i);
+			dependents[i] = new int[list.size()];
+			for (int j = 0; j < list.size(); j++) {
+				dependents[i][j] = list.get(j);
+			}
+		}
+	}
+
+	/*
+	 * The names of properties an assignment's rules refer to.  Names that
+	 * turn out to be properties of a property set are included too, which
+	 * only costs some parallelism.
+	 */
+	private static Set<String> references(PdlAssignment assignment) {
+		Set<String> names = new LinkedHashSet<>();
+		PdlExpressionNodeTraversal traversal = new PdlExpressionNodeTraversal() {
+			@Override
+			public void postVisit(PdlGetValueNode rplGetValueNode) {
+				names.add(rplGetValueNode.getName());
+			}
+		};
+		for (PdlConditionalAssignment rule : assignment.getConditionalAssignments()) {
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				traversal.traverse(block.getCondition());
+			}
+			if (rule.getPropertySet() != null) {
+				for (PdlExpressionNode value : rule.getPropertySet().getProperties().values()) {
+					traversal.traverse(value);
+				}
+			} else if (rule.getValue() != null) {
+				traversal.traverse(rule.getValue());
+			}
+		}
+		return names;
+	}
+
+	void run() {
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i].get() == 0) {
+				submit(i);
+			}
+		}
+		finish();
+		try {
+			finished.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PdlEvalException("interrupted while evaluating", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new PdlEvalException("evaluation failed", t);
+		}
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i].get() > 0) {
+				action.accept(i);
+			}
+		}
+	}
+
+	private void submit(int property) {
+		running.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					action.accept(property);
+					for (int dependent : dependents[property]) {
+						if (pending[dependent].decrementAndGet() == 0) {
+							submit(dependent);
+						}
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finish();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			failure.compareAndSet(null, e);
+			finish();
+		}
+	}
+
+	private void finish() {
+		if (running.decrementAndGet() == 0) {
+			finished.complete(null);
+		}
+	}
+
+}
@@ -21,6 +21,8 @@ public class PdlAssignment {
 	
 	private final String name;
 	private final List<PdlConditionalAssignment> conditionalAssignments = new ArrayList<>();
+	// built by RuleIndex.of, and cleared by the parser when the rules change
+	volatile RuleIndex index;
 
 	public PdlAssignment(String name) {
 		this.name = name;
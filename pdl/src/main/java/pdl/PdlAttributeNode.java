@@ -16,6 +16,9 @@ package pdl;
 
 public class PdlAttributeNode extends PdlExpressionNode {
 
+	// set by MemberCache
+	volatile MemberCache.AttributeSite site;
+
 	private PdlExpressionNode target;
 	private String attributeName;
 
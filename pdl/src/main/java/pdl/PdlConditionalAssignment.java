@@ -15,12 +15,15 @@
 package pdl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class PdlConditionalAssignment extends PdlNode {
 
 	private final String name;
-	private final List<PdlExpressionNode> conditions = new ArrayList<>();
+	// the conditions of the enclosing blocks, set by ConditionTable
+	long[] mask;
+	private PdlConditionalBlock block;
 	private PdlPropertySetNode propertySet;
 	private PdlExpressionNode value;
 	private boolean override;
@@ -34,8 +37,29 @@ public class PdlConditionalAssignment extends PdlNode {
 		return name;
 	}
 
+	/**
+	 * Returns the innermost block the assignment is in, or null if it is
+	 * unconditional.
+	 */
+	public PdlConditionalBlock getBlock() {
+		return block;
+	}
+
+	public void setBlock(PdlConditionalBlock block) {
+		this.block = block;
+	}
+
+	/**
+	 * Returns the conditions of the enclosing blocks, outermost first.  The
+	 * list can't be changed; the conditions belong to the blocks.
+	 */
 	public List<PdlExpressionNode> getConditions() {
-		return conditions;
+		List<PdlExpressionNode> conditions = new ArrayList<>();
+		for (PdlConditionalBlock b = block; b != null; b = b.getParent()) {
+			conditions.add(b.getCondition());
+		}
+		Collections.reverse(conditions);
+		return Collections.unmodifiableList(conditions);
 	}
 
 	public PdlExpressionNode getValue() {
@@ -0,0 +1,49 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+/**
+ * An <code>if</code> block.  The rules inside a block share it, and through
+ * its parent the blocks it is nested in, so each condition is a single node
+ * however many rules it guards, and is evaluated once per scope.
+ */
+public class PdlConditionalBlock {
+
+	// the number of the condition, set by ConditionTable
+	int id = -1;
+	private final PdlConditionalBlock parent;
+	private PdlExpressionNode condition;
+
+	public PdlConditionalBlock(PdlConditionalBlock parent, PdlExpressionNode condition) {
+		this.parent = parent;
+		this.condition = condition;
+	}
+
+	/**
+	 * Returns the enclosing block, or null at the top level.
+	 */
+	public PdlConditionalBlock getParent() {
+		return parent;
+	}
+
+	public PdlExpressionNode getCondition() {
+		return condition;
+	}
+
+	public void setCondition(PdlExpressionNode condition) {
+		this.condition = condition;
+	}
+
+}
@@ -15,20 +15,66 @@
 package pdl;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 
 public class PdlConstantNode extends PdlExpressionNode {
 
 	private String value;
+	private Object constant;
+	private Number number;
 
+	/**
+	 * Returns the text of the literal.
+	 */
 	public String getValue() {
 		return value;
 	}
 
+	/**
+	 * Sets the text of the literal, which is also the value it evaluates to
+	 * unless {@link #setConstant(Object)} is called.
+	 */
 	public void setValue(String value) {
 		this.value = value;
+		this.constant = value;
 	}
-	
+
+	/**
+	 * Returns the value the literal evaluates to, which is the text of the
+	 * literal unless it was folded from an expression.
+	 */
+	public Object getConstant() {
+		return constant;
+	}
+
+	public void setConstant(Object constant) {
+		this.constant = constant;
+	}
+
+	/**
+	 * Returns the number a numeric literal was decoded to when it was
+	 * parsed, or null.  Numeric literals still evaluate to their text, so
+	 * <code>ZIP = 02134</code> keeps its leading zero, and the decoded
+	 * number only saves parsing the text again where a number is needed,
+	 * such as arithmetic and comparisons.
+	 */
+	public Number getNumber() {
+		return number;
+	}
+
+	public void setNumber(Number number) {
+		this.number = number;
+	}
+
 	public BigDecimal asNumber() {
+		Object constant = number != null ? number : this.constant;
+		if (constant instanceof BigDecimal) {
+			return (BigDecimal) constant;
+		} else if (constant instanceof BigInteger) {
+			return new BigDecimal((BigInteger) constant);
+		} else if (constant instanceof Long) {
+			return BigDecimal.valueOf((Long) constant);
+		}
 		try {
 			return new BigDecimal(value);
 		} catch (NumberFormatException e) {
@@ -36,11 +82,65 @@ public class PdlConstantNode extends PdlExpressionNode {
 		}
 	}
 
+	/**
+	 * Returns the integer the text of a literal means where a number is
+	 * needed, the same one the text would be parsed to, or null if it isn't
+	 * an integer.  Decimals are left to be parsed from the text, which
+	 * caches them, since they aren't integers where one is needed even if
+	 * their value is whole; and hex literals aren't numbers at all, as with
+	 * any other string written that way.
+	 */
+	static Number numberOf(String text) {
+		return ValueFunctions.classify(text) == ValueFunctions.INTEGER ? decodeNumber(text) : null;
+	}
+
+	/**
+	 * Decodes the text of a NUMBER token: integers become a {@link Long} if
+	 * they fit and a {@link BigInteger} if they don't, hex integers are
+	 * written <code>0x...</code>, and anything with a fraction or exponent
+	 * becomes a {@link BigDecimal}.
+	 * 
+	 * @throws NumberFormatException if the text isn't a number
+	 */
+	static Number decodeNumber(String text) {
+		int start = 0;
+		boolean negative = false;
+		if (text.startsWith("-") || text.startsWith("+")) {
+			negative = text.charAt(0) == '-';
+			start = 1;
+		}
+		int radix = 10;
+		if (text.regionMatches(true, start, "0x", 0, 2)) {
+			radix = 16;
+			start += 2;
+		}
+		int length = text.length() - start;
+		if (length == 0) {
+			throw new NumberFormatException(text);
+		}
+		if (radix == 10) {
+			for (int i = start; i < text.length(); i++) {
+				char ch = text.charAt(i);
+				if (ch < '0' || ch > '9') {
+					return new BigDecimal(text);
+				}
+			}
+		}
+		// at most 18 decimal or 15 hex digits can't overflow a long
+		if (length <= (radix == 10 ? 18 : 15)) {
+			long n = Long.parseLong(text.substring(start), radix);
+			return negative ? -n : n;
+		}
+		BigInteger n = new BigInteger(text.substring(start), radix);
+		if (negative) {
+			n = n.negate();
+		}
+		return n.bitLength() < 64 ? (Number) n.longValue() : n;
+	}
+
 	@Override
 	public void accept(PdlExpressionNodeVisitor visitor) {
 		visitor.visit(this);
 	}
 
-
-
 }
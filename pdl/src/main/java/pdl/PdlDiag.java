@@ -16,11 +16,37 @@ package pdl;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class PdlDiag extends PdlParser {
-	private final SourceMap sourceMap = new SourceMap();
+	private final SourceMap sourceMap;
+
+	public PdlDiag() {
+		this(new SourceMap());
+	}
+
+	/**
+	 * @param sourceMap
+	 *            where the lines printed by {@link #explain(String)} come
+	 *            from, for example a lazy {@link SourceMap#SourceMap(boolean)}
+	 */
+	public PdlDiag(SourceMap sourceMap) {
+		this.sourceMap = sourceMap;
+	}
+
+	@Override
+	PdlParser createWorker() {
+		return new PdlDiag(sourceMap);
+	}
+
+	@Override
+	void discard(List<PdlConditionalAssignment> rules) {
+		for (PdlConditionalAssignment rule : rules) {
+			sourceMap.remove(rule.getSource());
+		}
+	}
 
 	public String explain(String fullname) {
 		String name = fullname;
@@ -102,4 +128,11 @@ public class PdlDiag extends PdlParser {
 		super.parse(reader, filename);
 	}
 
+	@Override
+	void parse(ByteBuffer content, String filename) throws IOException {
+		filename = new String(filename);
+		sourceMap.ingest(content, filename);
+		super.parse(content, filename);
+	}
+
 }
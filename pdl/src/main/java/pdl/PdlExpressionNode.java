@@ -16,6 +16,11 @@ package pdl;
 
 public abstract class PdlExpressionNode extends PdlNode {
 
+	// set by ExpressionCompiler
+	CompiledExpression compiled;
+	// set by FrameLayout
+	int slot = -1;
+
 	public abstract void accept(PdlExpressionNodeVisitor visitor);
 
 }
@@ -19,6 +19,11 @@ import java.util.List;
 
 public class PdlInvocationNode extends PdlExpressionNode {
 
+	// set by MemberCache
+	volatile MemberCache.InvocationSite site;
+	// the class a constructor creates, set by Evaluator.constructorType
+	volatile Class<?> type;
+
 	private boolean constructor;
 	private String methodName;
 	private PdlExpressionNode target;
@@ -0,0 +1,60 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+/**
+ * Receives the statements of a source as they are parsed by
+ * {@link PdlParser#parse(java.io.Reader, String, PdlParseListener)}, for
+ * tools that only need to know what is assigned where and don't need the
+ * parser's result.
+ * <p>
+ * Unless {@link #isExpressionNeeded()} returns true, expressions are
+ * skipped over without building nodes for them, and are passed to the
+ * listener as null.
+ */
+public class PdlParseListener {
+
+	/**
+	 * Returns true if expression nodes should be built for conditions,
+	 * values and property set members.
+	 */
+	public boolean isExpressionNeeded() {
+		return false;
+	}
+
+	/**
+	 * Called at the start of an <code>if</code> block.
+	 * 
+	 * @param condition the condition, or null if expressions are skipped
+	 */
+	public void startConditionalBlock(PdlExpressionNode condition, String source, int line) {
+	}
+
+	/**
+	 * Called at the closing brace of an <code>if</code> block.
+	 */
+	public void endConditionalBlock() {
+	}
+
+	/**
+	 * Called for each assignment.  The enclosing blocks are not recorded in
+	 * {@link PdlConditionalAssignment#getBlock()}.  If expressions are
+	 * skipped, the value is null, and a property set only maps its property
+	 * names to null.
+	 */
+	public void assignment(PdlConditionalAssignment assignment) {
+	}
+
+}
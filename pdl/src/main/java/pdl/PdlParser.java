@@ -14,12 +14,34 @@
 
 package pdl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * PdlParser parses a series of input sources in the 
@@ -30,9 +52,22 @@ import java.util.Map;
 public class PdlParser {
 
 	private final Map<String, PdlAssignment> assignments = new LinkedHashMap<>();
-	private final List<PdlExpressionNode> conditions = new ArrayList<>();
+	private PdlConditionalBlock block;
+	private final ConditionTable conditions = new ConditionTable();
+	// the rules of each source name, in the order the sources were first parsed
+	private final Map<String, List<PdlConditionalAssignment>> sources = new LinkedHashMap<>();
+	// the assignments made or copied since the last getResult(), which no
+	// scope can be using, so they can be changed in place
+	private final Set<PdlAssignment> unshared = Collections.newSetFromMap(new IdentityHashMap<>());
 	private String source;
+	private List<PdlConditionalAssignment> sourceRules;
+	private PdlParseListener listener;
+	// true while an expression is parsed without building nodes for it
+	private boolean skipping;
 	private PushbackTokenizer tokenizer;
+	private char[] buffer;
+	private CompiledRuleSet ruleSet;
+	private Set<String> constructibleClasses;
 
 	public PdlParser() {
 	}
@@ -42,12 +77,51 @@ public class PdlParser {
 		return assignments;
 	}
 
+	//@VisibleForTesting
+	ConditionTable getConditions() {
+		return conditions;
+	}
+
 	/**
 	 * Returns the top-level scope of all parsed language statements
-	 * so far.
+	 * so far.  The scope keeps the rules it was created with; parsing or
+	 * reparsing sources afterwards only changes the rules of later scopes.
 	 */
 	public PdlScope getResult() {
-		return new PdlScope(new LinkedHashMap<>(assignments));
+		unshared.clear();
+		return new PdlScope(new LinkedHashMap<>(assignments), ruleSet, conditions.size());
+	}
+
+	/**
+	 * Compiles the rules parsed so far into a generated class, so that
+	 * scopes returned by {@link #getResult()} evaluate them as JVM code
+	 * rather than by walking expression trees.  This is worth doing once the
+	 * rules are complete and will be evaluated many times.  Parsing or
+	 * loading more rules discards the compiled class.  If the rules can't be
+	 * compiled a warning is logged and they are evaluated as before.
+	 */
+	public void compile() {
+		unshared.clear();
+		ruleSet = RuleCompiler.compile(assignments.values());
+	}
+
+	/**
+	 * Limits the classes that <code>new</code> expressions may create.
+	 * Rules that create any other class, or a class that can't be found,
+	 * are rejected with a {@link SyntaxException} when they are parsed or
+	 * loaded, rather than when they are evaluated.  By default any class may
+	 * be created.
+	 * 
+	 * @param classNames fully qualified names of the classes that may be
+	 *   created, or null to allow any class
+	 */
+	public void setConstructibleClasses(Collection<String> classNames) {
+		constructibleClasses = classNames != null ? new HashSet<>(classNames) : null;
+	}
+
+	private boolean isConstructible(PdlInvocationNode node) {
+		Class<?> type = Evaluator.constructorType(node);
+		return type != null && constructibleClasses.contains(type.getName());
 	}
 
 	private <T extends PdlNode> T create(T node) {
@@ -67,15 +141,399 @@ public class PdlParser {
 	 * @throws IOException
 	 */
 	public void parse(Reader in, String filename) throws IOException {
+		Tokenizer scanner = new Tokenizer(in, buffer);
+		try {
+			parse(scanner, filename);
+		} finally {
+			// keep the scan buffer for the next source, unless it grew too large
+			buffer = scanner.getBuffer();
+		}
+	}
+
+	/**
+	 * Parses a source, passing each block and assignment to
+	 * <code>listener</code> instead of adding them to the result.
+	 * 
+	 * @param in the textual source of the statements
+	 * @param filename the name of the source.  May be null.
+	 * @param listener receives the statements
+	 * @throws IOException
+	 */
+	public void parse(Reader in, String filename, PdlParseListener listener) throws IOException {
+		Tokenizer scanner = new Tokenizer(in, buffer);
+		this.listener = listener;
+		try {
+			parse(scanner, filename);
+		} finally {
+			buffer = scanner.getBuffer();
+			this.listener = null;
+		}
+	}
+
+	/**
+	 * Parses a file, passing each block and assignment to
+	 * <code>listener</code> instead of adding them to the result.
+	 * 
+	 * @see #parse(Reader, String, PdlParseListener)
+	 */
+	public void parse(Path path, PdlParseListener listener) throws IOException {
+		this.listener = listener;
+		try {
+			parse(new Tokenizer(map(path)), path.toString());
+		} finally {
+			this.listener = null;
+		}
+	}
+
+	/**
+	 * Parses a UTF-8 encoded file.  The file is memory mapped and scanned
+	 * in place, without first being decoded into chars.
+	 * 
+	 * @param path the file to parse; its string form is used as the source
+	 *   name for diagnostic purposes.
+	 * @throws IOException
+	 */
+	public void parse(Path path) throws IOException {
+		parse(map(path), path.toString());
+	}
+
+	/**
+	 * Parses a list of files on the common fork-join pool.
+	 * 
+	 * @see #parse(List, ForkJoinPool)
+	 */
+	public void parse(List<Path> paths) throws IOException {
+		parse(paths, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parses a list of files in parallel.  Each file is parsed on its own,
+	 * and the rules are then merged in list order, so that the result is the
+	 * same as calling {@link #parse(Path)} on each file in turn.  If a file
+	 * cannot be parsed, the rules of the files before it have been added
+	 * when the exception is thrown.
+	 * 
+	 * @param paths the files to parse, in order of increasing precedence
+	 * @param pool the pool to parse on
+	 * @throws IOException
+	 */
+	public void parse(List<Path> paths, ForkJoinPool pool) throws IOException {
+		List<ForkJoinTask<PdlParser>> tasks = new ArrayList<>(paths.size());
+		for (Path path : paths) {
+			tasks.add(pool.submit(() -> {
+				PdlParser worker = newWorker();
+				worker.parse(path);
+				return worker;
+			}));
+		}
+		try {
+			for (ForkJoinTask<PdlParser> task : tasks) {
+				merge(task.get().assignments);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while parsing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			for (ForkJoinTask<PdlParser> task : tasks) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Creates a parser for {@link #parse(List, ForkJoinPool)} to parse one
+	 * source with.
+	 */
+	PdlParser createWorker() {
+		return new PdlParser();
+	}
+
+	private PdlParser newWorker() {
+		PdlParser worker = createWorker();
+		worker.constructibleClasses = constructibleClasses;
+		return worker;
+	}
+
+	/**
+	 * Writes all rules parsed so far in the binary <code>.pdlc</code>
+	 * format, which {@link #load(InputStream)} reads back without having
+	 * to tokenize or parse the sources again.
+	 * 
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		PdlcFormat.write(assignments.values(), data);
+		data.flush();
+	}
+
+	/**
+	 * Reads rules written by {@link #write(OutputStream)}.  The rules are
+	 * added after the rules parsed so far, as if their sources were parsed
+	 * again.
+	 * 
+	 * @throws IOException
+	 */
+	public void load(InputStream in) throws IOException {
+		Map<String, PdlAssignment> rules = PdlcFormat.read(new DataInputStream(new BufferedInputStream(in)));
+		for (PdlAssignment assignment : rules.values()) {
+			if (constructibleClasses != null) {
+				checkConstructors(assignment.getConditionalAssignments());
+			}
+			FrameLayout.number(assignment.getConditionalAssignments());
+		}
+		merge(rules);
+	}
+
+	/**
+	 * Returns a new parser with the rules parsed so far specialized for
+	 * fixed values of some properties, such as the environment or region a
+	 * config is deployed to.  Conditions and expressions that only depend on
+	 * the bound properties, or on properties that end up with a constant
+	 * value, are folded, and rules that can't apply or can never decide a
+	 * value are dropped.  The result gives every property the value the
+	 * rules give it when the bound properties have the bound values, and
+	 * can be saved with {@link #write(OutputStream)} or
+	 * {@link #print(Writer)}.  This parser's rules are left alone.
+	 * 
+	 * @param bindings the values of the bound properties, which may be null,
+	 *   strings, booleans, numbers as {@link Long}, {@link java.math.BigInteger}
+	 *   or {@link java.math.BigDecimal}, or lists, sets and maps of them
+	 * @throws IllegalArgumentException if a value is of any other type
+	 */
+	public PdlParser specialize(Map<String, ?> bindings) {
+		PdlParser result = new PdlParser();
+		result.constructibleClasses = constructibleClasses;
+		// keep the order of the sources
+		for (String name : sources.keySet()) {
+			result.sources.put(name, new ArrayList<>());
+		}
+		result.merge(new Specializer(assignments.values(), bindings).specialize());
+		result.sources.values().removeIf(List::isEmpty);
+		return result;
+	}
+
+	/**
+	 * Prints all rules parsed so far as PDL text, which parses back to the
+	 * same rules, in a single source.
+	 * 
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a constant can't be written in
+	 *   PDL, such as a string with both kinds of quotes
+	 */
+	public void print(Writer out) throws IOException {
+		PdlPrinter.print(assignments.values(), sources.keySet(), out);
+	}
+
+	private void checkConstructors(List<PdlConditionalAssignment> rules) {
+		PdlExpressionNodeTraversal check = new PdlExpressionNodeTraversal() {
+			@Override
+			public void postVisit(PdlInvocationNode rplInvocationNode) {
+				if (rplInvocationNode.isConstructor() && !isConstructible(rplInvocationNode)) {
+					SyntaxException e = new SyntaxException(String.format("%s:%d 'new %s' is not allowed",
+							rplInvocationNode.getSource(), rplInvocationNode.getLine(),
+							rplInvocationNode.getMethodName()));
+					e.setSource(rplInvocationNode.getSource());
+					e.setLine(rplInvocationNode.getLine());
+					e.setColumn(rplInvocationNode.getColumn());
+					throw e;
+				}
+			}
+		};
+		for (PdlConditionalAssignment rule : rules) {
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				check.traverse(block.getCondition());
+			}
+			if (rule.getPropertySet() != null) {
+				for (PdlExpressionNode value : rule.getPropertySet().getProperties().values()) {
+					check.traverse(value);
+				}
+			} else if (rule.getValue() != null) {
+				check.traverse(rule.getValue());
+			}
+		}
+	}
+
+	/*
+	 * Appends rules after the rules parsed so far.
+	 */
+	private void merge(Map<String, PdlAssignment> rules) {
+		ruleSet = null;
+		List<PdlConditionalAssignment> newRules = new ArrayList<>();
+		for (PdlAssignment workerAssignment : rules.values()) {
+			newRules.addAll(workerAssignment.getConditionalAssignments());
+		}
+		// a block may hold the rules of several properties
+		conditions.number(newRules);
+		for (PdlAssignment workerAssignment : rules.values()) {
+			PdlAssignment assignment = getAssignment(workerAssignment.getName());
+			assignment.getConditionalAssignments().addAll(workerAssignment.getConditionalAssignments());
+			assignment.index = null;
+			for (PdlConditionalAssignment rule : workerAssignment.getConditionalAssignments()) {
+				getSourceRules(rule.getSource()).add(rule);
+			}
+		}
+	}
+
+	static ByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large to map");
+			}
+			return channel.map(MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	void parse(ByteBuffer content, String filename) throws IOException {
+		parse(new Tokenizer(content), filename);
+	}
+
+	private void parse(Tokenizer scanner, String filename) throws IOException {
 		try {
-			tokenizer = new PushbackTokenizer(new Tokenizer(in));
+			tokenizer = new PushbackTokenizer(scanner);
 			source = filename;
+			sourceRules = listener == null ? getSourceRules(filename) : null;
+			if (listener == null) {
+				ruleSet = null;
+			}
+			int start = sourceRules != null ? sourceRules.size() : 0;
 			parseBlock(true);
+			if (sourceRules != null) {
+				List<PdlConditionalAssignment> rules = sourceRules.subList(start, sourceRules.size());
+				new ConstantFolder().fold(rules);
+				FrameLayout.number(rules);
+				conditions.number(rules);
+			}
 		} finally {
 			tokenizer = null;
 			source = null;
+			sourceRules = null;
+		}
+	}
+
+	private List<PdlConditionalAssignment> getSourceRules(String filename) {
+		List<PdlConditionalAssignment> rules = sources.get(filename);
+		if (rules == null) {
+			rules = new ArrayList<>();
+			sources.put(filename, rules);
+		}
+		return rules;
+	}
+
+	/**
+	 * Replaces the rules of a source that has already been parsed, leaving
+	 * the rules of all other sources alone.  The new rules take the place of
+	 * the old ones, so the result is the same as parsing every source again
+	 * in the original order, except that properties first defined by the new
+	 * rules come last in {@link PdlScope#toMap()} order.  Sources are
+	 * identified by name; if there is no source named <code>filename</code>
+	 * this is the same as {@link #parse(Reader, String)}.
+	 * 
+	 * @throws IOException
+	 */
+	public void reparse(Reader in, String filename) throws IOException {
+		PdlParser worker = newWorker();
+		worker.parse(in, filename);
+		replace(filename, worker.assignments);
+	}
+
+	/**
+	 * Replaces the rules of a file that has already been parsed.
+	 * 
+	 * @see #reparse(Reader, String)
+	 */
+	public void reparse(Path path) throws IOException {
+		PdlParser worker = newWorker();
+		worker.parse(path);
+		replace(path.toString(), worker.assignments);
+	}
+
+	private void replace(String filename, Map<String, PdlAssignment> rules) {
+		ruleSet = null;
+		List<PdlConditionalAssignment> oldRules = sources.get(filename);
+		if (oldRules == null) {
+			merge(rules);
+			return;
+		}
+		Map<String, Integer> order = new HashMap<>();
+		for (String name : sources.keySet()) {
+			order.put(name, order.size());
+		}
+		int ordinal = order.get(filename);
 
+		Set<PdlConditionalAssignment> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+		removed.addAll(oldRules);
+		Set<String> names = new LinkedHashSet<>();
+		for (PdlConditionalAssignment rule : oldRules) {
+			names.add(rule.getName());
 		}
+		for (String name : names) {
+			PdlAssignment assignment = getAssignment(name);
+			assignment.getConditionalAssignments().removeIf(removed::contains);
+			assignment.index = null;
+			if (assignment.getConditionalAssignments().isEmpty()) {
+				assignments.remove(name);
+			}
+		}
+		conditions.release(oldRules);
+		discard(oldRules);
+
+		List<PdlConditionalAssignment> newRules = new ArrayList<>();
+		for (PdlAssignment replacement : rules.values()) {
+			PdlAssignment assignment = getAssignment(replacement.getName());
+			List<PdlConditionalAssignment> list = assignment.getConditionalAssignments();
+			// insert before the first rule from a later source
+			int at = list.size();
+			for (int i = 0; i < list.size(); i++) {
+				if (order.getOrDefault(list.get(i).getSource(), -1) > ordinal) {
+					at = i;
+					break;
+				}
+			}
+			list.addAll(at, replacement.getConditionalAssignments());
+			assignment.index = null;
+			newRules.addAll(replacement.getConditionalAssignments());
+		}
+		conditions.number(newRules);
+		sources.put(filename, newRules);
+	}
+
+	/**
+	 * Called with the rules of a source that {@link #reparse(Reader, String)}
+	 * has removed.
+	 */
+	void discard(List<PdlConditionalAssignment> rules) {
+	}
+
+	/*
+	 * Returns the assignment of a property for its rules to be changed,
+	 * copying it first if a scope may be using it.
+	 */
+	private PdlAssignment getAssignment(String name) {
+		PdlAssignment assignment = assignments.get(name);
+		if (assignment == null || !unshared.contains(assignment)) {
+			PdlAssignment copy = new PdlAssignment(name);
+			if (assignment != null) {
+				copy.getConditionalAssignments().addAll(assignment.getConditionalAssignments());
+			}
+			assignments.put(name, copy);
+			unshared.add(copy);
+			assignment = copy;
+		}
+		return assignment;
 	}
 
 	/*
@@ -89,7 +547,7 @@ public class PdlParser {
 		int t;
 		while ((t = tokenizer.nextToken()) != Tokenizer.EOF) {
 			if (t == Tokenizer.ID) {
-				if (tokenizer.getTokenValue().equals("if")) {
+				if (tokenizer.isIdentifier("if")) {
 					parseConditionalBlock();
 				} else {
 					parseAssignment();
@@ -104,11 +562,16 @@ public class PdlParser {
 	}
 
 	private void parseConditionalBlock() throws IOException {
+		int line = getLine();
 		if (tokenizer.nextToken() != '(') {
 			throw syntaxError("expecting '(' in if");
 		}
-		PdlExpressionNode expression = parseExpression();
-		conditions.add(expression);
+		PdlExpressionNode expression = parseValue();
+		if (listener != null) {
+			listener.startConditionalBlock(expression, source, line);
+		} else {
+			block = new PdlConditionalBlock(block, expression);
+		}
 		if (tokenizer.nextToken() != ')') {
 			throw syntaxError("expending ')' in conditional block");
 		}
@@ -119,24 +582,23 @@ public class PdlParser {
 		if (tokenizer.nextToken() != '}') {
 			throw syntaxError("expecting '}' to end conditional block");
 		}
-		conditions.remove(conditions.size() - 1);
+		if (listener != null) {
+			listener.endConditionalBlock();
+		} else {
+			block = block.getParent();
+		}
 	}
 
 	/*
 	 * assignment = id ("="|":="|"+=") (expression | property_set)
 	 */
 	private void parseAssignment() throws IOException {
-		PdlAssignment assignment = assignments.get(tokenizer.getTokenValue());
-		if (assignment == null) {
-			assignment = new PdlAssignment(tokenizer.getTokenValue());
-			assignments.put(assignment.getName(), assignment);
-		}
+		String name = tokenizer.getTokenValue();
 		int t = tokenizer.nextToken();
 		if (t != '=' && t == Tokenizer.COLON_EQ && t == Tokenizer.PLUS_EQ) {
 			throw syntaxError("expecting an assignment operator");
 		}
-		PdlConditionalAssignment cond = create(new PdlConditionalAssignment(assignment.getName()));
-		cond.getConditions().addAll(conditions);
+		PdlConditionalAssignment cond = create(new PdlConditionalAssignment(name));
 		if (t == Tokenizer.COLON_EQ) {
 			cond.setOverride(true);
 		} else if (t == Tokenizer.PLUS_EQ) {
@@ -147,10 +609,18 @@ public class PdlParser {
 			cond.setPropertySet(parsePropertySet());
 		} else {
 			tokenizer.pushback();
-			cond.setValue(parseExpression());
+			cond.setValue(parseValue());
 		}
 
-		assignment.getConditionalAssignments().add(cond);
+		if (listener != null) {
+			listener.assignment(cond);
+		} else {
+			cond.setBlock(block);
+			PdlAssignment assignment = getAssignment(name);
+			assignment.getConditionalAssignments().add(cond);
+			assignment.index = null;
+			sourceRules.add(cond);
+		}
 	}
 
 	/*
@@ -170,7 +640,7 @@ public class PdlParser {
 			if (t != '=') {
 				throw syntaxError("property name must be followed by '='");
 			}
-			PdlExpressionNode expression = parseExpression();
+			PdlExpressionNode expression = parseValue();
 			propertySet.getProperties().put(name, expression);
 			t = tokenizer.nextToken();
 			if (t == '}') {
@@ -183,7 +653,31 @@ public class PdlParser {
 		return propertySet;
 	}
 
+	/*
+	 * Parses a top-level expression, or skips over it without building nodes
+	 * if the listener doesn't want expressions.
+	 */
+	private PdlExpressionNode parseValue() throws IOException {
+		if (listener == null || listener.isExpressionNeeded()) {
+			return parseExpression();
+		}
+		skipping = true;
+		try {
+			parseExpression();
+		} finally {
+			skipping = false;
+		}
+		return null;
+	}
+
+	/*
+	 * The create methods below return null while skipping, and the with
+	 * methods pass the null on.
+	 */
 	private PdlBinaryOperatorNode createBinaryOperatorNode(PdlExpressionNode left, int operator) throws IOException {
+		if (skipping) {
+			return null;
+		}
 		PdlBinaryOperatorNode op = create(new PdlBinaryOperatorNode());
 		op.setLeft(left);
 		op.setOperator(operator);
@@ -191,18 +685,29 @@ public class PdlParser {
 	}
 
 	private PdlUnaryOperatorNode createUnaryOperatorNode(int operator) {
+		if (skipping) {
+			return null;
+		}
 		PdlUnaryOperatorNode node = create(new PdlUnaryOperatorNode());
 		node.setOperator(operator);
 		return node;
 	}
 
+	private static PdlExpressionNode withRight(PdlBinaryOperatorNode op, PdlExpressionNode right) {
+		return op != null ? op.withRight(right) : null;
+	}
+
+	private static PdlExpressionNode withTarget(PdlUnaryOperatorNode op, PdlExpressionNode target) {
+		return op != null ? op.withTarget(target) : null;
+	}
+
 	/*
 	 * expression = and_test ('||' and_test)*
 	 */
 	private PdlExpressionNode parseExpression() throws IOException {
 		PdlExpressionNode expression = parseAndTest();
 		while (tokenizer.nextToken() == Tokenizer.L_OR) {
-			expression = createBinaryOperatorNode(expression, Tokenizer.L_OR).withRight(parseExpression());
+			expression = withRight(createBinaryOperatorNode(expression, Tokenizer.L_OR), parseExpression());
 		}
 		tokenizer.pushback();
 		return expression;
@@ -214,7 +719,7 @@ public class PdlParser {
 	private PdlExpressionNode parseAndTest() throws IOException {
 		PdlExpressionNode expression = parseNotTest();
 		if (tokenizer.nextToken() == Tokenizer.L_AND) {
-			expression = createBinaryOperatorNode(expression, Tokenizer.L_AND).withRight(parseAndTest());
+			expression = withRight(createBinaryOperatorNode(expression, Tokenizer.L_AND), parseAndTest());
 		} else {
 			tokenizer.pushback();
 		}
@@ -226,7 +731,7 @@ public class PdlParser {
 	 */
 	private PdlExpressionNode parseNotTest() throws IOException {
 		if (tokenizer.nextToken() == '!') {
-			return createUnaryOperatorNode('!').withTarget(parseNotTest());
+			return withTarget(createUnaryOperatorNode('!'), parseNotTest());
 		} else {
 			tokenizer.pushback();
 			return parseComparison();
@@ -243,10 +748,10 @@ public class PdlParser {
 				|| t == Tokenizer.ID) {
 			int operator = t;
 			if (t == Tokenizer.ID) {
-				if (tokenizer.getTokenValue().equals("in")) {
+				if (tokenizer.isIdentifier("in")) {
 					operator = PdlBinaryOperatorNode.IN;
-				} else if (tokenizer.getTokenValue().equals("not")) {
-					if (tokenizer.nextToken() == Tokenizer.ID && tokenizer.getTokenValue().equals("in")) {
+				} else if (tokenizer.isIdentifier("not")) {
+					if (tokenizer.nextToken() == Tokenizer.ID && tokenizer.isIdentifier("in")) {
 						operator = PdlBinaryOperatorNode.NOT_IN;
 					} else {
 						tokenizer.pushback();
@@ -256,7 +761,7 @@ public class PdlParser {
 					break;
 				}
 			}
-			expression = createBinaryOperatorNode(expression, operator).withRight(parseComparison());
+			expression = withRight(createBinaryOperatorNode(expression, operator), parseComparison());
 			t = tokenizer.nextToken();
 		}
 		tokenizer.pushback();
@@ -270,7 +775,7 @@ public class PdlParser {
 	private PdlExpressionNode parseExpr() throws IOException {
 		PdlExpressionNode expression = parseXorExpr();
 		while (tokenizer.nextToken() == '|') {
-			expression = createBinaryOperatorNode(expression, '|').withRight(parseXorExpr());
+			expression = withRight(createBinaryOperatorNode(expression, '|'), parseXorExpr());
 		}
 		tokenizer.pushback();
 		return expression;
@@ -282,7 +787,7 @@ public class PdlParser {
 	private PdlExpressionNode parseXorExpr() throws IOException {
 		PdlExpressionNode expression = parseAndExpr();
 		while (tokenizer.nextToken() == '^') {
-			expression = createBinaryOperatorNode(expression, '^').withRight(parseAndExpr());
+			expression = withRight(createBinaryOperatorNode(expression, '^'), parseAndExpr());
 		}
 		tokenizer.pushback();
 		return expression;
@@ -294,7 +799,7 @@ public class PdlParser {
 	private PdlExpressionNode parseAndExpr() throws IOException {
 		PdlExpressionNode expression = parseShiftExpr();
 		while (tokenizer.nextToken() == '&') {
-			expression = createBinaryOperatorNode(expression, '&').withRight(parseShiftExpr());
+			expression = withRight(createBinaryOperatorNode(expression, '&'), parseShiftExpr());
 		}
 		tokenizer.pushback();
 		return expression;
@@ -307,7 +812,7 @@ public class PdlParser {
 		PdlExpressionNode expression = parseArithExpr();
 		int t = tokenizer.nextToken();
 		while (t == Tokenizer.L_SHIFT || t == Tokenizer.R_SHIFT) {
-			expression = createBinaryOperatorNode(expression, t).withRight(parseArithExpr());
+			expression = withRight(createBinaryOperatorNode(expression, t), parseArithExpr());
 			t = tokenizer.nextToken();
 		}
 		tokenizer.pushback();
@@ -321,7 +826,7 @@ public class PdlParser {
 		PdlExpressionNode expression = parseTerm();
 		int t = tokenizer.nextToken();
 		while (t == '+' || t == '-') {
-			expression = createBinaryOperatorNode(expression, t).withRight(parseTerm());
+			expression = withRight(createBinaryOperatorNode(expression, t), parseTerm());
 			t = tokenizer.nextToken();
 		}
 		tokenizer.pushback();
@@ -335,7 +840,7 @@ public class PdlParser {
 		PdlExpressionNode expression = parseFactor();
 		int t = tokenizer.nextToken();
 		while (t == '*' || t == '/' || t == '%') {
-			expression = createBinaryOperatorNode(expression, t).withRight(parseFactor());
+			expression = withRight(createBinaryOperatorNode(expression, t), parseFactor());
 			t = tokenizer.nextToken();
 		}
 		tokenizer.pushback();
@@ -348,7 +853,7 @@ public class PdlParser {
 	private PdlExpressionNode parseFactor() throws IOException {
 		int t = tokenizer.nextToken();
 		if (t == '+' || t == '-' || t == '~') {
-			return createUnaryOperatorNode(t).withTarget(parseFactor());
+			return withTarget(createUnaryOperatorNode(t), parseFactor());
 		} else {
 			tokenizer.pushback();
 			return parsePrimary();
@@ -360,20 +865,19 @@ public class PdlParser {
 	 */
 	private PdlExpressionNode parsePrimary() throws IOException {
 		PdlExpressionNode expression;
-		int t = tokenizer.nextToken();
-		if (t == Tokenizer.ID && tokenizer.getTokenValue().equals("new")) {
+		tokenizer.nextToken();
+		if (tokenizer.isIdentifier("new")) {
 			expression = parseCtor();
 		} else {
 			tokenizer.pushback();
 			expression = parseAtom();
 		}
-		while (true) {
-			PdlExpressionNode trailer = parseTrailer(expression);
-			if (trailer == expression) {
-				break;
-			}
-			expression = trailer;
+		int t;
+		while ((t = tokenizer.nextToken()) == '.' || t == '[') {
+			tokenizer.pushback();
+			expression = parseTrailer(expression);
 		}
+		tokenizer.pushback();
 		return expression;
 	}
 
@@ -381,8 +885,7 @@ public class PdlParser {
 	 * ctor: 'new' ID ('.' ID)* '(' expression_list ')'
 	 */
 	private PdlExpressionNode parseCtor() throws IOException {
-		PdlInvocationNode node = create(new PdlInvocationNode());
-		node.setConstructor(true);
+		PdlInvocationNode node = skipping ? null : create(new PdlInvocationNode());
 		int t = tokenizer.nextToken();
 		if (t != Tokenizer.ID) {
 			throw syntaxError("'new' must be followed by a type name");
@@ -395,11 +898,17 @@ public class PdlParser {
 			}
 			typeName.append('.').append(tokenizer.getTokenValue());
 		}
-		node.setMethodName(typeName.toString());
+		if (node != null) {
+			node.setConstructor(true);
+			node.setMethodName(typeName.toString());
+			if (constructibleClasses != null && !isConstructible(node)) {
+				throw syntaxError("'new " + typeName + "' is not allowed");
+			}
+		}
 		if (t != '(') {
 			throw syntaxError("'new' operator must have constructor arguments");
 		}
-		parseExpressionList(')', node.getArguments());
+		parseExpressionList(')', node != null ? node.getArguments() : null);
 		return node;
 	}
 
@@ -416,17 +925,23 @@ public class PdlParser {
 				throw syntaxError("invalid parenthesized expression");
 			}
 		} else if (t == '[') {
-			PdlListNode node = create(new PdlListNode());
-			parseExpressionList(']', node.getElements());
+			PdlListNode node = skipping ? null : create(new PdlListNode());
+			parseExpressionList(']', node != null ? node.getElements() : null);
 			expression = node;
 		} else if (t == '{') {
-			PdlDictNode node = create(new PdlDictNode());
+			PdlDictNode node = skipping ? null : create(new PdlDictNode());
 			parseDictEntries(node);
 			expression = node;
-		} else if (t == Tokenizer.NUMBER || t == Tokenizer.STRING || t == Tokenizer.INTERP_STRING || (t == Tokenizer.ID
-				&& (tokenizer.getTokenValue().equals("true") || tokenizer.getTokenValue().equals("false")))) {
+		} else if (skipping && (t == Tokenizer.NUMBER || t == Tokenizer.STRING || t == Tokenizer.INTERP_STRING
+				|| t == Tokenizer.ID)) {
+			expression = null;
+		} else if (t == Tokenizer.NUMBER || t == Tokenizer.STRING || t == Tokenizer.INTERP_STRING || tokenizer.isIdentifier("true")
+				|| tokenizer.isIdentifier("false")) {
 			PdlConstantNode node = create(new PdlConstantNode());
 			node.setValue(tokenizer.getTokenValue());
+			if (t == Tokenizer.NUMBER) {
+				node.setNumber(PdlConstantNode.numberOf(node.getValue()));
+			}
 			expression = node;
 		} else if (t == Tokenizer.ID) {
 			PdlGetValueNode node = create(new PdlGetValueNode());
@@ -443,27 +958,36 @@ public class PdlParser {
 	 * 
 	 *  dict_entry = (( ID | STRING )
 	 * ':' expression)
+	 * 
+	 * node is null while skipping.
 	 */
 	private void parseDictEntries(PdlDictNode node) throws IOException {
+		boolean set = false;
 		int t = tokenizer.nextToken();
 		if (t == Tokenizer.ID || t == Tokenizer.STRING) {
 			// peek ahead to see if this is a set or dict
 			int t2 = tokenizer.nextToken();
 			if (t2 != ':') {
-				node.setSet(true);
+				set = true;
 			}
 			tokenizer.pushback();
 		} else if (t != '}') {
-			node.setSet(true);
+			set = true;
 		}
 		tokenizer.pushback();
+		if (node != null) {
+			node.setSet(set);
+		}
 		while (true) {
 			t = tokenizer.nextToken();
 			if (t == '}')
 				break;
-			if (node.isSet()) {
+			if (set) {
 				tokenizer.pushback();
-				node.getDict().put(parseExpression(), Boolean.TRUE);
+				PdlExpressionNode key = parseExpression();
+				if (node != null) {
+					node.getDict().put(key, Boolean.TRUE);
+				}
 			} else {
 				// dict
 				if (t == Tokenizer.ID || t == Tokenizer.STRING) {
@@ -473,7 +997,9 @@ public class PdlParser {
 						throw syntaxError("dictionary entry must be name : value");
 					}
 					PdlExpressionNode value = parseExpression();
-					node.getDict().put(name, value);
+					if (node != null) {
+						node.getDict().put(name, value);
+					}
 				}
 			}
 			t = tokenizer.nextToken();
@@ -498,22 +1024,29 @@ public class PdlParser {
 			String name = tokenizer.getTokenValue();
 			t = tokenizer.nextToken();
 			if (t == '(') {
-				PdlInvocationNode invocationNode = create(new PdlInvocationNode());
-				invocationNode.setMethodName(name);
-				invocationNode.setTarget(expression);
-				parseExpressionList(')', invocationNode.getArguments());
+				PdlInvocationNode invocationNode = skipping ? null : create(new PdlInvocationNode());
+				if (invocationNode != null) {
+					invocationNode.setMethodName(name);
+					invocationNode.setTarget(expression);
+				}
+				parseExpressionList(')', invocationNode != null ? invocationNode.getArguments() : null);
 				expression = invocationNode;
 			} else {
-				PdlAttributeNode node = new PdlAttributeNode();
-				node.setTarget(expression);
-				node.setAttributeName(name);
-				expression = node;
+				if (!skipping) {
+					PdlAttributeNode node = new PdlAttributeNode();
+					node.setTarget(expression);
+					node.setAttributeName(name);
+					expression = node;
+				}
 				tokenizer.pushback();
 			}
 		} else if (t == '[') {
-			PdlSubscriptNode node = create(new PdlSubscriptNode());
-			node.setTarget(expression);
-			node.setIndex(parseExpression());
+			PdlSubscriptNode node = skipping ? null : create(new PdlSubscriptNode());
+			PdlExpressionNode index = parseExpression();
+			if (node != null) {
+				node.setTarget(expression);
+				node.setIndex(index);
+			}
 			t = tokenizer.nextToken();
 			if (t != ']') {
 				throw syntaxError("expecting ] in subscript");
@@ -527,6 +1060,8 @@ public class PdlParser {
 
 	/*
 	 * expression_list = expression ("," expression)*
+	 * 
+	 * args is null while skipping.
 	 */
 	private void parseExpressionList(int terminal, List<PdlExpressionNode> args) throws IOException {
 		int t = tokenizer.nextToken();
@@ -535,7 +1070,10 @@ public class PdlParser {
 		}
 		tokenizer.pushback();
 		while (true) {
-			args.add(parseExpression());
+			PdlExpressionNode arg = parseExpression();
+			if (args != null) {
+				args.add(arg);
+			}
 			t = tokenizer.nextToken();
 			if (t == terminal) {
 				break;
@@ -0,0 +1,335 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package pdl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prints rules as PDL text that parses back to the same rules.  Rules are
+ * printed in the order of their sources and their positions in them, so
+ * the rules of each property keep their order, and the rules of a block
+ * are printed inside one <code>if</code>.  Operands are parenthesized, and
+ * constants are printed as literals, or as an expression with the same
+ * value where PDL has no literal, such as <code>(1 == 1)</code> for
+ * <code>Boolean.TRUE</code> and <code>(16 + 0)</code> or
+ * <code>(2.50 * 1)</code> for a folded number, since a numeric literal
+ * evaluates to its text.  Only arithmetic is used, so the rules parse back
+ * whatever classes the parser may construct.
+ */
+class PdlPrinter extends PdlExpressionNodeVisitor {
+	private final StringBuilder s = new StringBuilder();
+
+	static void print(Collection<PdlAssignment> assignments, Collection<String> sources, Writer out)
+			throws IOException {
+		Map<String, Integer> order = new HashMap<>();
+		for (String source : sources) {
+			order.put(source, order.size());
+		}
+		List<PdlConditionalAssignment> rules = new ArrayList<>();
+		for (PdlAssignment assignment : assignments) {
+			rules.addAll(assignment.getConditionalAssignments());
+		}
+		rules.sort(Comparator
+				.<PdlConditionalAssignment> comparingInt(rule -> order.getOrDefault(rule.getSource(), order.size()))
+				.thenComparingInt(PdlNode::getLine).thenComparingInt(PdlNode::getColumn));
+		PdlPrinter printer = new PdlPrinter();
+		List<PdlConditionalBlock> open = new ArrayList<>();
+		for (PdlConditionalAssignment rule : rules) {
+			List<PdlConditionalBlock> blocks = new ArrayList<>();
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				blocks.add(0, block);
+			}
+			int common = 0;
+			while (common < open.size() && common < blocks.size() && open.get(common) == blocks.get(common)) {
+				common++;
+			}
+			while (open.size() > common) {
+				open.remove(open.size() - 1);
+				printer.indent(open.size()).s.append("}\n");
+			}
+			while (open.size() < blocks.size()) {
+				PdlConditionalBlock block = blocks.get(open.size());
+				printer.indent(open.size()).s.append("if (");
+				printer.expression(block.getCondition());
+				printer.s.append(") {\n");
+				open.add(block);
+			}
+			printer.indent(open.size()).assignment(rule);
+		}
+		while (!open.isEmpty()) {
+			open.remove(open.size() - 1);
+			printer.indent(open.size()).s.append("}\n");
+		}
+		out.write(printer.s.toString());
+		out.flush();
+	}
+
+	private PdlPrinter indent(int depth) {
+		for (int i = 0; i < depth; i++) {
+			s.append('\t');
+		}
+		return this;
+	}
+
+	private void assignment(PdlConditionalAssignment rule) {
+		s.append(rule.getName()).append(rule.isOverride() ? " := " : rule.isAppend() ? " += " : " = ");
+		if (rule.getPropertySet() != null) {
+			s.append("{ ");
+			String separator = "";
+			for (Map.Entry<String, PdlExpressionNode> entry : rule.getPropertySet().getProperties().entrySet()) {
+				s.append(separator).append(entry.getKey()).append(" = ");
+				expression(entry.getValue());
+				separator = ", ";
+			}
+			s.append(" }");
+		} else {
+			expression(rule.getValue());
+		}
+		s.append('\n');
+	}
+
+	private void expression(PdlExpressionNode node) {
+		node.accept(this);
+	}
+
+	private void operand(PdlExpressionNode node) {
+		if (node instanceof PdlBinaryOperatorNode || node instanceof PdlUnaryOperatorNode) {
+			s.append('(');
+			expression(node);
+			s.append(')');
+		} else {
+			expression(node);
+		}
+	}
+
+	/*
+	 * Prints the target of an attribute, invocation or subscript, where a
+	 * number would run into the '.' that follows it.
+	 */
+	private void target(PdlExpressionNode node) {
+		if (node instanceof PdlConstantNode && (isNumber((PdlConstantNode) node)
+				|| !(((PdlConstantNode) node).getConstant() instanceof String))) {
+			s.append('(');
+			expression(node);
+			s.append(')');
+		} else {
+			operand(node);
+		}
+	}
+
+	private void expressions(List<PdlExpressionNode> nodes) {
+		String separator = "";
+		for (PdlExpressionNode node : nodes) {
+			s.append(separator);
+			expression(node);
+			separator = ", ";
+		}
+	}
+
+	private void value(Object value) {
+		if (value == null) {
+			s.append("({})['']");
+		} else if (value instanceof String) {
+			s.append(quote((String) value));
+		} else if (value instanceof Boolean) {
+			s.append((Boolean) value ? "(1 == 1)" : "(1 == 0)");
+		} else if (value instanceof Long) {
+			s.append('(').append(value).append(" + 0)");
+		} else if (value instanceof BigInteger) {
+			// only a BigInteger operand keeps the shifts off the long path
+			s.append("((").append(value).append(" << 64) >> 64)");
+		} else if (value instanceof BigDecimal) {
+			String text = value.toString();
+			if (text.indexOf('.') < 0 && text.indexOf('E') < 0) {
+				// not an integer, which would take the long path
+				text += "e0";
+			}
+			s.append('(').append(text).append(" * 1)");
+		} else if (value instanceof Collection<?>) {
+			s.append(value instanceof Set<?> ? "({" : "[");
+			String separator = "";
+			for (Object element : (Collection<?>) value) {
+				s.append(separator);
+				value(element);
+				separator = ", ";
+			}
+			s.append(value instanceof Set<?> ? "})" : "]");
+		} else if (value instanceof Map<?, ?>) {
+			s.append("({");
+			String separator = "";
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!(entry.getKey() instanceof String)) {
+					throw new IllegalArgumentException("can't print a map key of type "
+							+ (entry.getKey() == null ? "null" : entry.getKey().getClass().getName()));
+				}
+				s.append(separator).append(quote((String) entry.getKey())).append(": ");
+				value(entry.getValue());
+				separator = ", ";
+			}
+			s.append("})");
+		} else {
+			throw new IllegalArgumentException("can't print a constant of type " + value.getClass().getName());
+		}
+	}
+
+	/*
+	 * Strings have no escapes, so a string is quoted with whichever quotes
+	 * it doesn't contain.
+	 */
+	private static String quote(String string) {
+		if (string.indexOf('\'') < 0) {
+			return "'" + string + "'";
+		} else if (!string.contains("\"\"\"") && !string.endsWith("\"")) {
+			return "\"\"\"" + string + "\"\"\"";
+		}
+		throw new IllegalArgumentException("can't quote " + string);
+	}
+
+	private static String operator(int operator) {
+		switch (operator) {
+		case PdlBinaryOperatorNode.L_OR:
+			return "||";
+		case PdlBinaryOperatorNode.L_AND:
+			return "&&";
+		case PdlBinaryOperatorNode.EQ:
+			return "==";
+		case PdlBinaryOperatorNode.NEQ:
+			return "!=";
+		case PdlBinaryOperatorNode.GTE:
+			return ">=";
+		case PdlBinaryOperatorNode.LTE:
+			return "<=";
+		case PdlBinaryOperatorNode.L_SHIFT:
+			return "<<";
+		case PdlBinaryOperatorNode.R_SHIFT:
+			return ">>";
+		case PdlBinaryOperatorNode.IN:
+			return "in";
+		case PdlBinaryOperatorNode.NOT_IN:
+			return "not in";
+		default:
+			return String.valueOf((char) operator);
+		}
+	}
+
+	@Override
+	public void visit(PdlConstantNode rplConstantNode) {
+		if (isNumber(rplConstantNode)) {
+			s.append(rplConstantNode.getValue());
+		} else {
+			value(rplConstantNode.getConstant());
+		}
+	}
+
+	/*
+	 * Whether a constant is a number that can be printed as its text, which
+	 * reads back as a NUMBER token with the same text.
+	 */
+	private static boolean isNumber(PdlConstantNode node) {
+		String text = node.getValue();
+		if (node.getConstant() != text || ValueFunctions.classify(text) == ValueFunctions.NOT_NUMERIC) {
+			return false;
+		}
+		Tokenizer tokenizer = new Tokenizer(text.toCharArray(), 0, text.length());
+		try {
+			return tokenizer.nextToken() == Tokenizer.NUMBER && text.equals(tokenizer.getTokenValue())
+					&& tokenizer.nextToken() == Tokenizer.EOF;
+		} catch (IOException | SyntaxException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void visit(PdlGetValueNode rplGetValueNode) {
+		s.append(rplGetValueNode.getName());
+	}
+
+	@Override
+	public void visit(PdlAttributeNode rplAttributeNode) {
+		target(rplAttributeNode.getTarget());
+		s.append('.').append(rplAttributeNode.getAttributeName());
+	}
+
+	@Override
+	public void visit(PdlInvocationNode rplInvocationNode) {
+		if (rplInvocationNode.isConstructor()) {
+			s.append("new ");
+		} else {
+			target(rplInvocationNode.getTarget());
+			s.append('.');
+		}
+		s.append(rplInvocationNode.getMethodName()).append('(');
+		expressions(rplInvocationNode.getArguments());
+		s.append(')');
+	}
+
+	@Override
+	public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+		operand(rplBinaryOperatorNode.getLeft());
+		s.append(' ').append(operator(rplBinaryOperatorNode.getOperator())).append(' ');
+		operand(rplBinaryOperatorNode.getRight());
+	}
+
+	@Override
+	public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+		s.append((char) rplUnaryOperatorNode.getOperator()).append('(');
+		expression(rplUnaryOperatorNode.getTarget());
+		s.append(')');
+	}
+
+	@Override
+	public void visit(PdlListNode rplListNode) {
+		s.append('[');
+		expressions(rplListNode.getElements());
+		s.append(']');
+	}
+
+	@Override
+	public void visit(PdlDictNode rplDictNode) {
+		s.append("({");
+		String separator = "";
+		for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
+			s.append(separator);
+			if (rplDictNode.isSet()) {
+				expression((PdlExpressionNode) entry.getKey());
+			} else {
+				s.append(quote((String) entry.getKey())).append(": ");
+				expression((PdlExpressionNode) entry.getValue());
+			}
+			separator = ", ";
+		}
+		s.append("})");
+	}
+
+	@Override
+	public void visit(PdlSubscriptNode rplSubscriptNode) {
+		target(rplSubscriptNode.getTarget());
+		s.append('[');
+		expression(rplSubscriptNode.getIndex());
+		s.append(']');
+	}
+
+}
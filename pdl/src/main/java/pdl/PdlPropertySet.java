@@ -40,7 +40,7 @@ public class PdlPropertySet extends ExpressionScope {
 	Object eval(String name) {
 		PdlExpressionNode node = expressionNodes.get(name);
 		if (node != null) {
-			return new Evaluator(this).eval(node);
+			return evaluate(node);
 		}
 		return scope.eval(name);
 	}
@@ -50,4 +50,14 @@ public class PdlPropertySet extends ExpressionScope {
 		return scope.getTrace();
 	}
 
+	@Override
+	boolean isInterpreted() {
+		return scope.isInterpreted();
+	}
+
+	@Override
+	CompiledRuleSet getRuleSet() {
+		return scope.getRuleSet();
+	}
+
 }
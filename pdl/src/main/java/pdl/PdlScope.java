@@ -14,24 +14,67 @@
 
 package pdl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * PdlScope represents a set of names and values.
+ * <p>
+ * A scope may be shared by many threads.  Each property is evaluated once,
+ * by the first thread that asks for it, while any other threads that ask for
+ * it wait; after that its value is read without locking.  A property whose
+ * value depends on itself fails with a {@link PdlEvalException} rather than
+ * recursing forever.  Scopes that are tracing, as in {@link PdlDiag}, are not
+ * thread-safe.
  */
 public class PdlScope extends ExpressionScope {
 
-	private static final Object NULL = new Object();
+	/*
+	 * A property's value, or the thread that is evaluating it.
+	 */
+	private static final class Cell {
+		volatile Thread owner;
+		volatile boolean done;
+		Object value;
+
+		Cell(Thread owner) {
+			this.owner = owner;
+		}
+	}
+
 	private final Map<String, PdlAssignment> assignments;
-	private final Map<String, Object> cache = new HashMap<>();
+	private final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+	// the cell each thread is waiting for, to find cycles between threads
+	private final ConcurrentHashMap<Thread, Cell> waits = new ConcurrentHashMap<>();
+	// the conditions that have been evaluated, and those that are true, by
+	// their number in the parser's ConditionTable
+	private final AtomicLongArray known;
+	private final AtomicLongArray values;
 	private List<PdlNode> trace;
+	private boolean interpreted;
+	private final CompiledRuleSet ruleSet;
 
 	PdlScope(Map<String, PdlAssignment> assignments) {
+		this(assignments, null, 0);
+	}
+
+	PdlScope(Map<String, PdlAssignment> assignments, CompiledRuleSet ruleSet, int conditions) {
 		this.assignments = assignments;
+		this.ruleSet = ruleSet;
+		this.known = new AtomicLongArray((conditions + 63) >>> 6);
+		this.values = new AtomicLongArray(known.length());
+	}
+
+	@Override
+	CompiledRuleSet getRuleSet() {
+		return isInterpreted() || trace != null ? null : ruleSet;
 	}
 	
 	@Override
@@ -43,6 +86,21 @@ public class PdlScope extends ExpressionScope {
 		this.trace = trace;
 	}
 
+	@Override
+	public boolean isInterpreted() {
+		return interpreted;
+	}
+
+	/**
+	 * Evaluates expressions with the tree-walking interpreter instead of
+	 * compiling them.  The results are the same; this is a reference for
+	 * checking the compiler.  Set it before the scope is shared between
+	 * threads.
+	 */
+	public void setInterpreted(boolean interpreted) {
+		this.interpreted = interpreted;
+	}
+
 	/**
 	 * Returns the value of <code>name</code> in the current scope.
 	 */
@@ -52,13 +110,73 @@ public class PdlScope extends ExpressionScope {
 
 	@Override
 	Object eval(String name) {
-		if (!cache.containsKey(name)) {
-			// XXX - put marker in cache to detect cyclic dependencies?
-			Object value = _get(name);
-			cache.putIfAbsent(name, value != null ? value : NULL);
+		Cell cell = cells.get(name);
+		if (cell != null && cell.done) {
+			return cell.value;
+		}
+		Thread thread = Thread.currentThread();
+		while (true) {
+			cell = cells.get(name);
+			if (cell == null) {
+				Cell owned = new Cell(thread);
+				cell = cells.putIfAbsent(name, owned);
+				if (cell == null) {
+					return evaluate(name, owned);
+				}
+			}
+			if (cell.done) {
+				return cell.value;
+			}
+			await(name, cell, thread);
+		}
+	}
+
+	private Object evaluate(String name, Cell cell) {
+		boolean done = false;
+		try {
+			cell.value = _get(name);
+			cell.done = done = true;
+			return cell.value;
+		} finally {
+			if (!done) {
+				// let the next thread to ask try again
+				cells.remove(name, cell);
+			}
+			synchronized (cell) {
+				cell.owner = null;
+				cell.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Waits for another thread to finish evaluating a property, or fails if
+	 * that would never happen because the property depends on itself.
+	 */
+	private void await(String name, Cell cell, Thread thread) {
+		waits.put(thread, cell);
+		try {
+			for (Cell waitedFor = cell; waitedFor != null;) {
+				Thread owner = waitedFor.owner;
+				if (owner == null) {
+					break;
+				}
+				if (owner == thread) {
+					throw new PdlEvalException("'" + name + "' is defined in terms of itself");
+				}
+				waitedFor = waits.get(owner);
+			}
+			synchronized (cell) {
+				while (cell.owner != null) {
+					cell.wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PdlEvalException("interrupted while waiting for '" + name + "'", e);
+		} finally {
+			waits.remove(thread);
 		}
-		Object value = cache.get(name);
-		return value == NULL ? null : value;
 	}
 
 	private Object _get(String name) {
@@ -66,44 +184,137 @@ public class PdlScope extends ExpressionScope {
 		if (assignment == null) {
 			return null;
 		}
-		Object result = null;
-		ListIterator<PdlConditionalAssignment> iter = assignment.getConditionalAssignments().listIterator();
-		assignment: while (iter.hasNext()) {
-			/*
-			 * XXX - should check for override assignments in reverse order so
-			 * later sources have precedence
-			 */
-			PdlConditionalAssignment conditionalAssignment = iter.next();
-			for (PdlExpressionNode cond : conditionalAssignment.getConditions()) {
-				if (!isTrue(new Evaluator(this).eval(cond))) {
-					continue assignment;
+		CompiledRuleSet ruleSet = getRuleSet();
+		// the generated code doesn't use the index
+		if (ruleSet != null && ruleSet.hasProperty(name) && !RuleIndex.of(assignment).isGuarded()) {
+			return ruleSet.get(this, name);
+		}
+		return evaluateRules(assignment);
+	}
+
+	/*
+	 * Only the rules that decide the value are evaluated: the first override
+	 * that applies, or else the last rule, ends the rules that count, and
+	 * from there the rules are scanned backwards to the last one that
+	 * replaces the value rather than adding to it.  The rules before that
+	 * one, conditions and all, are never looked at, and neither are the
+	 * rules the property's RuleIndex rules out.
+	 */
+	Object evaluateRules(PdlAssignment assignment) {
+		List<PdlConditionalAssignment> rules = assignment.getConditionalAssignments();
+		RuleIndex.Scan scan = RuleIndex.of(assignment).new Scan(this);
+		int end = rules.size() - 1;
+		boolean overridden = false;
+		for (int i = scan.nextOverride(0); i >= 0; i = scan.nextOverride(i + 1)) {
+			if (applies(rules.get(i))) {
+				end = i;
+				overridden = true;
+				break;
+			}
+		}
+		// the rules to apply, last first
+		int[] applied = new int[4];
+		int count = 0;
+		for (int i = overridden ? end : scan.previous(end + 1); i >= 0; i = scan.previous(i)) {
+			PdlConditionalAssignment rule = rules.get(i);
+			// any other override has already been found not to apply
+			if (i == end && overridden || !rule.isOverride() && applies(rule)) {
+				if (count == applied.length) {
+					applied = Arrays.copyOf(applied, count * 2);
+				}
+				applied[count++] = i;
+				if (replaces(rule)) {
+					break;
 				}
 			}
+		}
+		Object result = null;
+		while (count > 0) {
+			PdlConditionalAssignment conditionalAssignment = rules.get(applied[--count]);
 			if (trace != null) {
 				trace.add(conditionalAssignment);
 			}
-			PdlPropertySetNode propertySetNode = conditionalAssignment.getPropertySet();
-			if (propertySetNode != null) {
+			if (conditionalAssignment.getPropertySet() != null) {
 				result = applyPropertySetNodeAssignment(conditionalAssignment, result);
 			} else {
-				Object value = new Evaluator(this).eval(conditionalAssignment.getValue());
-				if (value instanceof PdlPropertySet) {
-					result = applyPropertySetAssignment(conditionalAssignment, result, value);
-				} else {
-					if (conditionalAssignment.isAppend()) {
-						result = plus(conditionalAssignment, result, value);
-					} else {
-						result = value;
-					}
-				}
-			}
-			if (conditionalAssignment.isOverride()) {
-				break;
+				Object value = evaluate(conditionalAssignment.getValue());
+				result = applyAssignment(conditionalAssignment, result, value);
 			}
 		}
 		return result;
 	}
 
+	/*
+	 * Whether the conditions of a rule are all true.  Once they have been
+	 * evaluated this just checks the rule's mask against the bitsets.
+	 */
+	boolean applies(PdlConditionalAssignment conditionalAssignment) {
+		long[] mask = conditionalAssignment.mask;
+		if (mask == null || mask.length > known.length()) {
+			return holds(conditionalAssignment.getBlock());
+		}
+		for (int i = 0; i < mask.length; i++) {
+			long bits = mask[i];
+			if ((known.get(i) & bits) != bits) {
+				return holds(conditionalAssignment.getBlock());
+			}
+			if ((values.get(i) & bits) != bits) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Evaluates the conditions of a block and the blocks around it,
+	 * outermost first, that haven't been evaluated yet.  Two threads may
+	 * both evaluate a condition the first time.
+	 */
+	boolean holds(PdlConditionalBlock block) {
+		if (block == null) {
+			return true;
+		}
+		if (!holds(block.getParent())) {
+			return false;
+		}
+		int id = block.id;
+		if (id < 0 || id >>> 6 >= known.length()) {
+			// not numbered when the scope was created
+			return isTrue(evaluate(block.getCondition()));
+		}
+		int word = id >>> 6;
+		long bit = 1L << id;
+		if ((known.get(word) & bit) != 0) {
+			return (values.get(word) & bit) != 0;
+		}
+		boolean value = isTrue(evaluate(block.getCondition()));
+		if (value) {
+			values.accumulateAndGet(word, bit, (a, b) -> a | b);
+		}
+		known.accumulateAndGet(word, bit, (a, b) -> a | b);
+		return value;
+	}
+
+	/*
+	 * Whether a rule that applies makes the rules before it irrelevant.
+	 */
+	static boolean replaces(PdlConditionalAssignment conditionalAssignment) {
+		return conditionalAssignment.getPropertySet() == null && !conditionalAssignment.isAppend();
+	}
+
+	/*
+	 * Combines the value of a rule with the value of the rules before it.
+	 */
+	Object applyAssignment(PdlConditionalAssignment conditionalAssignment, Object result, Object value) {
+		if (value instanceof PdlPropertySet) {
+			return applyPropertySetAssignment(conditionalAssignment, result, value);
+		} else if (conditionalAssignment.isAppend()) {
+			return plus(conditionalAssignment, result, value);
+		} else {
+			return value;
+		}
+	}
+
 	private Object applyPropertySetAssignment(PdlConditionalAssignment conditionalAssignment, Object result,
 			Object value) {
 		if (conditionalAssignment.isAppend()) {
@@ -113,24 +324,21 @@ public class PdlScope extends ExpressionScope {
 		}
 		PdlPropertySet rightPropertySet = (PdlPropertySet) value;
 		PdlPropertySet propertySet;
-		if (result instanceof PdlPropertySet) {
-			propertySet = (PdlPropertySet) result;
+		if (conditionalAssignment.isAppend() && result != null) {
+			propertySet = new PdlPropertySet((PdlPropertySet) result);
 		} else {
 			propertySet = new PdlPropertySet(this);
 		}
-		if (!conditionalAssignment.isAppend()) {
-			propertySet.getExpressionNodes().clear();
-		}
 		propertySet.getExpressionNodes().putAll(rightPropertySet.getExpressionNodes());
 		return propertySet;
 	}
 
-	private Object applyPropertySetNodeAssignment(PdlConditionalAssignment conditionalAssignment, Object result) {
+	Object applyPropertySetNodeAssignment(PdlConditionalAssignment conditionalAssignment, Object result) {
 		PdlPropertySet propertySet;
 		if (result == null) {
 			propertySet = new PdlPropertySet(this);
 		} else if (result instanceof PdlPropertySet) {
-			propertySet = (PdlPropertySet) result;
+			propertySet = new PdlPropertySet((PdlPropertySet) result);
 		} else {
 			throw evalException(conditionalAssignment, "can only add properties to a property set", null);
 		}
@@ -146,20 +354,55 @@ public class PdlScope extends ExpressionScope {
 	public Map<String, Object> toMap() {
 		Map<String, Object> result = new HashMap<>();
 		for (String name : assignments.keySet()) {
-			Object value = get(name);
-			if (value instanceof PdlPropertySet) {
-				PdlPropertySet propertySet = (PdlPropertySet) value;
-				for (String propertyName : propertySet.getExpressionNodes().keySet()) {
-					Object propertyValue = propertySet.eval(propertyName);
-					result.put(name + "." + propertyName, propertyValue);
-				}
-			} else {
-				result.put(name, value);
-			}
+			flatten(name, result);
 		}
 		return result;
 	}
 
+	/**
+	 * Converts the current scope to a map as {@link #toMap()} does, evaluating
+	 * properties that don't depend on each other at the same time on an
+	 * executor, such as a <code>ForkJoinPool</code>.
+	 */
+	public Map<String, Object> toMap(Executor executor) {
+		List<String> names = new ArrayList<>(assignments.keySet());
+		@SuppressWarnings("unchecked")
+		Map<String, Object>[] values = new Map[names.size()];
+		new ParallelEvaluator(names, assignments, executor, i -> {
+			Map<String, Object> value = new HashMap<>();
+			flatten(names.get(i), value);
+			values[i] = value;
+		}).run();
+		Map<String, Object> result = new HashMap<>();
+		for (Map<String, Object> value : values) {
+			result.putAll(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates every property, evaluating properties that don't depend on
+	 * each other at the same time on an executor, so that later calls to
+	 * {@link #get(String)} return at once.
+	 */
+	public void evaluateAll(Executor executor) {
+		List<String> names = new ArrayList<>(assignments.keySet());
+		new ParallelEvaluator(names, assignments, executor, i -> get(names.get(i))).run();
+	}
+
+	private void flatten(String name, Map<String, Object> result) {
+		Object value = get(name);
+		if (value instanceof PdlPropertySet) {
+			PdlPropertySet propertySet = (PdlPropertySet) value;
+			for (String propertyName : propertySet.getExpressionNodes().keySet()) {
+				Object propertyValue = propertySet.eval(propertyName);
+				result.put(name + "." + propertyName, propertyValue);
+			}
+		} else {
+			result.put(name, value);
+		}
+	}
+
 	/**
 	 * Copies the current scope to a <code>Properties</code> object.
 	 * Keys are converted as in {@link #toMap()}.  Values are converted
@@ -0,0 +1,605 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes parsed rules in the binary <code>.pdlc</code> format.
+ * <p>
+ * The file starts with a magic number and a version, followed by the
+ * assignments in order.  Counts, lines and indexes are written as variable
+ * length integers.  Strings and expression nodes are written in full the
+ * first time they appear, and as a back reference after that, and so are
+ * the blocks of conditional assignments, so the assignments of a block
+ * still share it when read back.
+ */
+class PdlcFormat {
+	private static final int MAGIC = 0x50444c43; // "PDLC"
+	private static final int VERSION = 4;
+
+	private static final int NULL = 0, REF = 1, CONSTANT = 2, GET_VALUE = 3, ATTRIBUTE = 4, BINARY = 5, UNARY = 6,
+			INVOCATION = 7, LIST = 8, DICT = 9, SUBSCRIPT = 10;
+	private static final int OVERRIDE = 1, APPEND = 2, PROPERTY_SET = 4;
+	// blocks are written as NULL, REF or BLOCK followed by the parent and condition
+	private static final int BLOCK = 2;
+	private static final int TEXT = 0, NUMBER = 1, FOLDED = 2;
+	private static final int V_NULL = 0, V_STRING = 1, V_LONG = 2, V_BIG_INTEGER = 3, V_BIG_DECIMAL = 4, V_TRUE = 5,
+			V_FALSE = 6, V_LIST = 7, V_SET = 8, V_MAP = 9;
+
+	private static class Writer extends PdlExpressionNodeVisitor {
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<>();
+		private final Map<PdlNode, Integer> nodes = new IdentityHashMap<>();
+		private final Map<PdlConditionalBlock, Integer> blocks = new IdentityHashMap<>();
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(Collection<PdlAssignment> assignments) throws IOException {
+			out.writeInt(MAGIC);
+			writeInt(VERSION);
+			writeInt(assignments.size());
+			for (PdlAssignment assignment : assignments) {
+				writeString(assignment.getName());
+				writeInt(assignment.getConditionalAssignments().size());
+				for (PdlConditionalAssignment cond : assignment.getConditionalAssignments()) {
+					writeHeader(cond);
+					PdlPropertySetNode propertySet = cond.getPropertySet();
+					int flags = (cond.isOverride() ? OVERRIDE : 0) | (cond.isAppend() ? APPEND : 0)
+							| (propertySet != null ? PROPERTY_SET : 0);
+					writeInt(flags);
+					writeBlock(cond.getBlock());
+					if (propertySet != null) {
+						writeHeader(propertySet);
+						writeInt(propertySet.getProperties().size());
+						for (Map.Entry<String, PdlExpressionNode> entry : propertySet.getProperties().entrySet()) {
+							writeString(entry.getKey());
+							writeNode(entry.getValue());
+						}
+					} else {
+						writeNode(cond.getValue());
+					}
+				}
+			}
+			out.flush();
+		}
+
+		private void writeBlock(PdlConditionalBlock block) throws IOException {
+			if (block == null) {
+				writeInt(NULL);
+				return;
+			}
+			Integer index = blocks.get(block);
+			if (index != null) {
+				writeInt(REF);
+				writeInt(index);
+				return;
+			}
+			writeInt(BLOCK);
+			writeBlock(block.getParent());
+			writeNode(block.getCondition());
+			blocks.put(block, blocks.size());
+		}
+
+		private void writeHeader(PdlNode node) throws IOException {
+			writeString(node.getSource());
+			writeInt(node.getLine());
+			writeInt(node.getColumn());
+		}
+
+		private void writeNode(PdlExpressionNode node) throws IOException {
+			if (node == null) {
+				writeInt(NULL);
+				return;
+			}
+			Integer index = nodes.get(node);
+			if (index != null) {
+				writeInt(REF);
+				writeInt(index);
+				return;
+			}
+			nodes.put(node, nodes.size());
+			try {
+				node.accept(this);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			if (s == null) {
+				writeInt(0);
+				return;
+			}
+			Integer index = strings.get(s);
+			if (index != null) {
+				writeInt(index + 2);
+				return;
+			}
+			strings.put(s, strings.size());
+			writeInt(1);
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(b.length);
+			out.write(b);
+		}
+
+		private void writeInt(int n) throws IOException {
+			while ((n & ~0x7f) != 0) {
+				out.write((n & 0x7f) | 0x80);
+				n >>>= 7;
+			}
+			out.write(n);
+		}
+
+		private void writeSignedInt(int n) throws IOException {
+			writeInt((n << 1) ^ (n >> 31));
+		}
+
+		private void begin(int tag, PdlExpressionNode node) {
+			try {
+				writeInt(tag);
+				writeHeader(node);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void string(String s) {
+			try {
+				writeString(s);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void integer(int n) {
+			try {
+				writeSignedInt(n);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void node(PdlExpressionNode node) {
+			try {
+				writeNode(node);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void visit(PdlInvocationNode rplInvocationNode) {
+			begin(INVOCATION, rplInvocationNode);
+			integer(rplInvocationNode.isConstructor() ? 1 : 0);
+			string(rplInvocationNode.getMethodName());
+			node(rplInvocationNode.getTarget());
+			integer(rplInvocationNode.getArguments().size());
+			for (PdlExpressionNode argument : rplInvocationNode.getArguments()) {
+				node(argument);
+			}
+		}
+
+		@Override
+		public void visit(PdlConstantNode rplConstantNode) {
+			begin(CONSTANT, rplConstantNode);
+			string(rplConstantNode.getValue());
+			Object constant = rplConstantNode.getConstant();
+			if (rplConstantNode.getNumber() != null && constant == rplConstantNode.getValue()) {
+				// numeric literals are decoded again when read
+				integer(NUMBER);
+			} else if (constant == rplConstantNode.getValue()) {
+				integer(TEXT);
+			} else {
+				integer(FOLDED);
+				try {
+					writeValue(constant);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+
+		/*
+		 * Writes the value of a folded constant, see ConstantFolder.isFoldable
+		 */
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				writeInt(V_NULL);
+			} else if (value instanceof String) {
+				writeInt(V_STRING);
+				writeString((String) value);
+			} else if (value instanceof Boolean) {
+				writeInt((Boolean) value ? V_TRUE : V_FALSE);
+			} else if (value instanceof Long || value instanceof BigInteger || value instanceof BigDecimal) {
+				writeInt(value instanceof Long ? V_LONG : value instanceof BigInteger ? V_BIG_INTEGER : V_BIG_DECIMAL);
+				writeString(value.toString());
+			} else if (value instanceof Collection<?>) {
+				Collection<?> collection = (Collection<?>) value;
+				writeInt(value instanceof Set<?> ? V_SET : V_LIST);
+				writeInt(collection.size());
+				for (Object element : collection) {
+					writeValue(element);
+				}
+			} else if (value instanceof Map<?, ?>) {
+				Map<?, ?> map = (Map<?, ?>) value;
+				writeInt(V_MAP);
+				writeInt(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+			} else {
+				throw new IOException("cannot write a constant of type " + value.getClass().getName());
+			}
+		}
+
+		@Override
+		public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+			begin(BINARY, rplBinaryOperatorNode);
+			integer(rplBinaryOperatorNode.getOperator());
+			node(rplBinaryOperatorNode.getLeft());
+			node(rplBinaryOperatorNode.getRight());
+		}
+
+		@Override
+		public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+			begin(UNARY, rplUnaryOperatorNode);
+			integer(rplUnaryOperatorNode.getOperator());
+			node(rplUnaryOperatorNode.getTarget());
+		}
+
+		@Override
+		public void visit(PdlListNode rplListNode) {
+			begin(LIST, rplListNode);
+			integer(rplListNode.getElements().size());
+			for (PdlExpressionNode element : rplListNode.getElements()) {
+				node(element);
+			}
+		}
+
+		@Override
+		public void visit(PdlGetValueNode rplGetValueNode) {
+			begin(GET_VALUE, rplGetValueNode);
+			string(rplGetValueNode.getName());
+		}
+
+		@Override
+		public void visit(PdlAttributeNode rplAttributeNode) {
+			begin(ATTRIBUTE, rplAttributeNode);
+			node(rplAttributeNode.getTarget());
+			string(rplAttributeNode.getAttributeName());
+		}
+
+		@Override
+		public void visit(PdlSubscriptNode rplSubscriptNode) {
+			begin(SUBSCRIPT, rplSubscriptNode);
+			node(rplSubscriptNode.getTarget());
+			node(rplSubscriptNode.getIndex());
+		}
+
+		@Override
+		public void visit(PdlDictNode rplDictNode) {
+			begin(DICT, rplDictNode);
+			integer(rplDictNode.isSet() ? 1 : 0);
+			integer(rplDictNode.getDict().size());
+			for (Map.Entry<Object, Object> entry : rplDictNode.getDict().entrySet()) {
+				if (rplDictNode.isSet()) {
+					node((PdlExpressionNode) entry.getKey());
+				} else {
+					string((String) entry.getKey());
+					node((PdlExpressionNode) entry.getValue());
+				}
+			}
+		}
+	}
+
+	private static class Reader {
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<>();
+		private final List<PdlExpressionNode> nodes = new ArrayList<>();
+		private final List<PdlConditionalBlock> blocks = new ArrayList<>();
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		Map<String, PdlAssignment> read() throws IOException {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a pdlc file");
+			}
+			int version = readInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported pdlc version " + version);
+			}
+			Map<String, PdlAssignment> assignments = new LinkedHashMap<>();
+			int count = readInt();
+			for (int i = 0; i < count; i++) {
+				PdlAssignment assignment = new PdlAssignment(readString());
+				assignments.put(assignment.getName(), assignment);
+				int rules = readInt();
+				for (int j = 0; j < rules; j++) {
+					PdlConditionalAssignment cond = readHeader(new PdlConditionalAssignment(assignment.getName()));
+					int flags = readInt();
+					cond.setOverride((flags & OVERRIDE) != 0);
+					cond.setAppend((flags & APPEND) != 0);
+					cond.setBlock(readBlock());
+					if ((flags & PROPERTY_SET) != 0) {
+						PdlPropertySetNode propertySet = readHeader(new PdlPropertySetNode());
+						int properties = readInt();
+						for (int k = 0; k < properties; k++) {
+							String name = readString();
+							propertySet.getProperties().put(name, readNode());
+						}
+						cond.setPropertySet(propertySet);
+					} else {
+						cond.setValue(readNode());
+					}
+					assignment.getConditionalAssignments().add(cond);
+				}
+			}
+			return assignments;
+		}
+
+		private <T extends PdlNode> T readHeader(T node) throws IOException {
+			node.setSource(readString());
+			node.setLine(readInt());
+			node.setCol(readInt());
+			return node;
+		}
+
+		private PdlConditionalBlock readBlock() throws IOException {
+			int tag = readInt();
+			switch (tag) {
+			case NULL:
+				return null;
+			case REF:
+				return reference(blocks, "block");
+			case BLOCK: {
+				PdlConditionalBlock parent = readBlock();
+				PdlConditionalBlock block = new PdlConditionalBlock(parent, readNode());
+				blocks.add(block);
+				return block;
+			}
+			default:
+				throw new IOException("corrupt pdlc file: unknown block type " + tag);
+			}
+		}
+
+		private PdlExpressionNode readNode() throws IOException {
+			int tag = readInt();
+			switch (tag) {
+			case NULL:
+				return null;
+			case REF:
+				return reference(nodes, "node");
+			case CONSTANT: {
+				PdlConstantNode node = begin(new PdlConstantNode());
+				node.setValue(readString());
+				int kind = readSignedInt();
+				if (kind == NUMBER) {
+					node.setNumber(PdlConstantNode.numberOf(node.getValue()));
+				} else if (kind == FOLDED) {
+					node.setConstant(readValue());
+				}
+				return node;
+			}
+			case GET_VALUE: {
+				PdlGetValueNode node = begin(new PdlGetValueNode());
+				node.setName(readString());
+				return node;
+			}
+			case ATTRIBUTE: {
+				PdlAttributeNode node = begin(new PdlAttributeNode());
+				node.setTarget(readNode());
+				node.setAttributeName(readString());
+				return node;
+			}
+			case BINARY: {
+				PdlBinaryOperatorNode node = begin(new PdlBinaryOperatorNode());
+				node.setOperator(readSignedInt());
+				node.setLeft(readNode());
+				return node.withRight(readNode());
+			}
+			case UNARY: {
+				PdlUnaryOperatorNode node = begin(new PdlUnaryOperatorNode());
+				node.setOperator(readSignedInt());
+				return node.withTarget(readNode());
+			}
+			case INVOCATION: {
+				PdlInvocationNode node = begin(new PdlInvocationNode());
+				node.setConstructor(readSignedInt() != 0);
+				node.setMethodName(readString());
+				node.setTarget(readNode());
+				int n = readSignedInt();
+				for (int i = 0; i < n; i++) {
+					node.getArguments().add(readNode());
+				}
+				return node;
+			}
+			case LIST: {
+				PdlListNode node = begin(new PdlListNode());
+				int n = readSignedInt();
+				for (int i = 0; i < n; i++) {
+					node.getElements().add(readNode());
+				}
+				return node;
+			}
+			case DICT: {
+				PdlDictNode node = begin(new PdlDictNode());
+				node.setSet(readSignedInt() != 0);
+				int n = readSignedInt();
+				for (int i = 0; i < n; i++) {
+					if (node.isSet()) {
+						node.getDict().put(readNode(), Boolean.TRUE);
+					} else {
+						String name = readString();
+						node.getDict().put(name, readNode());
+					}
+				}
+				return node;
+			}
+			case SUBSCRIPT: {
+				PdlSubscriptNode node = begin(new PdlSubscriptNode());
+				node.setTarget(readNode());
+				node.setIndex(readNode());
+				return node;
+			}
+			default:
+				throw new IOException("corrupt pdlc file: unknown node type " + tag);
+			}
+		}
+
+		private Object readValue() throws IOException {
+			int tag = readInt();
+			switch (tag) {
+			case V_NULL:
+				return null;
+			case V_STRING:
+				return readString();
+			case V_TRUE:
+				return Boolean.TRUE;
+			case V_FALSE:
+				return Boolean.FALSE;
+			case V_LONG:
+			case V_BIG_INTEGER:
+			case V_BIG_DECIMAL:
+				return readNumber(tag, readString());
+			case V_LIST: {
+				Object[] values = new Object[readInt()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = readValue();
+				}
+				return ListValue.of(values);
+			}
+			case V_SET: {
+				int n = readInt();
+				LinkedHashSet<Object> set = new LinkedHashSet<>();
+				for (int i = 0; i < n; i++) {
+					set.add(readValue());
+				}
+				return SetValue.of(set);
+			}
+			case V_MAP: {
+				int n = readInt();
+				LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+				for (int i = 0; i < n; i++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return MapValue.of(map);
+			}
+			default:
+				throw new IOException("corrupt pdlc file: unknown value type " + tag);
+			}
+		}
+
+		private Number readNumber(int tag, String text) throws IOException {
+			try {
+				switch (tag) {
+				case V_BIG_INTEGER:
+					return new BigInteger(text);
+				case V_BIG_DECIMAL:
+					return new BigDecimal(text);
+				default:
+					return PdlConstantNode.decodeNumber(text);
+				}
+			} catch (NumberFormatException | NullPointerException e) {
+				throw new IOException("corrupt pdlc file: bad number " + text);
+			}
+		}
+
+		/*
+		 * Registers a node before its children are read, matching the order
+		 * the writer numbers them in.
+		 */
+		private <T extends PdlExpressionNode> T begin(T node) throws IOException {
+			nodes.add(node);
+			return readHeader(node);
+		}
+
+		private String readString() throws IOException {
+			int n = readInt();
+			if (n == 0) {
+				return null;
+			}
+			if (n == 1) {
+				byte[] b = new byte[readInt()];
+				in.readFully(b);
+				String s = new String(b, StandardCharsets.UTF_8);
+				strings.add(s);
+				return s;
+			}
+			if (n < 0 || n - 2 >= strings.size()) {
+				throw new IOException("corrupt pdlc file: bad string reference");
+			}
+			return strings.get(n - 2);
+		}
+
+		/*
+		 * Reads a back reference to a block or node read earlier.
+		 */
+		private <T> T reference(List<T> list, String what) throws IOException {
+			int n = readInt();
+			if (n < 0 || n >= list.size()) {
+				throw new IOException("corrupt pdlc file: bad " + what + " reference");
+			}
+			return list.get(n);
+		}
+
+		private int readInt() throws IOException {
+			int n = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readUnsignedByte();
+				n |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return n;
+				}
+			}
+			throw new IOException("corrupt pdlc file: bad integer");
+		}
+
+		private int readSignedInt() throws IOException {
+			int n = readInt();
+			return (n >>> 1) ^ -(n & 1);
+		}
+	}
+
+	static void write(Collection<PdlAssignment> assignments, DataOutputStream out) throws IOException {
+		new Writer(out).write(assignments);
+	}
+
+	static Map<String, PdlAssignment> read(DataInputStream in) throws IOException {
+		return new Reader(in).read();
+	}
+
+}
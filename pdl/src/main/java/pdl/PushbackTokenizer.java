@@ -16,37 +16,46 @@ package pdl;
 
 import java.io.IOException;
 
+/**
+ * Keeps the last 16 tokens so the parser can push back.  Tokens are kept in
+ * parallel arrays that are reused as the window moves, and values are only
+ * turned into Strings when asked for.
+ */
 class PushbackTokenizer {
-	private static class State {
-		public State(Tokenizer tokenizer) {
-			token = tokenizer.getToken();
-			tokenValue = tokenizer.getTokenValue();
-			line = tokenizer.getLine();
-			column = tokenizer.getColumn();
-		}
-		final int token;
-		final String tokenValue;
-		final int line;
-		final int column;
-	}
+	private static final int SIZE = 16;
 	private final Tokenizer tokenizer;
-	private final State[] buffer = new State[16];
+	private final int[] tokens = new int[SIZE];
+	// 0 for a slot that has never been filled, since lines start at 1
+	private final int[] lines = new int[SIZE];
+	private final int[] columns = new int[SIZE];
+	private final int[] valueStarts = new int[SIZE];
+	private final int[] valueEnds = new int[SIZE];
+	private final String[] values = new String[SIZE];
 	private int index = 0, limit = 1;
 
 	public PushbackTokenizer(Tokenizer tokenizer) {
 		this.tokenizer = tokenizer;
-		buffer[index] = new State(tokenizer);
+		save();
 	}
 	
-	private int next(int i) { return i == buffer.length - 1 ? 0 : i + 1; }
-	private int prev(int i) { return i == 0 ? buffer.length - 1 : i - 1; }
+	private int next(int i) { return i == SIZE - 1 ? 0 : i + 1; }
+	private int prev(int i) { return i == 0 ? SIZE - 1 : i - 1; }
+
+	private void save() {
+		tokens[index] = tokenizer.getToken();
+		lines[index] = tokenizer.getLine();
+		columns[index] = tokenizer.getColumn();
+		valueStarts[index] = tokenizer.getValueStart();
+		valueEnds[index] = tokenizer.getValueEnd();
+		values[index] = tokenizer.getSyntheticValue();
+	}
 	
 	int nextToken() throws IOException {
 		if (next(index) == limit) {
 			tokenizer.nextToken();
 			index = next(index);
 			limit = next(limit);
-			buffer[index] = new State(tokenizer);
+			save();
 		} else {
 			index = next(index);
 		}
@@ -55,25 +64,43 @@ class PushbackTokenizer {
 	
 	void pushback() {
 		index = prev(index);
-		if (buffer[index] == null || index == limit) {
+		if (lines[index] == 0 || index == limit) {
 			throw new IllegalStateException("cannot pusback past start or more than 16 tokens");
 		}
 	}
 	
 	int getToken() {
-		return buffer[index].token;
+		return tokens[index];
 	}
 	
 	String getTokenValue() {
-		return buffer[index].tokenValue;
+		String value = values[index];
+		if (value == null && valueStarts[index] >= 0) {
+			value = values[index] = tokenizer.getText(valueStarts[index], valueEnds[index]);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns true if the current token is the identifier <code>name</code>,
+	 * without creating a String for it.
+	 */
+	boolean isIdentifier(String name) {
+		if (tokens[index] != Tokenizer.ID) {
+			return false;
+		}
+		if (values[index] != null) {
+			return values[index].equals(name);
+		}
+		return tokenizer.regionMatches(valueStarts[index], valueEnds[index], name);
 	}
 	
 	int getLine() {
-		return buffer[index].line;
+		return lines[index];
 	}
 
 	int getColumn() {
-		return buffer[index].column;
+		return columns[index];
 	}
 
 
@@ -0,0 +1,836 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates a subclass of {@link CompiledRuleSet} for a set of assignments.
+ * <p>
+ * Every property gets a method that tests the conditions of its rules in
+ * order and combines their values, and every condition and value gets a
+ * method that evaluates the expression tree in straight-line code.  The
+ * operations themselves, including reflective attribute access and
+ * invocations, are calls to the protected methods of
+ * {@link CompiledRuleSet}, which share their implementation with
+ * {@link Evaluator}.  Methods that would be too large fall back to the
+ * rule loop in {@link PdlScope} or to {@link ExpressionCompiler}.
+ * <p>
+ * The class file is written by hand, in the version 49 format so that it
+ * needs no stack map frames, and defined by a class loader of its own so
+ * that it can be unloaded with the rule set.
+ */
+class RuleCompiler extends PdlExpressionNodeVisitor {
+	private static final Logger logger = LoggerFactory.getLogger(RuleCompiler.class);
+	private static final AtomicInteger classes = new AtomicInteger();
+
+	private static final String BASE = "pdl/CompiledRuleSet";
+	private static final String OBJECT = "java/lang/Object";
+	private static final String EVAL = "(Ljava/lang/Object;)Ljava/lang/Object;";
+	private static final String DISPATCH = "(ILjava/lang/Object;)Ljava/lang/Object;";
+	// keeps branch offsets within 16 bits
+	private static final int MAX_CODE = 32767;
+	private static final int CHUNK_BITS = 10;
+
+	private static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_PROTECTED = 0x0004,
+			ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+	private static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+			ILOAD = 0x15, ILOAD_1 = 0x1b, ALOAD = 0x19, ISTORE = 0x36, ALOAD_0 = 0x2a, ASTORE = 0x3a, ASTORE_0 = 0x4b, AASTORE = 0x53, DUP = 0x59,
+			ISHR = 0x7a, IFEQ = 0x99, GOTO = 0xa7, TABLESWITCH = 0xaa, ARETURN = 0xb0, RETURN = 0xb1,
+			INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, ANEWARRAY = 0xbd, WIDE = 0xc4;
+
+	private static class CompileException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CompileException(String message) {
+			super(message);
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(CompiledRuleSet.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/*
+	 * The constant pool, written as entries are added.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		private Integer get(String key) {
+			return entries.get(key);
+		}
+
+		private int add(String key) {
+			if (count == 0xffff) {
+				throw new CompileException("too many constants");
+			}
+			entries.put(key, count);
+			return count++;
+		}
+
+		int utf8(String s) {
+			Integer index = get("U" + s);
+			if (index == null) {
+				try {
+					out.writeByte(1);
+					out.writeUTF(s);
+				} catch (IOException e) {
+					throw new CompileException("constant too long");
+				}
+				index = add("U" + s);
+			}
+			return index;
+		}
+
+		int classRef(String name) {
+			Integer index = get("C" + name);
+			if (index == null) {
+				int utf8 = utf8(name);
+				write(7, utf8);
+				index = add("C" + name);
+			}
+			return index;
+		}
+
+		int string(String s) {
+			Integer index = get("S" + s);
+			if (index == null) {
+				int utf8 = utf8(s);
+				write(8, utf8);
+				index = add("S" + s);
+			}
+			return index;
+		}
+
+		int integer(int n) {
+			Integer index = get("I" + n);
+			if (index == null) {
+				try {
+					out.writeByte(3);
+					out.writeInt(n);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				index = add("I" + n);
+			}
+			return index;
+		}
+
+		int methodRef(String owner, String name, String descriptor) {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer index = get(key);
+			if (index == null) {
+				int classRef = classRef(owner);
+				int nameRef = utf8(name);
+				int descriptorRef = utf8(descriptor);
+				write(12, nameRef, descriptorRef);
+				int nameAndType = add("N" + name + descriptor);
+				write(10, classRef, nameAndType);
+				index = add(key);
+			}
+			return index;
+		}
+
+		private void write(int tag, int... refs) {
+			try {
+				out.writeByte(tag);
+				for (int ref : refs) {
+					out.writeShort(ref);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static class Label {
+		int position = -1;
+		final List<Integer> branches = new ArrayList<>();
+	}
+
+	private static class Switch {
+		int start, table;
+	}
+
+	/*
+	 * The code of one method, keeping track of the stack depth as it goes.
+	 */
+	private class Code {
+		private byte[] code = new byte[256];
+		private int length;
+		private int stack, maxStack;
+		private int locals;
+
+		Code(int locals) {
+			this.locals = locals;
+		}
+
+		void u1(int b) {
+			if (length == code.length) {
+				code = Arrays.copyOf(code, length * 2);
+			}
+			code[length++] = (byte) b;
+		}
+
+		void u2(int n) {
+			u1(n >> 8);
+			u1(n);
+		}
+
+		void u4(int n) {
+			u2(n >> 16);
+			u2(n);
+		}
+
+		void put4(int position, int n) {
+			code[position] = (byte) (n >> 24);
+			code[position + 1] = (byte) (n >> 16);
+			code[position + 2] = (byte) (n >> 8);
+			code[position + 3] = (byte) n;
+		}
+
+		void op(int opcode, int delta) {
+			u1(opcode);
+			adjust(delta);
+		}
+
+		void adjust(int delta) {
+			stack += delta;
+			maxStack = Math.max(maxStack, stack);
+		}
+
+		void aload(int n) {
+			if (n <= 3) {
+				op(ALOAD_0 + n, 1);
+			} else {
+				op(ALOAD, 1);
+				u1(n);
+			}
+		}
+
+		void astore(int n) {
+			if (n <= 3) {
+				op(ASTORE_0 + n, -1);
+			} else {
+				op(ASTORE, -1);
+				u1(n);
+			}
+		}
+
+		void iload(int n) {
+			local(ILOAD, n, 1);
+		}
+
+		void istore(int n) {
+			local(ISTORE, n, -1);
+		}
+
+		private void local(int opcode, int n, int delta) {
+			if (n <= 0xff) {
+				op(opcode, delta);
+				u1(n);
+			} else {
+				u1(WIDE);
+				op(opcode, delta);
+				u2(n);
+			}
+		}
+
+		void push(int n) {
+			if (n >= -1 && n <= 5) {
+				op(ICONST_0 + n, 1);
+			} else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+				op(BIPUSH, 1);
+				u1(n);
+			} else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+				op(SIPUSH, 1);
+				u2(n);
+			} else {
+				op(LDC_W, 1);
+				u2(pool.integer(n));
+			}
+		}
+
+		void ldc(String s) {
+			op(LDC_W, 1);
+			u2(pool.string(s));
+		}
+
+		int newLocal() {
+			return locals++;
+		}
+
+		void invoke(int opcode, String owner, String name, String descriptor) {
+			op(opcode, stackDelta(descriptor) - 1);
+			u2(pool.methodRef(owner, name, descriptor));
+		}
+
+		/*
+		 * For goto, delta is the change that gives the depth of the code
+		 * that follows, which is reached by another branch.
+		 */
+		void jump(int opcode, Label label, int delta) {
+			int position = length;
+			op(opcode, delta);
+			if (label.position >= 0) {
+				u2(label.position - position);
+			} else {
+				label.branches.add(position);
+				u2(0);
+			}
+		}
+
+		void mark(Label label) {
+			label.position = length;
+			for (int branch : label.branches) {
+				int offset = length - branch;
+				code[branch + 1] = (byte) (offset >> 8);
+				code[branch + 2] = (byte) offset;
+			}
+		}
+
+		/*
+		 * Emits a tableswitch on the int on the stack.  The targets are set
+		 * with setCase and setDefault as the code for them is written.
+		 */
+		Switch tableswitch(int low, int high) {
+			Switch s = new Switch();
+			s.start = length;
+			op(TABLESWITCH, -1);
+			while (length % 4 != 0) {
+				u1(0);
+			}
+			s.table = length;
+			u4(0);
+			u4(low);
+			u4(high);
+			for (int i = low; i <= high; i++) {
+				u4(0);
+			}
+			return s;
+		}
+
+		void setDefault(Switch s) {
+			put4(s.table, length - s.start);
+		}
+
+		void setCase(Switch s, int i) {
+			put4(s.table + 12 + 4 * i, length - s.start);
+		}
+	}
+
+	/*
+	 * Returns the change in stack depth from the arguments and result of a
+	 * method that only takes and returns references and ints.
+	 */
+	private static int stackDelta(String descriptor) {
+		int delta = 0;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char ch = descriptor.charAt(i);
+			while (ch == '[') {
+				ch = descriptor.charAt(++i);
+			}
+			if (ch == 'L') {
+				i = descriptor.indexOf(';', i);
+			}
+			i++;
+			delta--;
+		}
+		return descriptor.charAt(i + 1) == 'V' ? delta : delta + 1;
+	}
+
+	private final ConstantPool pool = new ConstantPool();
+	private final String className;
+	private final List<PdlAssignment> assignments = new ArrayList<>();
+	private final List<PdlExpressionNode> expressions = new ArrayList<>();
+	private final Map<PdlExpressionNode, Integer> expressionIndex = new IdentityHashMap<>();
+	private final List<PdlConditionalAssignment> rules = new ArrayList<>();
+	private final List<PdlExpressionNode> nodes = new ArrayList<>();
+	private final Map<PdlExpressionNode, Integer> nodeIndex = new IdentityHashMap<>();
+	private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private final DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount;
+	private Code code;
+
+	private RuleCompiler(String className) {
+		this.className = className;
+	}
+
+	/**
+	 * Compiles the rules of <code>assignments</code>, returning null if that
+	 * isn't possible.
+	 */
+	static CompiledRuleSet compile(Collection<PdlAssignment> assignments) {
+		String className = "pdl/compiled/RuleSet" + classes.incrementAndGet();
+		RuleCompiler compiler = new RuleCompiler(className);
+		try {
+			byte[] classFile = compiler.generate(assignments);
+			Class<?> type = new Loader().define(className.replace('/', '.'), classFile);
+			CompiledRuleSet ruleSet = (CompiledRuleSet) type.getConstructor().newInstance();
+			ruleSet.init(compiler.assignments, compiler.expressions, compiler.rules, compiler.nodes);
+			return ruleSet;
+		} catch (CompileException | IOException | ReflectiveOperationException | LinkageError e) {
+			logger.warn("could not compile rules, they will be interpreted", e);
+			return null;
+		}
+	}
+
+	private byte[] generate(Collection<PdlAssignment> assignments) throws IOException {
+		this.assignments.addAll(assignments);
+		// constructor
+		code = new Code(1);
+		code.aload(0);
+		code.invoke(INVOKESPECIAL, BASE, "<init>", "()V");
+		code.op(RETURN, 0);
+		method(ACC_PUBLIC, "<init>", "()V");
+		for (int i = 0; i < this.assignments.size(); i++) {
+			property(i, this.assignments.get(i));
+		}
+		// expressions are added as properties refer to them
+		for (int i = 0; i < expressions.size(); i++) {
+			expression(i, expressions.get(i));
+		}
+		dispatch("property", "p", this.assignments.size());
+		dispatch("expression", "e", expressions.size());
+		if (methodCount > 0xffff) {
+			throw new CompileException("too many methods");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int thisClass = pool.classRef(className);
+		int superClass = pool.classRef(BASE);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(pool.count);
+		pool.bytes.writeTo(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(methodCount);
+		methodBytes.writeTo(out);
+		out.writeShort(0); // attributes
+		return bytes.toByteArray();
+	}
+
+	private void method(int access, String name, String descriptor) {
+		int nameRef = pool.utf8(name);
+		int descriptorRef = pool.utf8(descriptor);
+		int codeRef = pool.utf8("Code");
+		try {
+			methods.writeShort(access);
+			methods.writeShort(nameRef);
+			methods.writeShort(descriptorRef);
+			methods.writeShort(1);
+			methods.writeShort(codeRef);
+			methods.writeInt(12 + code.length);
+			methods.writeShort(code.maxStack);
+			methods.writeShort(code.locals);
+			methods.writeInt(code.length);
+			methods.write(code.code, 0, code.length);
+			methods.writeShort(0); // exception table
+			methods.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methodCount++;
+		code = null;
+	}
+
+	/*
+	 * Writes p<n>(scope), which runs the rules of one property the way
+	 * PdlScope.evaluateRules does, with a local for each rule that is set
+	 * when the rule is found to apply.  Overrides are tried first, each one
+	 * that applies going on to scan the rules before it backwards, and then
+	 * the rules that were marked are applied in order.
+	 */
+	private void property(int index, PdlAssignment assignment) {
+		List<PdlConditionalAssignment> ruleList = assignment.getConditionalAssignments();
+		int last = ruleList.size() - 1;
+		for (int i = 0; i < ruleList.size(); i++) {
+			PdlConditionalAssignment rule = ruleList.get(i);
+			if (rule.isOverride() && rule.getBlock() == null) {
+				// later rules can't apply
+				last = i;
+				break;
+			}
+		}
+		code = new Code(2);
+		int result = code.newLocal();
+		int first = rules.size();
+		int[] applied = new int[last + 1];
+		for (int i = 0; i <= last; i++) {
+			rules.add(ruleList.get(i));
+			applied[i] = code.newLocal();
+			code.push(0);
+			code.istore(applied[i]);
+		}
+		// enter[i + 1] is where the backwards scan reaches rule i
+		Label[] enter = new Label[last + 2];
+		for (int i = 0; i < enter.length; i++) {
+			enter[i] = new Label();
+		}
+		Label apply = enter[0];
+		boolean overridden = false;
+		for (int i = 0; i <= last; i++) {
+			PdlConditionalAssignment rule = ruleList.get(i);
+			if (rule.isOverride()) {
+				Label next = new Label();
+				conditions(rule, first + i, next);
+				code.push(1);
+				code.istore(applied[i]);
+				code.jump(GOTO, PdlScope.replaces(rule) ? apply : enter[i], 0);
+				code.mark(next);
+				overridden = rule.getBlock() == null;
+			}
+		}
+		if (!overridden) {
+			code.jump(GOTO, enter[last + 1], 0);
+		}
+		for (int i = last; i >= 0; i--) {
+			code.mark(enter[i + 1]);
+			PdlConditionalAssignment rule = ruleList.get(i);
+			// overrides the scan reaches have already been found not to apply
+			if (!rule.isOverride()) {
+				conditions(rule, first + i, enter[i]);
+				code.push(1);
+				code.istore(applied[i]);
+				if (PdlScope.replaces(rule)) {
+					code.jump(GOTO, apply, 0);
+				}
+			}
+		}
+		code.mark(apply);
+		code.op(ACONST_NULL, 1);
+		code.astore(result);
+		for (int i = 0; i <= last; i++) {
+			PdlConditionalAssignment rule = ruleList.get(i);
+			Label next = new Label();
+			code.iload(applied[i]);
+			code.jump(IFEQ, next, -1);
+			code.aload(0);
+			code.aload(1);
+			code.push(first + i);
+			code.aload(result);
+			if (rule.getPropertySet() != null) {
+				for (PdlExpressionNode value : rule.getPropertySet().getProperties().values()) {
+					expressionIndex(value);
+				}
+				code.invoke(INVOKEVIRTUAL, BASE, "assignProperties",
+						"(Ljava/lang/Object;ILjava/lang/Object;)Ljava/lang/Object;");
+			} else {
+				callExpression(rule.getValue());
+				code.invoke(INVOKEVIRTUAL, BASE, "assign",
+						"(Ljava/lang/Object;ILjava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+			}
+			code.astore(result);
+			if (rule.isOverride()) {
+				// no other override is ever marked
+				code.aload(result);
+				code.op(ARETURN, -1);
+			}
+			code.mark(next);
+		}
+		code.aload(result);
+		code.op(ARETURN, -1);
+		if (code.length > MAX_CODE) {
+			code = new Code(2);
+			code.aload(0);
+			code.aload(1);
+			code.push(index);
+			code.invoke(INVOKEVIRTUAL, BASE, "ruleFallback", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+			code.op(ARETURN, -1);
+		}
+		method(ACC_PRIVATE, "p" + index, EVAL);
+	}
+
+	/*
+	 * Jumps to the label unless the rule's conditions are true, which the
+	 * scope finds with the methods of the conditions.
+	 */
+	private void conditions(PdlConditionalAssignment rule, int ruleIndex, Label otherwise) {
+		if (rule.getBlock() == null) {
+			return;
+		}
+		for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+			expressionIndex(block.getCondition());
+		}
+		code.aload(0);
+		code.aload(1);
+		code.push(ruleIndex);
+		code.invoke(INVOKEVIRTUAL, BASE, "applies", "(Ljava/lang/Object;I)Z");
+		code.jump(IFEQ, otherwise, -1);
+	}
+
+	private int expressionIndex(PdlExpressionNode node) {
+		Integer index = expressionIndex.get(node);
+		if (index == null) {
+			index = expressions.size();
+			expressions.add(node);
+			expressionIndex.put(node, index);
+		}
+		return index;
+	}
+
+	private void callExpression(PdlExpressionNode node) {
+		code.aload(0);
+		code.aload(1);
+		code.invoke(INVOKESPECIAL, className, "e" + expressionIndex(node), EVAL);
+	}
+
+	/*
+	 * Writes e<n>(scope), which evaluates one condition or value.
+	 */
+	private void expression(int index, PdlExpressionNode node) {
+		code = new Code(2);
+		node.accept(this);
+		code.op(ARETURN, -1);
+		if (code.length > MAX_CODE) {
+			code = new Code(2);
+			code.aload(0);
+			code.aload(1);
+			code.push(index);
+			code.invoke(INVOKEVIRTUAL, BASE, "expressionFallback", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+			code.op(ARETURN, -1);
+		}
+		method(ACC_PRIVATE, "e" + index, EVAL);
+	}
+
+	/*
+	 * Writes name(int, scope), which switches on the top bits of the index
+	 * to name<chunk>(int, scope), which switches to prefix<index>(scope).
+	 * Splitting the switch keeps each method small.
+	 */
+	private void dispatch(String name, String prefix, int count) {
+		int chunks = (count >> CHUNK_BITS) + 1;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int low = chunk << CHUNK_BITS;
+			int high = Math.min(count, low + (1 << CHUNK_BITS)) - 1;
+			code = new Code(3);
+			if (high >= low) {
+				code.op(ILOAD_1, 1);
+				Switch table = code.tableswitch(low, high);
+				for (int i = low; i <= high; i++) {
+					code.setCase(table, i - low);
+					code.aload(0);
+					code.aload(2);
+					code.invoke(INVOKESPECIAL, className, prefix + i, EVAL);
+					code.op(ARETURN, -1);
+				}
+				code.setDefault(table);
+			}
+			code.op(ACONST_NULL, 1);
+			code.op(ARETURN, -1);
+			method(ACC_PRIVATE, name + chunk, DISPATCH);
+		}
+		code = new Code(3);
+		code.op(ILOAD_1, 1);
+		code.push(CHUNK_BITS);
+		code.op(ISHR, -1);
+		Switch table = code.tableswitch(0, chunks - 1);
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			code.setCase(table, chunk);
+			code.aload(0);
+			code.op(ILOAD_1, 1);
+			code.aload(2);
+			code.invoke(INVOKESPECIAL, className, name + chunk, DISPATCH);
+			code.op(ARETURN, -1);
+		}
+		code.setDefault(table);
+		code.op(ACONST_NULL, 1);
+		code.op(ARETURN, -1);
+		method(ACC_PROTECTED, name, DISPATCH);
+	}
+
+	private int nodeIndex(PdlExpressionNode node) {
+		Integer index = nodeIndex.get(node);
+		if (index == null) {
+			index = nodes.size();
+			nodes.add(node);
+			nodeIndex.put(node, index);
+		}
+		return index;
+	}
+
+	private void array(List<PdlExpressionNode> elements) {
+		code.push(elements.size());
+		code.op(ANEWARRAY, 0);
+		code.u2(pool.classRef(OBJECT));
+		for (int i = 0; i < elements.size(); i++) {
+			code.op(DUP, 1);
+			code.push(i);
+			elements.get(i).accept(this);
+			code.op(AASTORE, -3);
+		}
+	}
+
+	@Override
+	public void visit(PdlConstantNode rplConstantNode) {
+		code.aload(0);
+		code.push(nodeIndex(rplConstantNode));
+		code.invoke(INVOKEVIRTUAL, BASE, "constant", "(I)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlGetValueNode rplGetValueNode) {
+		code.aload(0);
+		code.aload(1);
+		code.ldc(rplGetValueNode.getName());
+		code.invoke(INVOKEVIRTUAL, BASE, "lookup", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlAttributeNode rplAttributeNode) {
+		code.aload(0);
+		code.push(nodeIndex(rplAttributeNode));
+		rplAttributeNode.getTarget().accept(this);
+		code.invoke(INVOKEVIRTUAL, BASE, "attribute", "(ILjava/lang/Object;)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlInvocationNode rplInvocationNode) {
+		code.aload(0);
+		code.push(nodeIndex(rplInvocationNode));
+		if (rplInvocationNode.isConstructor()) {
+			array(rplInvocationNode.getArguments());
+			code.invoke(INVOKEVIRTUAL, BASE, "construct", "(I[Ljava/lang/Object;)Ljava/lang/Object;");
+		} else {
+			rplInvocationNode.getTarget().accept(this);
+			array(rplInvocationNode.getArguments());
+			code.invoke(INVOKEVIRTUAL, BASE, "invoke",
+					"(ILjava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+	}
+
+	@Override
+	public void visit(PdlBinaryOperatorNode rplBinaryOperatorNode) {
+		switch (rplBinaryOperatorNode.getOperator()) {
+		case PdlBinaryOperatorNode.L_AND: {
+			Label otherwise = new Label(), end = new Label();
+			code.aload(0);
+			code.aload(1);
+			rplBinaryOperatorNode.getLeft().accept(this);
+			code.invoke(INVOKEVIRTUAL, BASE, "isTrue", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+			code.jump(IFEQ, otherwise, -1);
+			rplBinaryOperatorNode.getRight().accept(this);
+			code.jump(GOTO, end, -1);
+			code.mark(otherwise);
+			code.op(ACONST_NULL, 1);
+			code.mark(end);
+			break;
+		}
+		case PdlBinaryOperatorNode.L_OR: {
+			Label otherwise = new Label(), end = new Label();
+			int left = code.newLocal();
+			rplBinaryOperatorNode.getLeft().accept(this);
+			code.astore(left);
+			code.aload(0);
+			code.aload(1);
+			code.aload(left);
+			code.invoke(INVOKEVIRTUAL, BASE, "isTrue", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+			code.jump(IFEQ, otherwise, -1);
+			code.aload(left);
+			code.jump(GOTO, end, -1);
+			code.mark(otherwise);
+			rplBinaryOperatorNode.getRight().accept(this);
+			code.mark(end);
+			break;
+		}
+		default:
+			code.aload(0);
+			code.aload(1);
+			code.push(nodeIndex(rplBinaryOperatorNode));
+			rplBinaryOperatorNode.getLeft().accept(this);
+			rplBinaryOperatorNode.getRight().accept(this);
+			code.invoke(INVOKEVIRTUAL, BASE, "binary",
+					"(Ljava/lang/Object;ILjava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+	}
+
+	@Override
+	public void visit(PdlUnaryOperatorNode rplUnaryOperatorNode) {
+		code.aload(0);
+		code.aload(1);
+		code.push(nodeIndex(rplUnaryOperatorNode));
+		rplUnaryOperatorNode.getTarget().accept(this);
+		code.invoke(INVOKEVIRTUAL, BASE, "unary", "(Ljava/lang/Object;ILjava/lang/Object;)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlListNode rplListNode) {
+		code.aload(0);
+		array(rplListNode.getElements());
+		code.invoke(INVOKEVIRTUAL, BASE, "list", "([Ljava/lang/Object;)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlSubscriptNode rplSubscriptNode) {
+		code.aload(0);
+		code.aload(1);
+		code.push(nodeIndex(rplSubscriptNode));
+		rplSubscriptNode.getTarget().accept(this);
+		rplSubscriptNode.getIndex().accept(this);
+		code.invoke(INVOKEVIRTUAL, BASE, "subscript",
+				"(Ljava/lang/Object;ILjava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+	}
+
+	@Override
+	public void visit(PdlDictNode rplDictNode) {
+		List<PdlExpressionNode> elements = new ArrayList<>();
+		code.aload(0);
+		if (rplDictNode.isSet()) {
+			for (Object element : rplDictNode.getDict().keySet()) {
+				elements.add((PdlExpressionNode) element);
+			}
+			array(elements);
+			code.invoke(INVOKEVIRTUAL, BASE, "set", "([Ljava/lang/Object;)Ljava/lang/Object;");
+		} else {
+			for (Object value : rplDictNode.getDict().values()) {
+				elements.add((PdlExpressionNode) value);
+			}
+			code.push(nodeIndex(rplDictNode));
+			array(elements);
+			code.invoke(INVOKEVIRTUAL, BASE, "dict", "(I[Ljava/lang/Object;)Ljava/lang/Object;");
+		}
+	}
+
+}
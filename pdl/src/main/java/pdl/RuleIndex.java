@@ -0,0 +1,327 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexes the rules of a property by the constants their blocks compare
+ * another property with, as in <code>if (HOST == 'web-17')</code>,
+ * <code>if (HOST in ['web-1', 'web-2'])</code> or
+ * <code>if ('web' in ROLES)</code>.  Once the other property's value is
+ * known the rules whose guards can't hold are passed over without looking
+ * at them, so a property with a rule for each of thousands of hosts finds
+ * the few that may apply directly.  The rules that may apply are still
+ * checked and applied in order, so the result is the same.  The other
+ * property is only looked up once the blocks around a guard hold, as it
+ * would be if the conditions were evaluated one by one.
+ * <p>
+ * Only the property that guards the most rules is used, and only if it
+ * guards at least {@link #MIN_GUARDED}.  Keys are compared the way
+ * <code>==</code> compares: strings that aren't numbers as strings, and
+ * numbers, or strings that are numbers, by value.  A value that can't be a
+ * key, such as a double, leaves every guarded rule to be checked.
+ */
+final class RuleIndex {
+	static final int MIN_GUARDED = 4;
+
+	private static final BitSet NONE = new BitSet();
+
+	// the rules that are overrides, the rules that aren't guarded and those that are
+	final BitSet overrides = new BitSet();
+	final BitSet unguarded = new BitSet();
+	final BitSet guarded = new BitSet();
+	// the property the guards compare, or null if there is no index
+	private final String name;
+	// the rules guarded by name == key or name in [key, ...]
+	private final Map<Object, BitSet> equal = new HashMap<>();
+	// the rules guarded by key in name
+	private final Map<Object, BitSet> member = new HashMap<>();
+	// the block around each guarded rule's guard, or null if it is outermost
+	private final PdlConditionalBlock[] outer;
+
+	/**
+	 * Where an evaluation of the property's rules is, going from one rule
+	 * that may apply to the next.
+	 */
+	final class Scan {
+		private final PdlScope scope;
+		private BitSet candidates;
+
+		Scan(PdlScope scope) {
+			this.scope = scope;
+		}
+
+		/**
+		 * Returns the first override at or after <code>from</code> that may
+		 * apply, or -1 if there are none.
+		 */
+		int nextOverride(int from) {
+			for (int i = overrides.nextSetBit(from); i >= 0; i = overrides.nextSetBit(i + 1)) {
+				if (!guarded.get(i) || reaches(i) && candidates().get(i)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the last rule before <code>before</code> that may apply, or
+		 * -1 if there are none.
+		 */
+		int previous(int before) {
+			if (before <= 0) {
+				return -1;
+			}
+			int i = unguarded.previousSetBit(before - 1);
+			for (int j = guarded.previousSetBit(before - 1); j > i; j = guarded.previousSetBit(j - 1)) {
+				if (reaches(j)) {
+					return Math.max(i, candidates().previousSetBit(j));
+				}
+			}
+			return i;
+		}
+
+		/*
+		 * Whether the blocks around a guarded rule's guard hold, so that the
+		 * guard would be evaluated.  A rule for which they don't can't apply.
+		 */
+		private boolean reaches(int rule) {
+			return candidates != null || scope.holds(outer[rule]);
+		}
+
+		private BitSet candidates() {
+			if (candidates == null) {
+				candidates = RuleIndex.this.candidates(Evaluator.lookup(scope, name));
+			}
+			return candidates;
+		}
+	}
+
+	private RuleIndex(List<PdlConditionalAssignment> rules) {
+		Map<String, Integer> counts = new HashMap<>();
+		List<List<Guard>> guards = new ArrayList<>(rules.size());
+		for (PdlConditionalAssignment rule : rules) {
+			List<Guard> ruleGuards = new ArrayList<>();
+			for (PdlConditionalBlock block = rule.getBlock(); block != null; block = block.getParent()) {
+				Guard guard = Guard.of(block);
+				if (guard != null) {
+					ruleGuards.add(guard);
+				}
+			}
+			guards.add(ruleGuards);
+			Set<String> names = new HashSet<>();
+			for (Guard guard : ruleGuards) {
+				if (names.add(guard.name)) {
+					counts.merge(guard.name, 1, Integer::sum);
+				}
+			}
+		}
+		String best = null;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() >= MIN_GUARDED && (best == null || entry.getValue() > counts.get(best))) {
+				best = entry.getKey();
+			}
+		}
+		name = best;
+		outer = new PdlConditionalBlock[rules.size()];
+		for (int i = 0; i < rules.size(); i++) {
+			if (rules.get(i).isOverride()) {
+				overrides.set(i);
+			}
+			Guard guard = null;
+			for (Guard ruleGuard : guards.get(i)) {
+				if (ruleGuard.name.equals(name)) {
+					guard = ruleGuard;
+				}
+			}
+			if (guard == null) {
+				unguarded.set(i);
+				continue;
+			}
+			guarded.set(i);
+			outer[i] = guard.block.getParent();
+			for (Object key : guard.keys) {
+				(guard.member ? member : equal).computeIfAbsent(key, k -> new BitSet()).set(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of a property's rules, building it the first time.
+	 */
+	static RuleIndex of(PdlAssignment assignment) {
+		RuleIndex index = assignment.index;
+		if (index == null) {
+			index = new RuleIndex(assignment.getConditionalAssignments());
+			assignment.index = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Whether some of the rules are guarded.
+	 */
+	boolean isGuarded() {
+		return name != null;
+	}
+
+	/*
+	 * Returns the guarded rules that may apply when the guarded property has
+	 * the value.
+	 */
+	private BitSet candidates(Object value) {
+		BitSet result = NONE;
+		if (value != null && !equal.isEmpty()) {
+			Object key = key(value);
+			if (key == null) {
+				return guarded;
+			}
+			result = equal.getOrDefault(key, NONE);
+		}
+		if (value != null && !member.isEmpty()) {
+			Collection<?> elements;
+			if (value instanceof Collection<?>) {
+				elements = (Collection<?>) value;
+			} else if (value instanceof Map<?, ?>) {
+				elements = ((Map<?, ?>) value).keySet();
+			} else {
+				return guarded;
+			}
+			result = (BitSet) result.clone();
+			for (Object element : elements) {
+				Object key = key(element);
+				if (key == null) {
+					return guarded;
+				}
+				BitSet rules = member.get(key);
+				if (rules != null) {
+					result.or(rules);
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Returns a key that is equal to another key exactly when the values are
+	 * == in PDL, as Evaluator.equal decides, or null for a value that isn't a
+	 * string or a number of a known kind.  Only strings and numbers are keys,
+	 * so values that are only == because they are equal never are.
+	 */
+	static Object key(Object value) {
+		BigDecimal number;
+		if (value instanceof String) {
+			String s = (String) value;
+			if (ValueFunctions.classify(s) == ValueFunctions.NOT_NUMERIC
+					|| (number = ValueFunctions.parseNumber(s)) == null) {
+				return s;
+			}
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			number = BigDecimal.valueOf(((Number) value).longValue());
+		} else if (value instanceof BigInteger) {
+			number = new BigDecimal((BigInteger) value);
+		} else if (value instanceof BigDecimal) {
+			number = (BigDecimal) value;
+		} else {
+			return null;
+		}
+		return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+	}
+
+	/*
+	 * A condition that compares a property with constants.
+	 */
+	private static final class Guard {
+		final PdlConditionalBlock block;
+		final String name;
+		final boolean member;
+		final List<Object> keys;
+
+		private Guard(PdlConditionalBlock block, String name, boolean member, List<Object> keys) {
+			this.block = block;
+			this.name = name;
+			this.member = member;
+			this.keys = keys;
+		}
+
+		static Guard of(PdlConditionalBlock block) {
+			PdlExpressionNode condition = block.getCondition();
+			if (!(condition instanceof PdlBinaryOperatorNode)) {
+				return null;
+			}
+			PdlBinaryOperatorNode node = (PdlBinaryOperatorNode) condition;
+			PdlExpressionNode left = node.getLeft();
+			PdlExpressionNode right = node.getRight();
+			switch (node.getOperator()) {
+			case PdlBinaryOperatorNode.EQ:
+				if (left instanceof PdlConstantNode) {
+					return guard(block, right, left, false, false);
+				}
+				return guard(block, left, right, false, false);
+			case PdlBinaryOperatorNode.IN:
+				if (left instanceof PdlConstantNode) {
+					return guard(block, right, left, true, false);
+				}
+				return guard(block, left, right, false, true);
+			default:
+				return null;
+			}
+		}
+
+		/*
+		 * The property is == to the constant, or contains it if member is
+		 * set, or is == to one of the constant's elements if elements is set.
+		 */
+		private static Guard guard(PdlConditionalBlock block, PdlExpressionNode property, PdlExpressionNode constant,
+				boolean member, boolean elements) {
+			if (!(property instanceof PdlGetValueNode) || !(constant instanceof PdlConstantNode)) {
+				return null;
+			}
+			PdlConstantNode node = (PdlConstantNode) constant;
+			// == compares a numeric literal as the number it was decoded to
+			Object value = node.getNumber() != null ? node.getNumber() : node.getConstant();
+			List<Object> keys = new ArrayList<>();
+			if (!elements) {
+				keys.add(value);
+			} else if (value instanceof Collection<?>) {
+				keys.addAll((Collection<?>) value);
+			} else if (value instanceof Map<?, ?>) {
+				keys.addAll(((Map<?, ?>) value).keySet());
+			} else {
+				return null;
+			}
+			for (int i = 0; i < keys.size(); i++) {
+				Object key = key(keys.get(i));
+				if (key == null) {
+					return null;
+				}
+				keys.set(i, key);
+			}
+			return new Guard(block, ((PdlGetValueNode) property).getName(), member, keys);
+		}
+	}
+
+}
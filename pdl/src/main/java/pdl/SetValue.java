@@ -0,0 +1,78 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The immutable set a set literal, or adding to a set, evaluates to.
+ * Adding to a set copies it.
+ */
+final class SetValue extends AbstractSet<Object> {
+	private final Set<Object> set;
+
+	private SetValue(Set<Object> set) {
+		this.set = set;
+	}
+
+	/**
+	 * Returns a set of the values, which must not be changed afterwards.
+	 */
+	static SetValue of(LinkedHashSet<Object> values) {
+		return new SetValue(values);
+	}
+
+	static SetValue copyOf(Collection<?> collection) {
+		if (collection instanceof SetValue) {
+			return (SetValue) collection;
+		}
+		return new SetValue(new LinkedHashSet<Object>(collection));
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return Collections.unmodifiableSet(set).iterator();
+	}
+
+	@Override
+	public int size() {
+		return set.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return set.contains(o);
+	}
+
+	/**
+	 * Returns this set with the elements of a collection, or a single value,
+	 * added.
+	 */
+	SetValue plus(Object value) {
+		LinkedHashSet<Object> result = new LinkedHashSet<Object>(set);
+		if (value instanceof Collection<?>) {
+			result.addAll((Collection<?>) value);
+		} else {
+			result.add(value);
+		}
+		return new SetValue(result);
+	}
+
+}
@@ -14,74 +14,332 @@
 
 package pdl;
 
-import java.io.BufferedReader;
+import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.IdentityHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 public class SourceMap {
-	private final Map<String, List<String>> sources = new IdentityHashMap<>();
+	private final Map<String, Source> sources = Collections.synchronizedMap(new IdentityHashMap<>());
+	private final boolean lazy;
 
-	public Reader ingest(Reader reader, String filename) throws IOException {
-		final List<String> lines = new ArrayList<>();
-		try (BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader
-				: new BufferedReader(reader)) {
-			String line;
-			while ((line = in.readLine()) != null) {
-				lines.add(line);
+	public SourceMap() {
+		this(false);
+	}
+
+	/**
+	 * @param lazy
+	 *            if true, sources that are files only keep where their lines
+	 *            start and a checksum, and {@link #getLine(String, int)} reads
+	 *            the line from the file again.  Lines of a file that has
+	 *            changed since it was parsed are not returned.
+	 */
+	public SourceMap(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/*
+	 * The content of one source.  Where lines start is only worked out the
+	 * first time a line is asked for.
+	 */
+	private static abstract class Source {
+		private int[] lineStarts;
+		private int lines;
+
+		abstract int length();
+
+		abstract int charAt(int i);
+
+		abstract String getText(int start, int end);
+
+		synchronized String getLine(int lineNumber) {
+			if (lineStarts == null) {
+				index();
+			}
+			if (lineNumber < 1 || lineNumber > lines) {
+				return null;
 			}
+			int start = lineStarts[lineNumber - 1];
+			int end = lineNumber < lines ? lineStarts[lineNumber] - 1 : length();
+			if (end > start && charAt(end - 1) == '\n') {
+				end--;
+			}
+			if (end > start && charAt(end - 1) == '\r') {
+				end--;
+			}
+			return getText(start, end);
+		}
+
+		/*
+		 * CRC32 of the content, with chars above 0xff contributing two bytes.
+		 */
+		long checksum() {
+			CRC32 crc = new CRC32();
+			int length = length();
+			for (int i = 0; i < length; i++) {
+				int ch = charAt(i);
+				crc.update(ch);
+				if (ch > 0xff) {
+					crc.update(ch >>> 8);
+				}
+			}
+			return crc.getValue();
 		}
-		sources.put(filename, lines);
-		return new Reader() {
-			private int lineNumber, column;
-			
-			@Override
-			public int read(char[] cbuf, int off, int len) throws IOException {
-				int n = 0;
-				while (n < len) {
-					int ch = read();
-					if (ch < 0) {
-						break;
+
+		void index() {
+			int length = length();
+			int[] starts = new int[16];
+			int n = 0;
+			if (length > 0) {
+				starts[n++] = 0;
+			}
+			for (int i = 0; i < length - 1; i++) {
+				if (charAt(i) == '\n') {
+					if (n == starts.length) {
+						starts = Arrays.copyOf(starts, n * 2);
 					}
-					cbuf[n++] = (char)ch;
+					starts[n++] = i + 1;
 				}
-				return n == 0 ? -1 :n;
 			}
+			lineStarts = Arrays.copyOf(starts, n);
+			lines = n;
+		}
+	}
 
-			@Override
-			public void close() throws IOException {
+	private static class CharSource extends Source {
+		private final char[] content;
+		private final int length;
+
+		CharSource(char[] content, int length) {
+			this.content = content;
+			this.length = length;
+		}
+
+		@Override
+		int length() {
+			return length;
+		}
+
+		@Override
+		int charAt(int i) {
+			return content[i];
+		}
+
+		@Override
+		String getText(int start, int end) {
+			return new String(content, start, end - start);
+		}
+	}
+
+	/*
+	 * UTF-8 content, typically the same mapping the parser scanned.
+	 */
+	private static class ByteSource extends Source {
+		private final ByteBuffer content;
+
+		ByteSource(ByteBuffer content) {
+			this.content = content;
+		}
+
+		@Override
+		int length() {
+			return content.limit();
+		}
+
+		@Override
+		int charAt(int i) {
+			return content.get(i) & 0xff;
+		}
+
+		@Override
+		String getText(int start, int end) {
+			byte[] b = new byte[end - start];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = content.get(start + i);
 			}
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	}
 
-			@Override
-			public int read() throws IOException {
-				if (lineNumber < lines.size()) {
-					String line = lines.get(lineNumber);
-					char ch;
-					if (column == line.length()) {
-						ch = '\n';
-						lineNumber++;
-						column = 0;
-					} else {
-						ch = line.charAt(column);
-						column++;
+	/*
+	 * A file whose lines are read again when they are asked for.  Only where
+	 * the lines start in the UTF-8 file is kept, so each line is read by
+	 * itself.  The whole file is only read again, to compare its checksum,
+	 * when its size or modification time has changed since it was last
+	 * checked.
+	 */
+	private static class LazySource extends Source {
+		private final Path path;
+		private final int length;
+		private final long checksum;
+		// the byte offset of each line in the file, and then its size
+		private final long[] offsets;
+		private final boolean utf8;
+		private long size = -1;
+		private FileTime modified;
+		private boolean changed;
+
+		LazySource(Path path, Source content) {
+			this.path = path;
+			this.utf8 = content instanceof ByteSource;
+			this.length = content.length();
+			this.checksum = content.checksum();
+			long[] starts = new long[16];
+			int n = 0;
+			long offset = 0;
+			if (length > 0) {
+				starts[n++] = 0;
+			}
+			for (int i = 0; i < length; i++) {
+				int ch = content.charAt(i);
+				// a surrogate pair is 4 bytes, 2 for each half
+				offset += utf8 || ch < 0x80 ? 1 : ch < 0x800 || Character.isSurrogate((char) ch) ? 2 : 3;
+				if (ch == '\n' && i < length - 1) {
+					if (n == starts.length) {
+						starts = Arrays.copyOf(starts, n * 2);
+					}
+					starts[n++] = offset;
+				}
+			}
+			offsets = Arrays.copyOf(starts, n + 1);
+			offsets[n] = offset;
+			try {
+				size = Files.size(path);
+				modified = Files.getLastModifiedTime(path);
+			} catch (IOException e) {
+				// checked the first time a line is asked for
+			}
+		}
+
+		@Override
+		synchronized String getLine(int lineNumber) {
+			if (lineNumber < 1 || lineNumber >= offsets.length) {
+				return null;
+			}
+			try {
+				if (!check()) {
+					return null;
+				}
+				long start = offsets[lineNumber - 1];
+				ByteBuffer line = ByteBuffer.allocate((int) (offsets[lineNumber] - start));
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					while (line.hasRemaining() && channel.read(line, start + line.position()) >= 0) {
 					}
-					return ch;
 				}
-				return -1;
+				int end = line.position();
+				if (end > 0 && line.get(end - 1) == '\n') {
+					end--;
+				}
+				if (end > 0 && line.get(end - 1) == '\r') {
+					end--;
+				}
+				return new String(line.array(), 0, end, StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		/*
+		 * Whether the file still has the content it was parsed from.
+		 */
+		private boolean check() throws IOException {
+			long size = Files.size(path);
+			FileTime modified = Files.getLastModifiedTime(path);
+			if (size != this.size || !modified.equals(this.modified)) {
+				Source content = utf8 ? new ByteSource(PdlParser.map(path)) : read(Files.newBufferedReader(path));
+				changed = content.length() != length || content.checksum() != checksum;
+				this.size = size;
+				this.modified = modified;
+			}
+			return !changed;
+		}
+
+		@Override
+		int length() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		int charAt(int i) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		String getText(int start, int end) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Reads all of <code>reader</code>, and returns a reader over the
+	 * same content.
+	 */
+	public Reader ingest(Reader reader, String filename) throws IOException {
+		CharSource source = read(reader);
+		Path path = lazy ? toFile(filename) : null;
+		sources.put(filename, path != null ? new LazySource(path, source) : source);
+		return new CharArrayReader(source.content, 0, source.length);
+	}
+
+	/*
+	 * Returns the file a source was read from, or null if the name isn't a
+	 * file.  Readers are assumed to have read the file as UTF-8, otherwise
+	 * the checksum won't match when the file is read again.
+	 */
+	private static Path toFile(String filename) {
+		try {
+			Path path = Paths.get(filename);
+			return Files.isRegularFile(path) ? path : null;
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	private static CharSource read(Reader reader) throws IOException {
+		char[] content = new char[8192];
+		int length = 0;
+		try (Reader in = reader) {
+			int n;
+			while ((n = in.read(content, length, content.length - length)) >= 0) {
+				length += n;
+				if (length == content.length) {
+					content = Arrays.copyOf(content, length * 2);
+				}
 			}
+		}
+		return new CharSource(content, length);
+	}
 
-		};
+	/**
+	 * Records UTF-8 content without copying it.  The buffer must not be
+	 * changed afterwards.
+	 */
+	void ingest(ByteBuffer content, String filename) {
+		ByteSource source = new ByteSource(content);
+		Path path = lazy ? toFile(filename) : null;
+		sources.put(filename, path != null ? new LazySource(path, source) : source);
 	}
-	
+
+	void remove(String filename) {
+		sources.remove(filename);
+	}
+
 	public String getLine(String filename, int lineNumber) {
-		List<String> lines = sources.get(filename);
-		if (lines != null && lineNumber > 0 && lineNumber <= lines.size()) {
-			return lines.get(lineNumber - 1);
-		}
-		return null;
+		Source source = sources.get(filename);
+		return source != null ? source.getLine(lineNumber) : null;
 	}
 
 }
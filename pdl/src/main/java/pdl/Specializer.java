@@ -0,0 +1,212 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package pdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Specializes rules for fixed values of some properties.  Each bound
+ * property gets a single rule giving it its value, and then, until nothing
+ * changes, references to properties with a known value are folded, rules
+ * in a block whose condition is false are dropped, blocks whose condition
+ * is true are removed, rules that can never decide a value are dropped, and
+ * a property left with only unconditional constant rules is evaluated and
+ * becomes known in turn.  The rules are copied first, so the parser's own
+ * rules are left alone.
+ */
+class Specializer {
+	private final Map<String, PdlAssignment> assignments;
+	private final Map<String, Object> known = new HashMap<>();
+	// the blocks that replace blocks nested in a block that was removed
+	private Map<PdlConditionalBlock, PdlConditionalBlock> blocks;
+
+	Specializer(Collection<PdlAssignment> assignments, Map<String, ?> bindings) {
+		for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+			if (!ConstantFolder.isFoldable(binding.getValue())) {
+				throw new IllegalArgumentException(String.format("%s can't be bound to a %s", binding.getKey(),
+						binding.getValue().getClass().getName()));
+			}
+			known.put(binding.getKey(), binding.getValue());
+		}
+		this.assignments = copy(assignments);
+	}
+
+	private static Map<String, PdlAssignment> copy(Collection<PdlAssignment> assignments) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			PdlcFormat.write(assignments, out);
+			out.flush();
+			return new LinkedHashMap<>(
+					PdlcFormat.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the residual rules, which give every property the same value
+	 * as the original rules do when the bound properties have their bound
+	 * values.
+	 */
+	Map<String, PdlAssignment> specialize() {
+		for (Map.Entry<String, Object> binding : known.entrySet()) {
+			PdlAssignment assignment = assignments.computeIfAbsent(binding.getKey(), PdlAssignment::new);
+			List<PdlConditionalAssignment> rules = assignment.getConditionalAssignments();
+			setValue(assignment, rules.isEmpty() ? null : rules.get(0), binding.getValue());
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			ConstantFolder folder = new ConstantFolder(known);
+			blocks = new IdentityHashMap<>();
+			for (PdlAssignment assignment : assignments.values()) {
+				if (known.containsKey(assignment.getName())) {
+					continue;
+				}
+				List<PdlConditionalAssignment> rules = assignment.getConditionalAssignments();
+				PdlNode first = rules.isEmpty() ? null : rules.get(0);
+				folder.fold(rules);
+				simplify(folder, assignment);
+				if (isConstant(rules)) {
+					Object value = null;
+					if (!rules.isEmpty()) {
+						try {
+							value = new PdlScope(Collections.singletonMap(assignment.getName(), assignment))
+									.get(assignment.getName());
+						} catch (RuntimeException e) {
+							continue;
+						}
+					}
+					if (ConstantFolder.isFoldable(value)) {
+						known.put(assignment.getName(), value);
+						setValue(assignment, first, value);
+						changed = true;
+					}
+				}
+			}
+		}
+		for (PdlAssignment assignment : assignments.values()) {
+			FrameLayout.number(assignment.getConditionalAssignments());
+		}
+		return assignments;
+	}
+
+	/*
+	 * Replaces the rules of a property with one rule, at the position of
+	 * the property's first rule if it had any.
+	 */
+	private static void setValue(PdlAssignment assignment, PdlNode position, Object value) {
+		PdlConditionalAssignment rule = new PdlConditionalAssignment(assignment.getName());
+		if (position != null) {
+			rule.setSource(position.getSource());
+			rule.setLine(position.getLine());
+			rule.setCol(position.getColumn());
+		}
+		rule.setValue(ConstantFolder.constant(rule, value));
+		assignment.getConditionalAssignments().clear();
+		assignment.getConditionalAssignments().add(rule);
+		assignment.index = null;
+	}
+
+	private void simplify(ConstantFolder folder, PdlAssignment assignment) {
+		List<PdlConditionalAssignment> rules = assignment.getConditionalAssignments();
+		List<PdlConditionalAssignment> live = new ArrayList<>();
+		for (PdlConditionalAssignment rule : rules) {
+			if (!isDead(folder, rule.getBlock())) {
+				rule.setBlock(simplify(rule.getBlock()));
+				live.add(rule);
+			}
+		}
+		// an unconditional override hides the rules after it
+		int end = live.size();
+		int firstOverride = -1;
+		for (int i = 0; i < live.size(); i++) {
+			if (live.get(i).isOverride()) {
+				if (firstOverride < 0) {
+					firstOverride = i;
+				}
+				if (live.get(i).getBlock() == null) {
+					end = i + 1;
+					break;
+				}
+			}
+		}
+		// and so does the last unconditional rule that replaces the value,
+		// unless an override before it might apply
+		int start = 0;
+		for (int i = firstOverride < 0 ? end - 1 : firstOverride; i >= 0; i--) {
+			if (live.get(i).getBlock() == null && PdlScope.replaces(live.get(i))) {
+				start = i;
+				break;
+			}
+		}
+		rules.clear();
+		rules.addAll(live.subList(start, end));
+		assignment.index = null;
+	}
+
+	private static boolean isDead(ConstantFolder folder, PdlConditionalBlock block) {
+		for (; block != null; block = block.getParent()) {
+			PdlExpressionNode condition = block.getCondition();
+			if (ConstantFolder.isConstant(condition) && !folder.isTrue(((PdlConstantNode) condition).getConstant())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the block a rule is in once the blocks whose condition is true
+	 * are removed.
+	 */
+	private PdlConditionalBlock simplify(PdlConditionalBlock block) {
+		if (block == null) {
+			return null;
+		}
+		if (ConstantFolder.isConstant(block.getCondition())) {
+			return simplify(block.getParent());
+		}
+		PdlConditionalBlock parent = simplify(block.getParent());
+		if (parent == block.getParent()) {
+			return block;
+		}
+		return blocks.computeIfAbsent(block, b -> new PdlConditionalBlock(parent, b.getCondition()));
+	}
+
+	private static boolean isConstant(List<PdlConditionalAssignment> rules) {
+		for (PdlConditionalAssignment rule : rules) {
+			if (rule.getBlock() != null || rule.getPropertySet() != null || !ConstantFolder.isConstant(rule.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
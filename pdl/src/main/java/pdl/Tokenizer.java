@@ -15,10 +15,21 @@
 package pdl;
 
 import java.io.IOException;
-import java.io.PushbackReader;
 import java.io.Reader;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * Scans PDL tokens out of a <code>char[]</code> window. Input read from a
+ * {@link Reader} is appended to the window as needed and never discarded
+ * during a parse, so token values are recorded as offsets into the window
+ * and only turned into strings when asked for.
+ * <p>
+ * A tokenizer may also scan UTF-8 bytes directly (typically a memory mapped
+ * file.)  In that case offsets and columns count bytes, not chars.
+ */
 class Tokenizer {
 	/*
 	 * token definitions 
@@ -29,28 +40,74 @@ class Tokenizer {
 	private static final int S_INIT = 0, S_TRIPLE_QUOTE_STRING = 1, S_SINGLE_QUOTE_STRING = '\'',
 			S_DOUBLE_QUOTE_STRING = '\"', S_NUMBER = 2, S_FRAC = 3, S_ID = 4, S_BINARY = 5, S_EXP = 6, S_EXP2 = 7,
 			S_LINE_COMMENT = 8, S_BLOCK_COMMENT = 9, S_HEX = 10;
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	// a buffer grown past this for one large source isn't handed on
+	private static final int MAX_KEPT_BUFFER_SIZE = 4 * DEFAULT_BUFFER_SIZE;
 
 	private String value;
+	private int valueStart = -1, valueEnd;
+	// true if value isn't the text between valueStart and valueEnd
+	private boolean synthetic;
 	private int token;
-	private int line;
-	private final int[] col;
+	private int line, lineStart, prevLineStart;
 
-	private final PushbackReader in;
+	private Reader in;
+	private char[] buf;
+	private ByteBuffer bytes;
+	private byte[] scratch;
+	private int pos, end;
 
 	Tokenizer(Reader in) {
-		col = new int[16];
-		this.in = new PushbackReader(in, col.length);
+		this(in, null);
+	}
+
+	/**
+	 * @param buffer a buffer to scan into, typically left over from a previous
+	 *   parse; it is grown as needed (see {@link #getBuffer()}.)  May be null.
+	 */
+	Tokenizer(Reader in, char[] buffer) {
+		this.in = in;
+		this.buf = buffer != null && buffer.length > 0 ? buffer : new char[DEFAULT_BUFFER_SIZE];
+	}
+
+	/**
+	 * Scans already loaded content.
+	 */
+	Tokenizer(char[] content, int offset, int length) {
+		this.buf = content;
+		this.pos = offset;
+		this.end = offset + length;
+		this.lineStart = offset;
+		this.prevLineStart = offset;
+	}
+
+	/**
+	 * Scans UTF-8 encoded content between the position and limit of
+	 * <code>content</code>.  The buffer's position is not changed.
+	 */
+	Tokenizer(ByteBuffer content) {
+		this.bytes = content;
+		this.pos = content.position();
+		this.end = content.limit();
+		// skip a byte order mark
+		if (end - pos >= 3 && (content.get(pos) & 0xff) == 0xef && (content.get(pos + 1) & 0xff) == 0xbb
+				&& (content.get(pos + 2) & 0xff) == 0xbf) {
+			pos += 3;
+		}
+		this.lineStart = pos;
+		this.prevLineStart = pos;
 	}
 
 	int nextToken() throws IOException {
-		StringBuilder buffer = new StringBuilder();
+		value = null;
+		valueStart = -1;
+		synthetic = false;
 		int state = S_INIT;
 		while (true) {
 			int ch = read();
 			switch (state) {
 			case S_INIT:
 				if (ch == -1) {
-					value = null;
 					return token = EOF;
 				}
 				if (Character.isWhitespace(ch)) {
@@ -80,19 +137,20 @@ class Tokenizer {
 						state = S_DOUBLE_QUOTE_STRING;
 						token = INTERP_STRING;
 					}
+					valueStart = pos;
 					break;
 				}
 				if (ch == '\'') {
 					state = S_SINGLE_QUOTE_STRING;
 					token = STRING;
+					valueStart = pos;
 					break;
 				}
 				if (ch >= '0' && ch <= '9') {
 					state = S_NUMBER;
-					buffer.append((char) ch);
+					valueStart = pos - 1;
 					int ch2 = read();
 					if (ch2 == 'x' || ch2 == 'X') {
-						buffer.append((char) ch2);
 						state = S_HEX;
 					} else if (ch2 == 'b') {
 						state = S_BINARY;
@@ -104,8 +162,7 @@ class Tokenizer {
 				if (ch == '-' || ch == '+') {
 					int ch2 = read();
 					if ((ch2 >= '0' && ch2 <= '9') || ch == '.') {
-						buffer.append((char) ch);
-						buffer.append((char) ch2);
+						valueStart = pos - 2;
 						state = ch == '.' ? S_FRAC : S_NUMBER;
 						break;
 					}
@@ -129,7 +186,6 @@ class Tokenizer {
 				if (ch == '|' || ch == '&' || ch == '=') {
 					int ch2 = read();
 					if (ch2 == ch) {
-						value = null;
 						switch (ch) {
 						case '|':
 							return token = L_OR;
@@ -145,11 +201,9 @@ class Tokenizer {
 				if (ch == '<' || ch == '>') {
 					int ch2 = read();
 					if (ch2 == ch) {
-						value = null;
 						return token = (ch == '<' ? L_SHIFT : R_SHIFT);
 					}
 					if (ch2 == '=') {
-						value = null;
 						return token = (ch == '<' ? LTE : GTE);
 					}
 					unread(ch2);
@@ -158,18 +212,16 @@ class Tokenizer {
 					if (ch == '.') {
 						int ch2 = read();
 						if (ch2 >= '0' && ch2 <= '9') {
-							buffer.append((char) ch);
-							buffer.append((char) ch2);
+							valueStart = pos - 2;
 							state = S_FRAC;
 							break;
 						}
 						unread(ch2);
 					}
-					value = null;
 					return token = ch;
 				}
-				if (Character.isJavaIdentifierStart((char) ch)) {
-					buffer.append((char) ch);
+				if (Character.isJavaIdentifierStart(ch)) {
+					valueStart = pos - 1;
 					state = S_ID;
 					token = ID;
 					break;
@@ -182,48 +234,42 @@ class Tokenizer {
 					throw new SyntaxException(String.format("unexpected EOF in string at line %d", getLine()));
 				}
 				if (ch == state) {
-					value = buffer.toString();
+					valueEnd = pos - 1;
 					return token;
 				}
-				buffer.append((char) ch);
 				break;
 			case S_TRIPLE_QUOTE_STRING:
 				if (ch == -1) {
 					throw new SyntaxException(String.format("unexpected EOF in string at line %d", getLine()));
 				}
 				if (isTripleQuote(ch)) {
-					value = buffer.toString();
+					valueEnd = pos - 3;
 					return token;
 				}
-				buffer.append((char) ch);
 				break;
 
 			case S_BINARY:
-				if (ch == '0' || ch == '1') {
-					buffer.append((char) ch);
-				} else {
+				if (ch != '0' && ch != '1') {
 					unread(ch);
-					BigInteger b = BigInteger.valueOf(0);
-					BigInteger two = BigInteger.valueOf(2);
-					for (int i = 0; i < buffer.length(); i++) {
-						if (i != 0) {
-							b = b.multiply(two);
-						}
-						if (buffer.charAt(i) == '1') {
-							b = b.add(BigInteger.ONE);
+					// skip the "0b" prefix
+					BigInteger b = BigInteger.ZERO;
+					for (int i = valueStart + 2; i < pos; i++) {
+						b = b.shiftLeft(1);
+						if (charAt(i) == '1') {
+							b = b.setBit(0);
 						}
 					}
 					value = "0x" + b.toString(16);
+					valueEnd = pos;
+					synthetic = true;
 					return token = NUMBER;
 				}
 				break;
 
 			case S_HEX:
-				if ((ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F')) {
-					buffer.append((char) ch);
-				} else {
+				if (!((ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F'))) {
 					unread(ch);
-					value = buffer.toString();
+					valueEnd = pos;
 					return token = NUMBER;
 				}
 				break;
@@ -231,15 +277,11 @@ class Tokenizer {
 			case S_NUMBER:
 				if (ch == 'e' || ch == 'E') {
 					state = S_EXP;
-					buffer.append((char) ch);
 				} else if (ch == '.') {
 					state = S_FRAC;
-					buffer.append((char) ch);
-				} else if (ch >= '0' && ch <= '9') {
-					buffer.append((char) ch);
-				} else {
+				} else if (!(ch >= '0' && ch <= '9')) {
 					unread(ch);
-					value = buffer.toString();
+					valueEnd = pos;
 					return token = NUMBER;
 				}
 				break;
@@ -247,36 +289,28 @@ class Tokenizer {
 			case S_FRAC:
 				if (ch == 'e' || ch == 'E') {
 					state = S_EXP;
-					buffer.append((char) ch);
-				} else if (ch >= '0' && ch <= '9') {
-					buffer.append((char) ch);
-				} else {
-					value = buffer.toString();
+				} else if (!(ch >= '0' && ch <= '9')) {
 					unread(ch);
+					valueEnd = pos;
 					return token = NUMBER;
 				}
 				break;
 
 			case S_EXP:
 			case S_EXP2:
-				if (ch >= '0' && ch <= '9') {
-					buffer.append((char) ch);
-				} else if (state == S_EXP && (ch == '-' || ch == '+')) {
-					buffer.append((char) ch);
+				if (state == S_EXP && (ch == '-' || ch == '+')) {
 					state = S_EXP2;
-				} else {
+				} else if (!(ch >= '0' && ch <= '9')) {
 					unread(ch);
-					value = buffer.toString();
+					valueEnd = pos;
 					return token = NUMBER;
 				}
 				break;
 
 			case S_ID:
-				if (Character.isJavaIdentifierPart((char) ch)) {
-					buffer.append((char) ch);
-				} else {
-					value = buffer.toString();
+				if (!Character.isJavaIdentifierPart(ch)) {
 					unread(ch);
+					valueEnd = pos;
 					return token;
 				}
 				break;
@@ -331,37 +365,165 @@ class Tokenizer {
 	}
 
 	int getColumn() {
-		return col[line % col.length] + 1;
+		return pos - lineStart + 1;
 	}
 
 	String getTokenValue() {
+		if (value == null && valueStart >= 0) {
+			value = getText(valueStart, valueEnd);
+		}
 		return value;
 	}
 
+	/**
+	 * Returns the value of the current token if it isn't a slice of the
+	 * input, such as a binary literal, otherwise null.
+	 */
+	String getSyntheticValue() {
+		return synthetic ? value : null;
+	}
+
+	int getValueStart() {
+		return valueStart;
+	}
+
+	int getValueEnd() {
+		return valueEnd;
+	}
+
+	/**
+	 * Compares the input between <code>start</code> and <code>end</code> with
+	 * an ASCII string without creating a String.
+	 */
+	boolean regionMatches(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (charAt(start + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String getText(int start, int end) {
+		if (bytes == null) {
+			return new String(buf, start, end - start);
+		}
+		int length = end - start;
+		if (scratch == null || scratch.length < length) {
+			scratch = new byte[Math.max(length, 64)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = bytes.get(start + i);
+		}
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private int charAt(int i) {
+		return bytes != null ? bytes.get(i) & 0xff : buf[i];
+	}
+
 	int getToken() {
 		return token;
 	}
 
+	/**
+	 * Returns the scan buffer so that it can be handed to the next tokenizer,
+	 * or null if it has grown too large to keep.
+	 */
+	char[] getBuffer() {
+		return buf.length <= MAX_KEPT_BUFFER_SIZE ? buf : null;
+	}
+
 	private int read() throws IOException {
-		int ch = in.read();
-		if (ch == -1)
-			return ch;
+		if (pos == end && !fill()) {
+			return -1;
+		}
+		int ch;
+		if (bytes == null) {
+			ch = buf[pos++];
+		} else {
+			ch = bytes.get(pos++) & 0xff;
+			if (ch >= 0x80) {
+				ch = readCodePoint(ch);
+			}
+		}
 		if (ch == '\n') {
 			++line;
-			col[line % col.length] = 1;
-		} else {
-			++col[line % col.length];
+			prevLineStart = lineStart;
+			lineStart = pos;
 		}
 		return ch;
 	}
 
-	private void unread(int ch) throws IOException {
+	private void unread(int ch) {
 		if (ch != -1) {
+			if (bytes != null && ch >= 0x80) {
+				pos -= ch < 0x800 ? 2 : ch < 0x10000 ? 3 : 4;
+			} else {
+				--pos;
+			}
 			if (ch == '\n') {
 				--line;
+				lineStart = prevLineStart;
+			}
+		}
+	}
+
+	/*
+	 * Decodes the rest of a multi-byte UTF-8 sequence.
+	 */
+	private int readCodePoint(int lead) {
+		int n, cp;
+		if ((lead & 0xe0) == 0xc0) {
+			n = 1;
+			cp = lead & 0x1f;
+		} else if ((lead & 0xf0) == 0xe0) {
+			n = 2;
+			cp = lead & 0x0f;
+		} else if ((lead & 0xf8) == 0xf0) {
+			n = 3;
+			cp = lead & 0x07;
+		} else {
+			throw new SyntaxException(String.format("invalid UTF-8 at line %d", getLine()));
+		}
+		if (pos + n > end) {
+			throw new SyntaxException(String.format("truncated UTF-8 at line %d", getLine()));
+		}
+		for (int i = 0; i < n; i++) {
+			int b = bytes.get(pos++) & 0xff;
+			if ((b & 0xc0) != 0x80) {
+				throw new SyntaxException(String.format("invalid UTF-8 at line %d", getLine()));
 			}
-			in.unread(ch);
+			cp = (cp << 6) | (b & 0x3f);
+		}
+		// reject overlong forms so that unread() can recover the length
+		if (cp < (n == 1 ? 0x80 : n == 2 ? 0x800 : 0x10000)) {
+			throw new SyntaxException(String.format("invalid UTF-8 at line %d", getLine()));
+		}
+		return cp;
+	}
+
+	/*
+	 * Appends more input to the window; earlier content is kept so that value
+	 * offsets stay valid for the rest of the parse.
+	 */
+	private boolean fill() throws IOException {
+		if (in == null) {
+			return false;
 		}
+		if (end == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int n = in.read(buf, end, buf.length - end);
+		if (n < 0) {
+			in = null;
+			return false;
+		}
+		end += n;
+		return true;
 	}
 
 }
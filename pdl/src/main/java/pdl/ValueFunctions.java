@@ -18,9 +18,56 @@ import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class ValueFunctions {
+	static final int NOT_NUMERIC = 0, INTEGER = 1, DECIMAL = 2;
+	private static final int MAX_NUMBERS = 1024;
+	// parsed numeric strings, dropping the least recently used when full
+	private static final Map<String, BigDecimal> numbers = Collections
+			.synchronizedMap(new LinkedHashMap<String, BigDecimal>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, BigDecimal> eldest) {
+					return size() > MAX_NUMBERS;
+				}
+			});
+
+	/**
+	 * Integral values are added, compared and so on as longs, and only
+	 * promoted to {@link BigDecimal} or {@link BigInteger} when the result
+	 * doesn't fit.
+	 */
+	static boolean isLong(Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	/**
+	 * Returns an integral value, or a string of at most 18 digits that
+	 * {@link #classify(String)} reports as an {@link #INTEGER}, as a long,
+	 * or else null.  Strings are numbers wherever a number is needed, so
+	 * <code>X = 6  Y = X + 1</code> takes the long path just like
+	 * <code>Y = 6 + 1</code>.
+	 */
+	static Long asLong(Object value) {
+		if (value instanceof Long) {
+			return (Long) value;
+		} else if (isLong(value)) {
+			return ((Number) value).longValue();
+		} else if (value instanceof String) {
+			String s = (String) value;
+			int n = s.length();
+			int digits = n > 0 && (s.charAt(0) == '+' || s.charAt(0) == '-') ? n - 1 : n;
+			if (digits > 0 && digits <= 18 && classify(s) == INTEGER) {
+				return Long.parseLong(s);
+			}
+		}
+		return null;
+	}
 
 	public String stringValueOf(Object value) {
 		return value != null ? String.valueOf(value) : "";
@@ -34,28 +81,91 @@ public abstract class ValueFunctions {
 		} else if (value instanceof Number) {
 			return BigInteger.valueOf(((Number) value).longValue());
 		}
-		try {
-			return new BigInteger(String.valueOf(value));
-		} catch (NumberFormatException e) {
-		}
-		return null;
+		String s = String.valueOf(value);
+		return classify(s) == INTEGER ? parseNumber(s).toBigInteger() : null;
 	}
 
 	public BigDecimal asBigDecimal(Object value) {
 		if (value instanceof BigDecimal) {
 			return (BigDecimal) value;
 		}
+		if (value instanceof BigInteger) {
+			return new BigDecimal((BigInteger) value);
+		}
 		if (value instanceof Number) {
 			if (value instanceof Float || value instanceof Double) {
 				return BigDecimal.valueOf(((Number) value).doubleValue());
 			}
 			return BigDecimal.valueOf(((Number) value).longValue());
 		}
-		try {
-			return new BigDecimal(String.valueOf(value));
-		} catch (NumberFormatException e) {
+		String s = String.valueOf(value);
+		return classify(s) != NOT_NUMERIC ? parseNumber(s) : null;
+	}
+
+	/**
+	 * Classifies a string as {@link #INTEGER} if it's in the syntax
+	 * <code>new BigInteger(String)</code> takes, as {@link #DECIMAL} if it's
+	 * in the syntax <code>new BigDecimal(String)</code> takes, or otherwise
+	 * as {@link #NOT_NUMERIC}, so strings like <code>"dev"</code> are
+	 * rejected without throwing a NumberFormatException.
+	 */
+	static int classify(String s) {
+		int n = s.length();
+		int i = 0;
+		if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
 		}
-		return null;
+		int digits = 0;
+		while (i < n && Character.isDigit(s.charAt(i))) {
+			i++;
+			digits++;
+		}
+		int kind = INTEGER;
+		if (i < n && s.charAt(i) == '.') {
+			kind = DECIMAL;
+			i++;
+			while (i < n && Character.isDigit(s.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return NOT_NUMERIC;
+		}
+		if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			kind = DECIMAL;
+			i++;
+			if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			int exponentDigits = 0;
+			while (i < n && Character.isDigit(s.charAt(i))) {
+				i++;
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) {
+				return NOT_NUMERIC;
+			}
+		}
+		return i == n ? kind : NOT_NUMERIC;
+	}
+
+	/*
+	 * Parses a string that classify() accepts.  Strings that are compared or
+	 * added over and over, such as property values, are only parsed once.
+	 */
+	static BigDecimal parseNumber(String s) {
+		BigDecimal number = numbers.get(s);
+		if (number == null) {
+			try {
+				number = new BigDecimal(s);
+			} catch (NumberFormatException e) {
+				// the exponent is out of range
+				return null;
+			}
+			numbers.put(s, number);
+		}
+		return number;
 	}
 
 	public boolean isTrue(Object value) {
@@ -68,11 +178,12 @@ public abstract class ValueFunctions {
 				if (s.equalsIgnoreCase("true")) {
 					return true;
 				}
-				try {
-					BigDecimal n = new BigDecimal(s);
-					return n.compareTo(BigDecimal.ZERO) != 0;
-				} catch (NumberFormatException e) {
-				}
+				BigDecimal n = classify(s) != NOT_NUMERIC ? parseNumber(s) : null;
+				return n != null && n.signum() != 0;
+			} else if (isLong(value)) {
+				return ((Number) value).longValue() != 0;
+			} else if (value instanceof Number) {
+				return asBigDecimal(value).signum() != 0;
 			} else if (value instanceof Collection<?>) {
 				return !((Collection<?>) value).isEmpty();
 			} else if (value.getClass().isArray()) {
@@ -88,29 +199,32 @@ public abstract class ValueFunctions {
 		if (leftValue == null) {
 			return rightValue;
 		}
+		Long left = asLong(leftValue);
+		Long right = left != null ? asLong(rightValue) : null;
+		if (right != null) {
+			long a = left;
+			long b = right;
+			long sum = a + b;
+			// the sum overflowed if its sign differs from both operands
+			if (((a ^ sum) & (b ^ sum)) >= 0) {
+				return sum;
+			}
+		}
 		Object result;
 		BigDecimal leftNumber = asBigDecimal(leftValue);
 		BigDecimal rightNumber = asBigDecimal(rightValue);
 		if (leftNumber != null && rightNumber != null) {
 			result = leftNumber.add(rightNumber);
+		} else if (leftValue instanceof Set<?>) {
+			result = SetValue.copyOf((Set<?>) leftValue).plus(rightValue);
 		} else if (leftValue instanceof Collection<?>) {
-			@SuppressWarnings("unchecked")
-			Collection<Object> list = (Collection<Object>) leftValue;
-			if (rightValue instanceof Collection<?>) {
-				list.addAll((Collection<?>) rightValue);
-			} else {
-				list.add(rightValue);
-			}
-			result = list;
+			result = ListValue.copyOf((Collection<?>) leftValue).plus(rightValue);
 		} else if (leftValue instanceof Map<?, ?>) {
-			@SuppressWarnings("unchecked")
-			Map<Object, Object> map = (Map<Object, Object>) leftValue;
 			if (rightValue instanceof Map<?, ?>) {
-				map.putAll((Map<?, ?>) rightValue);
+				result = MapValue.copyOf((Map<?, ?>) leftValue).plus((Map<?, ?>) rightValue);
 			} else {
 				throw evalException(node, "cannot add a non-dictionary type to a dictionary", null);
 			}
-			result = map;
 		} else {
 			result = stringValueOf(leftValue) + stringValueOf(rightValue);
 		}
@@ -16,6 +16,7 @@ package pdl;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -53,6 +54,196 @@ public class ArithTest extends PdlScopeTestFixture {
 		Assert.assertEquals(Boolean.TRUE, scope.get("NEQ"));
 	}
 	
+	@Test
+	public void testLiterals() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("H = 0x10 + 1 B = 0b101 + 0 L = 12345678901234567890 + 0 D = 1.5e1 * 1 "
+				+ "I = 'abcdef'.substring(2) T = !0 X = 0x10 E = 1.5e1 F = -12345678901234567890"), "in");
+		PdlScope scope = parser.getResult();
+		// hex and binary literals are strings, as they always were
+		Assert.assertEquals("0x101", scope.get("H"));
+		Assert.assertEquals("0x50", scope.get("B"));
+		Assert.assertEquals("12345678901234567890", String.valueOf(scope.get("L")));
+		assertEquals(15, scope.get("D"));
+		Assert.assertEquals("cdef", scope.get("I"));
+		Assert.assertEquals("true", String.valueOf(scope.get("T")));
+		PdlConstantNode h = (PdlConstantNode) parser.getAssignments().get("X").getConditionalAssignments().get(0)
+				.getValue();
+		Assert.assertEquals("0x10", h.getValue());
+		Assert.assertEquals("0x10", h.getConstant());
+		Assert.assertNull(h.getNumber());
+		// only integers are decoded; decimals are parsed from their text
+		Assert.assertNull(((PdlConstantNode) parser.getAssignments().get("E").getConditionalAssignments().get(0)
+				.getValue()).getNumber());
+		Assert.assertEquals(new java.math.BigInteger("-12345678901234567890"), ((PdlConstantNode) parser
+				.getAssignments().get("F").getConditionalAssignments().get(0).getValue()).getNumber());
+	}
+
+	@Test
+	public void testLiteralAndProperty() throws IOException {
+		String[] literals = { "0x1F", "0b101", "02134", "-7", "+7", "1e3", "1.50", "12345678901234567890", "1e9999999999" };
+		String[] expressions = { "# + 0", "# * 2", "# - 1", "-(#)", "~(#)", "# == 7", "# > '100'", "# + 'a'", "# % 4" };
+		StringBuilder rules = new StringBuilder();
+		for (int i = 0; i < literals.length; i++) {
+			rules.append("P").append(i).append(" = ").append(literals[i]).append('\n');
+			for (int j = 0; j < expressions.length; j++) {
+				rules.append("L").append(i).append('_').append(j).append(" = ")
+						.append(expressions[j].replace("#", literals[i])).append('\n');
+				rules.append("V").append(i).append('_').append(j).append(" = ")
+						.append(expressions[j].replace("#", "P" + i)).append('\n');
+			}
+		}
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(rules.toString()), "in");
+		PdlScope scope = parser.getResult();
+		for (int i = 0; i < literals.length; i++) {
+			for (int j = 0; j < expressions.length; j++) {
+				String id = i + "_" + j;
+				Assert.assertEquals(literals[i] + " " + expressions[j], scope.get("V" + id), scope.get("L" + id));
+			}
+		}
+	}
+
+	@Test
+	public void testLiteralText() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("ZIP = 02134 MODE = 0755 X = 1e3 Y = ZIP + '' Z = MODE + 1 "
+				+ "W = X * 2 E = 0755 == 755 L = [0755]"), "in");
+		Map<String, Object> map = parser.getResult().toMap();
+		Assert.assertEquals("02134", map.get("ZIP"));
+		Assert.assertEquals("0755", map.get("MODE"));
+		Assert.assertEquals("1e3", map.get("X"));
+		Assert.assertEquals("02134", map.get("Y"));
+		Assert.assertEquals("756", String.valueOf(map.get("Z")));
+		Assert.assertEquals("2E+3", String.valueOf(map.get("W")));
+		Assert.assertEquals(Boolean.TRUE, map.get("E"));
+		Assert.assertEquals("[0755]", String.valueOf(map.get("L")));
+		parser.compile();
+		Assert.assertEquals(map, parser.getResult().toMap());
+	}
+
+	@Test
+	public void testDecodeNumber() {
+		Assert.assertEquals(Long.MAX_VALUE, PdlConstantNode.decodeNumber(String.valueOf(Long.MAX_VALUE)));
+		Assert.assertEquals(Long.MIN_VALUE, PdlConstantNode.decodeNumber(String.valueOf(Long.MIN_VALUE)));
+		Assert.assertEquals(-255L, PdlConstantNode.decodeNumber("-0xff"));
+		Assert.assertEquals(new java.math.BigInteger("ffffffffffffffff", 16), PdlConstantNode.decodeNumber("0xffffffffffffffff"));
+		Assert.assertEquals(new java.math.BigDecimal("0.25"), PdlConstantNode.decodeNumber("0.25"));
+	}
+
+	@Test
+	public void testLongArith() {
+		PdlScope scope = new PdlParser().getResult();
+		long[] values = { 0, 1, -1, 2, 3, 7, -7, 10, 64, 100, 1L << 31, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				999_999_999_999_999L, 10_000_000_000_000_000L, 123_456_789_012_345_678L, Long.MAX_VALUE,
+				Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+		long[] shifts = { -1, 0, 1, 31, 62, 63, 64, 100 };
+		int[] ops = { '+', '-', '*', '/', '%', '^', '|', '&', PdlBinaryOperatorNode.L_SHIFT,
+				PdlBinaryOperatorNode.R_SHIFT, PdlBinaryOperatorNode.EQ, PdlBinaryOperatorNode.NEQ,
+				PdlBinaryOperatorNode.GTE, PdlBinaryOperatorNode.LTE, '<', '>' };
+		for (int op : ops) {
+			PdlBinaryOperatorNode node = new PdlBinaryOperatorNode();
+			node.setOperator(op);
+			boolean shift = op == PdlBinaryOperatorNode.L_SHIFT || op == PdlBinaryOperatorNode.R_SHIFT;
+			for (long a : values) {
+				for (long b : shift ? shifts : values) {
+					// BigIntegers take the general path
+					String expected = binary(scope, node, java.math.BigInteger.valueOf(a),
+							java.math.BigInteger.valueOf(b));
+					Assert.assertEquals(a + " " + (char) op + " " + b, expected, binary(scope, node, a, b));
+				}
+			}
+		}
+		PdlUnaryOperatorNode neg = new PdlUnaryOperatorNode();
+		neg.setOperator('-');
+		Assert.assertEquals("9223372036854775808", String.valueOf(Evaluator.unary(scope, neg, Long.MIN_VALUE)));
+		Assert.assertEquals(Long.valueOf(-5), Evaluator.unary(scope, neg, 5));
+	}
+
+	@Test
+	public void testDerivedLongs() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("X = 6 Y = X + 1 Z = 6 + 1 C = 2 * 3 D = C + 1 E = X * 1000000000000 "
+				+ "F = 6 * 1000000000000 N = -X W = X W += 1 S = X + 'a'"), "in");
+		PdlScope scope = parser.getResult();
+		// a number gets the same value whether it was spelled out or derived
+		Assert.assertEquals(7L, scope.get("Y"));
+		Assert.assertEquals(scope.get("Z"), scope.get("Y"));
+		Assert.assertEquals(scope.get("Y"), scope.get("D"));
+		Assert.assertEquals(6_000_000_000_000L, scope.get("E"));
+		Assert.assertEquals(scope.get("F"), scope.get("E"));
+		Assert.assertEquals(-6L, scope.get("N"));
+		Assert.assertEquals(7L, scope.get("W"));
+		Assert.assertEquals("6a", scope.get("S"));
+		Assert.assertEquals("6", scope.get("X"));
+	}
+
+	@Test
+	public void testCompareNonComparable() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = [1] B = [1] EQ = A == B NEQ = A != B IN = A in [B] GTE = A >= B"), "in");
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals(Boolean.TRUE, scope.get("EQ"));
+		Assert.assertEquals(Boolean.FALSE, scope.get("NEQ"));
+		Assert.assertEquals(Boolean.TRUE, scope.get("IN"));
+		try {
+			scope.get("GTE");
+			Assert.fail();
+		} catch (PdlEvalException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("cannot compare non-Comparable objects"));
+		}
+	}
+
+	@Test
+	public void testNumericStrings() {
+		String[] strings = { "0", "-12", "+7", "1.", ".5", "-.5e-3", "1E+3", "12e", "1e9999999999", "", "-", ".",
+				"e5", "0x10", " 1", "1 ", "1.2.3", "dev", "true", "NaN", "Infinity", "\u0661\u0662" };
+		PdlScope scope = new PdlParser().getResult();
+		for (String s : strings) {
+			Assert.assertEquals(s, String.valueOf(bigDecimal(s)), String.valueOf(scope.asBigDecimal(s)));
+			Assert.assertEquals(s, String.valueOf(bigInteger(s)), String.valueOf(scope.asBigInteger(s)));
+			Assert.assertEquals(s, bigDecimal(s) != null && bigDecimal(s).signum() != 0 || s.equals("true"),
+					scope.isTrue(s));
+		}
+		Assert.assertEquals(ValueFunctions.DECIMAL, ValueFunctions.classify("1e3"));
+		Assert.assertEquals(ValueFunctions.INTEGER, ValueFunctions.classify("-13"));
+		Assert.assertEquals(ValueFunctions.NOT_NUMERIC, ValueFunctions.classify("dev"));
+	}
+
+	@Test
+	public void testParsedNumbers() {
+		java.math.BigDecimal hot = ValueFunctions.parseNumber("1.25");
+		for (int i = 0; i < 10000; i++) {
+			ValueFunctions.parseNumber(i + ".5");
+			// a string in use keeps its parsed number while others come and go
+			Assert.assertSame(hot, ValueFunctions.parseNumber("1.25"));
+		}
+	}
+
+	private static java.math.BigDecimal bigDecimal(String s) {
+		try {
+			return new java.math.BigDecimal(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static java.math.BigInteger bigInteger(String s) {
+		try {
+			return new java.math.BigInteger(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String binary(PdlScope scope, PdlBinaryOperatorNode node, Object a, Object b) {
+		try {
+			return String.valueOf(Evaluator.binary(scope, node, a, b));
+		} catch (ArithmeticException e) {
+			return "error";
+		}
+	}
+
 	private static void assertEquals(double a, Object b) {
 		Assert.assertEquals(String.valueOf(a), String.valueOf(b));
 	}
@@ -0,0 +1,114 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConstantFolderTest {
+
+	private PdlParser parse(String text) throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(text), "in");
+		return parser;
+	}
+
+	private PdlExpressionNode value(PdlParser parser, String name) {
+		return parser.getAssignments().get(name).getConditionalAssignments().get(0).getValue();
+	}
+
+	@Test
+	public void testFold() throws IOException {
+		PdlParser parser = parse("X = 1\nSIZE = 1024 * 1024 * 64\nURL = \"jdbc:\" + \"oracle:\" + \"thin\"\n"
+				+ "L = [1, 2 + 3]\nD = ({ a: 1, b: [2] })\nE = [10, 20][1]\nY = X + 1 * 2");
+		PdlConstantNode size = (PdlConstantNode) value(parser, "SIZE");
+		Assert.assertEquals(64L * 1024 * 1024, size.getConstant());
+		Assert.assertEquals("in", size.getSource());
+		Assert.assertEquals(2, size.getLine());
+		Assert.assertEquals("jdbc:oracle:thin", ((PdlConstantNode) value(parser, "URL")).getConstant());
+		Assert.assertTrue(value(parser, "L") instanceof PdlConstantNode);
+		Assert.assertTrue(value(parser, "D") instanceof PdlConstantNode);
+		Assert.assertEquals("20", ((PdlConstantNode) value(parser, "E")).getConstant());
+		PdlBinaryOperatorNode y = (PdlBinaryOperatorNode) value(parser, "Y");
+		Assert.assertTrue(y.getLeft() instanceof PdlGetValueNode);
+		Assert.assertTrue(y.getRight() instanceof PdlConstantNode);
+		Assert.assertEquals("3", String.valueOf(parser.getResult().get("Y")));
+	}
+
+	@Test
+	public void testNotFolded() throws IOException {
+		PdlParser parser = parse("A = 1 / 0\nB = 'abc'.length()\nC = [1, A]");
+		Assert.assertTrue(value(parser, "A") instanceof PdlBinaryOperatorNode);
+		Assert.assertTrue(value(parser, "B") instanceof PdlInvocationNode);
+		Assert.assertTrue(value(parser, "C") instanceof PdlListNode);
+	}
+
+	@Test
+	public void testFoldedValuesAreShared() throws IOException {
+		PdlParser parser = parse("L = [[1], 2]\nM = L[0] + [3]\nN = [[1], 2][0] + [3]\nO = [[1], 2]");
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("[1, 3]", String.valueOf(scope.get("N")));
+		Assert.assertEquals("[[1], 2]", String.valueOf(scope.get("O")));
+		@SuppressWarnings("unchecked")
+		List<Object> l = (List<Object>) scope.get("L");
+		try {
+			l.add(3);
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		Assert.assertSame(((PdlConstantNode) value(parser, "L")).getConstant(), l);
+		Assert.assertEquals("[[1], 2]", String.valueOf(parser.getResult().get("L")));
+	}
+
+	@Test
+	public void testLogical() throws IOException {
+		PdlParser parser = parse("A = 1 == 1 && X\nB = 1 == 0 && X\nC = 'true' || X\nD = 0 || X\nE = X && 1 == 0");
+		Assert.assertTrue(value(parser, "A") instanceof PdlGetValueNode);
+		Assert.assertNull(((PdlConstantNode) value(parser, "B")).getConstant());
+		Assert.assertEquals("true", ((PdlConstantNode) value(parser, "C")).getConstant());
+		Assert.assertTrue(value(parser, "D") instanceof PdlGetValueNode);
+		Assert.assertTrue(value(parser, "E") instanceof PdlBinaryOperatorNode);
+	}
+
+	@Test
+	public void testSharedConditions() throws IOException {
+		PdlParser parser = parse("if (1 + 1 == 2) { X = 1 Y = 2 }");
+		PdlExpressionNode x = parser.getAssignments().get("X").getConditionalAssignments().get(0).getConditions().get(0);
+		PdlExpressionNode y = parser.getAssignments().get("Y").getConditionalAssignments().get(0).getConditions().get(0);
+		Assert.assertSame(x, y);
+		Assert.assertEquals(Boolean.TRUE, ((PdlConstantNode) x).getConstant());
+	}
+
+	@Test
+	public void testPdlc() throws IOException {
+		PdlParser parser = parse("A = [1, 'a', { b: 2.5, c: [true] }] S = ({ 1, 2 } + { 3 }) N = 0x10 * 1");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		parser.write(out);
+		PdlParser loaded = new PdlParser();
+		loaded.load(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(((PdlConstantNode) value(parser, "A")).getConstant(),
+				((PdlConstantNode) value(loaded, "A")).getConstant());
+		Assert.assertEquals(String.valueOf(parser.getResult().toMap()), String.valueOf(loaded.getResult().toMap()));
+		Assert.assertEquals(Arrays.asList(1L, 2L, 3L).toString(), String.valueOf(loaded.getResult().get("S")));
+	}
+
+}
@@ -0,0 +1,97 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExpressionCompilerTest extends PdlScopeTestFixture {
+
+	private void assertSameResults(PdlParser parser) {
+		PdlScope interpreted = parser.getResult();
+		interpreted.setInterpreted(true);
+		Map<String, Object> expected = interpreted.toMap();
+		PdlScope compiled = parser.getResult();
+		Assert.assertFalse(compiled.isInterpreted());
+		Assert.assertEquals(String.valueOf(expected), String.valueOf(compiled.toMap()));
+	}
+
+	@Test
+	public void testFixtures() throws IOException {
+		assertSameResults(parseFixtures("arith.pdl"));
+		assertSameResults(parseFixtures("calls.pdl"));
+		assertSameResults(parseFixtures("maps.pdl"));
+		assertSameResults(parseFixtures("ex2.pdl"));
+		assertSameResults(parseFixtures("t1.pdl"));
+	}
+
+	@Test
+	public void testExpressions() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 0\nB = 'b'\nL = [A, B, [A]]\nS = ({ A, B })\nD = ({ a: A, b: L[1] })\n"
+				+ "AND = A && B.missing()\nOR = A || 'x'\nNOT = !A\nNEG = -A - 1\n"
+				+ "P = L + [3]\nQ = L\nLEN = B.length()\nU = B.toUpperCase().length()\nM = D.a\n"
+				+ "N = new StringBuilder(B).append(A).toString()"), "in");
+		assertSameResults(parser);
+		PdlScope scope = parser.getResult();
+		Assert.assertNull(scope.get("AND"));
+		Assert.assertEquals("x", scope.get("OR"));
+		Assert.assertEquals("[0, b, [0], 3]", String.valueOf(scope.get("P")));
+		Assert.assertEquals("[0, b, [0]]", String.valueOf(scope.get("Q")));
+		Assert.assertEquals("b0", scope.get("N"));
+	}
+
+	@Test
+	public void testIn() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 'a'\nL = [A, 2, 'x']\nIN = A in L\nNUM = '2.0' in L\nNOT = 'y' not in L\n"
+				+ "NONE = 3 in L\nKEY = A in ({ a: 1 })\nSUB = 'ell' in 'hello'\nNULL = A in MISSING\n"
+				+ "FOLDED = 1 in [1, 2]"), "in");
+		assertSameResults(parser);
+		Map<String, Object> map = parser.getResult().toMap();
+		Assert.assertEquals(Boolean.TRUE, map.get("IN"));
+		Assert.assertEquals(Boolean.TRUE, map.get("NUM"));
+		Assert.assertEquals(Boolean.TRUE, map.get("NOT"));
+		Assert.assertEquals(Boolean.FALSE, map.get("NONE"));
+		Assert.assertEquals(Boolean.TRUE, map.get("KEY"));
+		Assert.assertEquals(Boolean.TRUE, map.get("SUB"));
+		Assert.assertEquals(Boolean.FALSE, map.get("NULL"));
+		PdlExpressionNode folded = parser.getAssignments().get("FOLDED").getConditionalAssignments().get(0).getValue();
+		Assert.assertTrue(folded instanceof PdlConstantNode);
+	}
+
+	@Test
+	public void testCached() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 1\nB = A + 1"), "in");
+		PdlExpressionNode b = parser.getAssignments().get("B").getConditionalAssignments().get(0).getValue();
+		Assert.assertEquals("2", String.valueOf(parser.getResult().get("B")));
+		CompiledExpression compiled = b.compiled;
+		Assert.assertNotNull(compiled);
+		Assert.assertSame(compiled, ExpressionCompiler.compile(b));
+	}
+
+	@Test(expected = PdlEvalException.class)
+	public void testError() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 'a'.missing()"), "in");
+		parser.getResult().get("A");
+	}
+
+}
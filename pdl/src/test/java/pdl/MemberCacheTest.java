@@ -0,0 +1,100 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package pdl;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemberCacheTest {
+
+	private PdlScope parse(String text) throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(text), "in");
+		return parser.getResult();
+	}
+
+	@Test
+	public void testCalls() throws IOException {
+		PdlScope scope = parse("U = 'abc'.toUpperCase() S = 'a,b'.split(',').length L = 'abc'.bytes.length "
+				+ "V = 'x'.valueOf(5) Z = [1, 2].size() K = ({ a: 1 }).keySet().size() F = 'x'.format('%s-%s', ['a', 'b'].toArray()) M = 'abc'.missing");
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals("ABC", scope.get("U"));
+			Assert.assertEquals(2, scope.get("S"));
+			Assert.assertEquals(3, scope.get("L"));
+			Assert.assertEquals("5", scope.get("V"));
+			Assert.assertEquals(2, scope.get("Z"));
+			Assert.assertEquals(1, scope.get("K"));
+			Assert.assertEquals("a-b", scope.get("F"));
+			Assert.assertNull(scope.get("M"));
+		}
+	}
+
+	@Test
+	public void testSites() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("X = 'abc'.toUpperCase().class.simpleName"), "in");
+		parser.getResult().get("X");
+		PdlAttributeNode name = (PdlAttributeNode) parser.getAssignments().get("X").getConditionalAssignments()
+				.get(0).getValue();
+		PdlInvocationNode call = (PdlInvocationNode) ((PdlAttributeNode) name.getTarget()).getTarget();
+		MemberCache.AttributeSite attributeSite = name.site;
+		MemberCache.InvocationSite invocationSite = call.site;
+		Assert.assertSame(Class.class, attributeSite.type);
+		Assert.assertSame(String.class, invocationSite.type);
+		Assert.assertEquals("String", parser.getResult().get("X"));
+		Assert.assertSame(attributeSite, name.site);
+		Assert.assertSame(invocationSite, call.site);
+	}
+
+	@Test
+	public void testPolymorphic() throws IOException {
+		PdlScope scope = parse("F = { R = 'abc'.indexOf(Y), N = Y.class.simpleName }\n"
+				+ "A = F A += { Y = 'c' }\nB = F B += { Y = 97 + 1 }\nC = F C += { Y = new java.util.ArrayList() }\n"
+				+ "AR = A.R AN = A.N BR = B.R BN = B.N CN = C.N");
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals(2, scope.get("AR"));
+			Assert.assertEquals("String", scope.get("AN"));
+			Assert.assertEquals(1, scope.get("BR"));
+			Assert.assertEquals("Long", scope.get("BN"));
+			Assert.assertEquals("ArrayList", scope.get("CN"));
+		}
+	}
+
+	@Test
+	public void testConstructors() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("F = { S = new StringBuilder(X) }\nA = F A += { X = 'ab' }\nB = F B += { X = 3 + 1 }\n"
+				+ "AS = A.S.length() BS = B.S.capacity() N = new NoSuchClass()"), "in");
+		PdlScope scope = parser.getResult();
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals(2, scope.get("AS"));
+			Assert.assertEquals(4, scope.get("BS"));
+		}
+		try {
+			scope.get("N");
+			Assert.fail();
+		} catch (PdlEvalException e) {
+			Assert.assertTrue(e.getMessage().contains("no such class"));
+		}
+		PdlInvocationNode ctor = (PdlInvocationNode) parser.getAssignments().get("N").getConditionalAssignments()
+				.get(0).getValue();
+		Assert.assertSame(Void.TYPE, ctor.type);
+	}
+
+}
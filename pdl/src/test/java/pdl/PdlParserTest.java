@@ -14,12 +14,29 @@
 
 package pdl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import pdl.PdlAssignment;
 import pdl.PdlConditionalAssignment;
@@ -27,6 +44,9 @@ import pdl.PdlConstantNode;
 import pdl.PdlParser;
 
 public class PdlParserTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
 	
 	@Test
 	public void testAssignment() throws IOException {
@@ -53,4 +73,374 @@ public class PdlParserTest {
 		Assert.assertEquals(1, a.getConditions().size());
 	}
 	
+	@Test
+	public void testParsePath() throws IOException {
+		Path path = folder.newFile("utf8.pdl").toPath();
+		Files.write(path, "\uFEFF# caf\u00e9\nGR\u00dcSSE = 'gr\u00fc\u00df dich \uD83D\uDE00'\nX = GR\u00dcSSE + 1\n"
+				.getBytes(StandardCharsets.UTF_8));
+		PdlParser parser = new PdlParser();
+		parser.parse(path);
+		Map<String, PdlAssignment> m = parser.getAssignments();
+		PdlConditionalAssignment a = m.get("GR\u00dcSSE").getConditionalAssignments().get(0);
+		Assert.assertEquals(path.toString(), a.getSource());
+		Assert.assertEquals(2, a.getLine());
+		Assert.assertEquals("gr\u00fc\u00df dich \uD83D\uDE00", ((PdlConstantNode) a.getValue()).getValue());
+		Assert.assertEquals("gr\u00fc\u00df dich \uD83D\uDE001", parser.getResult().get("X"));
+	}
+
+	@Test
+	public void testParseParallel() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		for (int i = 0; i < 24; i++) {
+			Path path = folder.newFile("f" + i + ".pdl").toPath();
+			String text = "X" + (i % 5) + " += " + i + "\nif (N > " + i + ") { Y = " + i + " }\nZ" + i + " = X1\n";
+			Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+			paths.add(path);
+		}
+		PdlParser sequential = new PdlParser();
+		for (Path path : paths) {
+			sequential.parse(path);
+		}
+		sequential.parse(new StringReader("N = 10"), "n");
+		PdlParser parallel = new PdlParser();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			parallel.parse(paths, pool);
+		} finally {
+			pool.shutdown();
+		}
+		parallel.parse(new StringReader("N = 10"), "n");
+
+		Map<String, PdlAssignment> expected = sequential.getAssignments();
+		Map<String, PdlAssignment> actual = parallel.getAssignments();
+		Assert.assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+		for (PdlAssignment assignment : expected.values()) {
+			Iterator<PdlConditionalAssignment> iter = actual.get(assignment.getName()).getConditionalAssignments()
+					.iterator();
+			for (PdlConditionalAssignment a : assignment.getConditionalAssignments()) {
+				PdlConditionalAssignment b = iter.next();
+				Assert.assertEquals(a.getSource(), b.getSource());
+				Assert.assertEquals(a.getLine(), b.getLine());
+			}
+			Assert.assertFalse(iter.hasNext());
+		}
+		Assert.assertEquals(sequential.getResult().toMap(), parallel.getResult().toMap());
+	}
+
+	@Test(expected = SyntaxException.class)
+	public void testParseParallelError() throws IOException {
+		Path good = folder.newFile("good.pdl").toPath();
+		Files.write(good, "X = 1".getBytes(StandardCharsets.UTF_8));
+		Path bad = folder.newFile("bad.pdl").toPath();
+		Files.write(bad, "X = (1".getBytes(StandardCharsets.UTF_8));
+		List<Path> paths = new ArrayList<>();
+		paths.add(good);
+		paths.add(bad);
+		new PdlParser().parse(paths);
+	}
+
+	@Test
+	public void testReparse() throws IOException {
+		String a = "X = 1\nY = 'a'\nif (X > 0) { Z = 'a' }";
+		String b = "X += 2\nY = 'b'\nW = 'b'";
+		String b2 = "X += 20\nif (X > 0) { Z = 'b2' }\nV = 'b2'";
+		String c = "X += 3\nZ += 'c'";
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(a), "a");
+		parser.parse(new StringReader(b), "b");
+		parser.parse(new StringReader(c), "c");
+		parser.reparse(new StringReader(b2), "b");
+
+		PdlParser expected = new PdlParser();
+		expected.parse(new StringReader(a), "a");
+		expected.parse(new StringReader(b2), "b");
+		expected.parse(new StringReader(c), "c");
+
+		Assert.assertFalse(parser.getAssignments().containsKey("W"));
+		Assert.assertEquals(expected.getAssignments().keySet(), parser.getAssignments().keySet());
+		for (PdlAssignment assignment : expected.getAssignments().values()) {
+			List<PdlConditionalAssignment> rules = parser.getAssignments().get(assignment.getName())
+					.getConditionalAssignments();
+			Assert.assertEquals(assignment.getConditionalAssignments().size(), rules.size());
+			for (int i = 0; i < rules.size(); i++) {
+				Assert.assertEquals(assignment.getConditionalAssignments().get(i).getSource(), rules.get(i).getSource());
+				Assert.assertEquals(assignment.getConditionalAssignments().get(i).getLine(), rules.get(i).getLine());
+			}
+		}
+		Map<String, Object> map = parser.getResult().toMap();
+		Assert.assertEquals(expected.getResult().toMap(), map);
+		Assert.assertEquals("b2c", map.get("Z"));
+		Assert.assertEquals("a", map.get("Y"));
+	}
+
+	@Test
+	public void testReparseConditions() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("if (X > 0) { Z = 'a' }"), "a");
+		parser.parse(new StringReader("X = 1"), "host");
+		int size = -1;
+		for (int i = 0; i < 100; i++) {
+			parser.reparse(new StringReader("X = " + i + "\nif (X > 0) { if (HOST == 'web-" + i + "') { Z = 'b' } "
+					+ "Y = 1 W = 2 }"), "host");
+			if (size < 0) {
+				size = parser.getConditions().size();
+			}
+			// the numbers of the replaced blocks are given out again
+			Assert.assertEquals(size, parser.getConditions().size());
+			Assert.assertEquals(i > 0 ? "a" : null, parser.getResult().get("Z"));
+		}
+		Assert.assertEquals(2, size);
+		parser.reparse(new StringReader("HOST = 'web-1' X = 1 if (HOST == 'web-1') { Z = 'b' }"), "host");
+		Assert.assertEquals("b", parser.getResult().get("Z"));
+	}
+
+	@Test
+	public void testScopeAcrossReparse() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("E = 'prod' if (E == 'prod') { A = 1 }"), "a");
+		parser.parse(new StringReader("if (E == 'never') { B = 0 }"), "b");
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("1", scope.get("A"));
+		parser.reparse(new StringReader("E = 'prod' if (E == 'dev') { B = 2 }"), "a");
+		parser.parse(new StringReader("C = 3"), "c");
+		// the old scope keeps its rules, and the freed condition number
+		// the new block got doesn't leak into it
+		Assert.assertNull(scope.get("B"));
+		Assert.assertNull(scope.get("C"));
+		Assert.assertFalse(scope.toMap().containsKey("C"));
+		PdlScope current = parser.getResult();
+		Assert.assertNull(current.get("A"));
+		Assert.assertNull(current.get("B"));
+		Assert.assertEquals("3", current.get("C"));
+	}
+
+	private static class RecordingListener extends PdlParseListener {
+		private final boolean expressions;
+		private final StringBuilder events = new StringBuilder();
+		private final List<PdlNode> nodes = new ArrayList<>();
+
+		RecordingListener(boolean expressions) {
+			this.expressions = expressions;
+		}
+
+		@Override
+		public boolean isExpressionNeeded() {
+			return expressions;
+		}
+
+		@Override
+		public void startConditionalBlock(PdlExpressionNode condition, String source, int line) {
+			events.append("if@").append(line).append(" ");
+			nodes.add(condition);
+		}
+
+		@Override
+		public void endConditionalBlock() {
+			events.append("} ");
+		}
+
+		@Override
+		public void assignment(PdlConditionalAssignment assignment) {
+			events.append(assignment.getName()).append(assignment.isAppend() ? "+=" : "=");
+			if (assignment.getPropertySet() != null) {
+				events.append(assignment.getPropertySet().getProperties().keySet());
+			}
+			events.append("@").append(assignment.getLine()).append(" ");
+			nodes.add(assignment.getValue());
+		}
+	}
+
+	@Test
+	public void testListener() throws IOException {
+		String text = "A = -x.y(1, [2, {3, 4}], { k: 'v' })[0] + new java.lang.String('s') * 2 not in B || !C\n"
+				+ "if (!A && B == 2) {\n  P = { x = 1 + 2, y = (3) }\n  if (Q) { P += { z = 4 } }\n}\nR = 1";
+		RecordingListener skipping = new RecordingListener(false);
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(text), "in", skipping);
+		Assert.assertEquals("A=@1 if@2 P=[x, y]@3 if@4 P+=[z]@4 } } R=@6 ", skipping.events.toString());
+		for (PdlNode node : skipping.nodes) {
+			Assert.assertNull(node);
+		}
+		Assert.assertTrue(parser.getAssignments().isEmpty());
+
+		RecordingListener building = new RecordingListener(true);
+		parser.parse(new StringReader(text), "in", building);
+		Assert.assertEquals(skipping.events.toString(), building.events.toString());
+		Assert.assertTrue(building.nodes.get(0) instanceof PdlBinaryOperatorNode);
+		Assert.assertTrue(parser.getAssignments().isEmpty());
+	}
+
+	@Test(expected = SyntaxException.class)
+	public void testListenerSyntaxError() throws IOException {
+		new PdlParser().parse(new StringReader("A = (1 + 2"), "in", new PdlParseListener());
+	}
+
+	@Test
+	public void testListenerFixtures() throws Exception {
+		Path dir = Paths.get(getClass().getResource("/hello.pdl").toURI()).getParent();
+		List<Path> fixtures = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.pdl")) {
+			files.forEach(fixtures::add);
+		}
+		Assert.assertFalse(fixtures.isEmpty());
+		for (Path fixture : fixtures) {
+			String text = new String(Files.readAllBytes(fixture), StandardCharsets.UTF_8);
+			RecordingListener skipping = new RecordingListener(false);
+			RecordingListener building = new RecordingListener(true);
+			new PdlParser().parse(new StringReader(text), "in", skipping);
+			new PdlParser().parse(new StringReader(text), "in", building);
+			Assert.assertEquals(fixture.toString(), building.events.toString(), skipping.events.toString());
+			for (PdlNode node : skipping.nodes) {
+				Assert.assertNull(node);
+			}
+		}
+	}
+
+	@Test
+	public void testFrameLayout() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("X = A + B.c(1, D)"), "in");
+		PdlBinaryOperatorNode x = (PdlBinaryOperatorNode) parser.getAssignments().get("X")
+				.getConditionalAssignments().get(0).getValue();
+		PdlInvocationNode call = (PdlInvocationNode) x.getRight();
+		Assert.assertEquals(0, x.getLeft().slot);
+		Assert.assertEquals(1, call.getTarget().slot);
+		Assert.assertEquals(2, call.getArguments().get(0).slot);
+		Assert.assertEquals(3, call.getArguments().get(1).slot);
+		Assert.assertEquals(4, call.slot);
+		Assert.assertEquals(5, x.slot);
+		Assert.assertEquals(6, FrameLayout.frameSize(x));
+	}
+
+	@Test
+	public void testConstructibleClasses() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.setConstructibleClasses(Arrays.asList("java.lang.String", "java.util.ArrayList"));
+		parser.parse(new StringReader("A = new String('a') B = new ArrayList()"), "in");
+		Assert.assertEquals("a", parser.getResult().get("A"));
+		for (String text : Arrays.asList("C = new java.io.File('.')", "D = new NoSuchClass()")) {
+			try {
+				parser.parse(new StringReader(text), "in");
+				Assert.fail(text);
+			} catch (SyntaxException e) {
+				Assert.assertEquals(1, e.getLine());
+			}
+		}
+		PdlParser any = new PdlParser();
+		any.parse(new StringReader("F = new java.io.File('.')"), "f");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		any.write(out);
+		try {
+			parser.load(new ByteArrayInputStream(out.toByteArray()));
+			Assert.fail();
+		} catch (SyntaxException e) {
+			Assert.assertEquals("f", e.getSource());
+		}
+		parser.setConstructibleClasses(null);
+		parser.load(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertTrue(parser.getResult().get("F") instanceof java.io.File);
+	}
+
+	private static final String CONFIG = "ENV = 'dev'\n"
+			+ "REGION = 'us'\n"
+			+ "PORT = 8000\n"
+			+ "HOST_COUNT = new java.lang.StringBuilder('abc').length()\n"
+			+ "if (ENV == 'prod') {\n"
+			+ "  HOST = 'prod.example.com'\n"
+			+ "  PORT := 443\n"
+			+ "  if (REGION == 'eu') { HOST = 'prod-eu.example.com' }\n"
+			+ "  DB += { replicas = 3 }\n"
+			+ "}\n"
+			+ "if (ENV == 'dev') { HOST = 'localhost' }\n"
+			+ "if (ENV == 'prod' && HOST_COUNT > 2) { BIG = true }\n"
+			+ "URL = 'http://' + HOST + ':' + PORT\n"
+			+ "FLAGS = [ENV, REGION, ({ 'a': -1.5 * 2 })]\n"
+			+ "DB = { host = HOST, port = 5432 }\n"
+			+ "ENABLED = ENV == 'prod'\n"
+			+ "NIL = ENV == 'dev' && 1\n"
+			+ "QUOTED = \"it's\" + ENV\n";
+
+	@Test
+	public void testSpecialize() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(CONFIG), "config");
+		Map<String, Object> bindings = new HashMap<>();
+		bindings.put("ENV", "prod");
+		bindings.put("REGION", "eu");
+		PdlParser specialized = parser.specialize(bindings);
+
+		PdlParser expected = new PdlParser();
+		expected.parse(new StringReader(CONFIG), "config");
+		expected.parse(new StringReader("ENV := 'prod' REGION := 'eu'"), "bindings");
+		Map<String, Object> result = specialized.getResult().toMap();
+		Assert.assertEquals(expected.getResult().toMap(), result);
+		Assert.assertEquals("http://prod-eu.example.com:443", result.get("URL"));
+
+		Map<String, PdlAssignment> m = specialized.getAssignments();
+		Assert.assertEquals(1, m.get("HOST").getConditionalAssignments().size());
+		Assert.assertTrue(m.get("URL").getConditionalAssignments().get(0).getValue() instanceof PdlConstantNode);
+		// only the condition that doesn't depend on ENV is left
+		List<PdlExpressionNode> conditions = m.get("BIG").getConditionalAssignments().get(0).getConditions();
+		Assert.assertEquals(1, conditions.size());
+		Assert.assertEquals(PdlBinaryOperatorNode.class, conditions.get(0).getClass());
+		Assert.assertEquals(2, m.get("DB").getConditionalAssignments().size());
+		// the original rules are left alone
+		Assert.assertEquals("localhost", parser.getResult().get("HOST"));
+		Assert.assertEquals(3, parser.getAssignments().get("HOST").getConditionalAssignments().size());
+
+		StringWriter text = new StringWriter();
+		specialized.print(text);
+		PdlParser printed = new PdlParser();
+		printed.parse(new StringReader(text.toString()), "residual");
+		Assert.assertEquals(result, printed.getResult().toMap());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		specialized.write(out);
+		PdlParser loaded = new PdlParser();
+		loaded.load(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(result, loaded.getResult().toMap());
+
+		try {
+			parser.specialize(Collections.singletonMap("ENV", new Object()));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testPrint() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(CONFIG), "config");
+		parser.parse(new StringReader("if (ENV == 'dev') { PORT += 1 }"), "local");
+		StringWriter text = new StringWriter();
+		parser.print(text);
+		PdlParser printed = new PdlParser();
+		printed.parse(new StringReader(text.toString()), "printed");
+		Assert.assertEquals(parser.getResult().toMap(), printed.getResult().toMap());
+		Assert.assertEquals(8001L, printed.getResult().get("PORT"));
+	}
+
+	@Test
+	public void testPrintFoldedNumbers() throws IOException {
+		List<String> allowed = Collections.singletonList("java.lang.StringBuilder");
+		PdlParser parser = new PdlParser();
+		parser.setConstructibleClasses(allowed);
+		parser.parse(new StringReader("A = 1.5 * 2 B = 1e3 * 1 C = 12345678901234567890 % 7 "
+				+ "D = 12345678901234567890 | 1 E = 1e3 - 1000 F = -2.50 * 1 G = 6 + 1 "
+				+ "H = new java.lang.StringBuilder('ab').length() I = 1.5 J = 0x10"), "in");
+		StringWriter text = new StringWriter();
+		parser.print(text);
+		PdlParser printed = new PdlParser();
+		printed.setConstructibleClasses(allowed);
+		printed.parse(new StringReader(text.toString()), "printed");
+		Map<String, Object> expected = parser.getResult().toMap();
+		Map<String, Object> map = printed.getResult().toMap();
+		Assert.assertEquals(expected, map);
+		for (String name : expected.keySet()) {
+			Assert.assertEquals(name, expected.get(name).getClass(), map.get(name).getClass());
+		}
+		Assert.assertEquals(java.math.BigInteger.class, map.get("C").getClass());
+		Assert.assertEquals("0", map.get("E").toString());
+	}
+
 }
@@ -16,7 +16,15 @@ package pdl;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -46,6 +54,72 @@ public class PdlScopeTest extends PdlScopeTestFixture {
 		Assert.assertEquals("shouting hello, world", scope.get("SAY"));
 	}
 
+	@Test
+	public void testConditionsEvaluatedOnce() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("ENV = 'prod'\nif (ENV == 'prod') { A = 1 B = 2 if (A == 1) { C = 3 } }\n"
+				+ "if (ENV == 'prod') { D = 4 }\nif (ENV == 'dev') { if (ENV.missing()) { E = 5 } }"), "in");
+		PdlScope scope = parser.getResult();
+		List<PdlNode> trace = new ArrayList<>();
+		scope.setTrace(trace);
+		Assert.assertEquals("{A=1, B=2, C=3, D=4, E=null, ENV=prod}", String.valueOf(scope.toMap()));
+		PdlConditionalBlock a = parser.getAssignments().get("A").getConditionalAssignments().get(0).getBlock();
+		PdlConditionalBlock d = parser.getAssignments().get("D").getConditionalAssignments().get(0).getBlock();
+		PdlConditionalBlock e = parser.getAssignments().get("E").getConditionalAssignments().get(0).getBlock();
+		// a block of its own with the same test, so the same condition
+		Assert.assertNotSame(a, d);
+		Assert.assertEquals(a.id, d.id);
+		Assert.assertNotEquals(a.id, e.getParent().id);
+		Assert.assertEquals(1, trace.stream().filter(node -> node == a.getCondition()).count());
+		Assert.assertEquals(0, trace.stream().filter(node -> node == d.getCondition()).count());
+		// not evaluated, as the block around it doesn't apply
+		Assert.assertEquals(0, trace.stream().filter(node -> node == e.getCondition()).count());
+	}
+
+	@Test
+	public void testGuardIndex() throws IOException {
+		StringBuilder rules = new StringBuilder("X = 'default'\nY = 0\n");
+		for (int i = 0; i < 50; i++) {
+			rules.append("if (HOST == 'web-").append(i).append("') { X = 'web-").append(i).append("' Y += 1 }\n");
+			rules.append("if (").append(i).append(" == HOST) { X = ").append(i).append(" }\n");
+		}
+		rules.append("if (HOST in ['web-7', 'web-8']) { X += '!' }\nif ('canary' in ROLES) { Y := -1 }\n"
+				+ "if (HOST == 'web-9') { X := 'nine' }\nX += '.'\n");
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(rules.toString()), "in");
+		Assert.assertTrue(RuleIndex.of(parser.getAssignments().get("X")).isGuarded());
+		String[][] cases = { { "'web-3'", "web-3.", "1" }, { "'web-7'", "web-7!.", "1" }, { "'web-9'", "nine", "1" },
+				{ "'web-99'", "default.", "0" }, { "'12'", "12.", "0" }, { "12.0", "12.", "0" },
+				{ "'web-' + 4", "web-4.", "1" }, { "1.5 * 2", "3.", "0" }, { "null", "default.", "0" } };
+		for (String[] c : cases) {
+			parser.reparse(new StringReader("HOST = " + c[0] + "\nROLES = []"), "host");
+			PdlScope scope = parser.getResult();
+			List<PdlNode> trace = new ArrayList<>();
+			scope.setTrace(trace);
+			Assert.assertEquals(c[0], c[1], String.valueOf(scope.get("X")));
+			Assert.assertEquals(c[0], c[2], String.valueOf(scope.get("Y")));
+			// only the guards that hold are evaluated
+			Assert.assertTrue(c[0], trace.size() < 100);
+		}
+		parser.reparse(new StringReader("HOST = 'web-1'\nROLES = ({ 'canary', 'web' })"), "host");
+		Assert.assertEquals("-1", String.valueOf(parser.getResult().get("Y")));
+		parser.reparse(new StringReader("HOST = 'web-1'\nROLES = 'canary'"), "host");
+		Assert.assertEquals("-1", String.valueOf(parser.getResult().get("Y")));
+	}
+
+	@Test
+	public void testGuardInsideBlock() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("FLAG = '' HOST = X"), "host");
+		parser.parse(new StringReader("X = 0 if (FLAG) { if (HOST == 'a') { X = 1 } if (HOST == 'b') { X = 2 } "
+				+ "if (HOST == 'c') { X := 3 } if (HOST == 'd') { X = 4 } }"), "in");
+		Assert.assertTrue(RuleIndex.of(parser.getAssignments().get("X")).isGuarded());
+		// HOST is only looked up once FLAG holds, so X isn't defined in terms of itself
+		Assert.assertEquals("0", parser.getResult().get("X"));
+		parser.reparse(new StringReader("FLAG = true HOST = 'c'"), "host");
+		Assert.assertEquals("3", parser.getResult().get("X"));
+	}
+
 	@Test
 	public void testCalls() throws IOException {
 		PdlParser parser = parseFixtures("calls.pdl");
@@ -91,4 +165,85 @@ public class PdlScopeTest extends PdlScopeTestFixture {
 		Assert.assertEquals("jdbc:oracle:thin:@oracledev-ex2.example.com:1522/dev", map.get("DB_1522.JDBC_URL"));
 	}
 
+	@Test
+	public void testCircular() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = B + 1\nB = A + 1\nC = C\nD = 1"), "in");
+		PdlScope scope = parser.getResult();
+		for (String name : new String[] { "A", "B", "C", "A" }) {
+			try {
+				scope.get(name);
+				Assert.fail(name);
+			} catch (PdlEvalException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("in terms of itself"));
+			}
+		}
+		Assert.assertEquals("1", scope.get("D"));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		PdlParser parser = parseFixtures("ex2.pdl");
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("P" + i + " = new Object()\n");
+			text.append("Q" + i + " = [P" + i + ", " + (i > 0 ? "Q" + (i - 1) : "0") + "]\n");
+		}
+		parser.parse(new StringReader(text.toString()), "in");
+		Map<String, Object> expected = parser.getResult().toMap();
+		PdlScope scope = parser.getResult();
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Map<String, Object>>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					Map<String, Object> values = new HashMap<>();
+					for (int j = 199; j >= 0; j--) {
+						values.put("Q" + j, scope.get("Q" + j));
+					}
+					values.putAll(scope.toMap());
+					return values;
+				}));
+			}
+			start.countDown();
+			Map<String, Object> first = results.get(0).get();
+			for (Future<Map<String, Object>> result : results) {
+				Map<String, Object> values = result.get();
+				for (int j = 0; j < 200; j++) {
+					Assert.assertSame(first.get("P" + j), values.get("P" + j));
+					Assert.assertSame(first.get("Q" + j), values.get("Q" + j));
+				}
+				Assert.assertEquals(String.valueOf(expected.get("DB.JDBC_URL")), String.valueOf(values.get("DB.JDBC_URL")));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelToMap() throws IOException {
+		PdlParser parser = parseFixtures("ex2.pdl");
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			text.append("N" + i + " = " + (i > 1 ? "N" + (i - 1) + " + N" + (i / 2) : "1") + "\n");
+			text.append("if (N" + i + " > 3) { S" + i + " = { A = N" + i + ", B = APP_ID } }\n");
+		}
+		parser.parse(new StringReader(text.toString()), "in");
+		Map<String, Object> expected = parser.getResult().toMap();
+		Assert.assertEquals(expected, parser.getResult().toMap(ForkJoinPool.commonPool()));
+		PdlScope scope = parser.getResult();
+		scope.evaluateAll(ForkJoinPool.commonPool());
+		Assert.assertEquals(expected.get("N499"), scope.get("N499"));
+	}
+
+	@Test(expected = PdlEvalException.class)
+	public void testParallelCircular() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 1\nB = A + C\nC = B\nD = C"), "in");
+		parser.getResult().toMap(ForkJoinPool.commonPool());
+	}
+
 }
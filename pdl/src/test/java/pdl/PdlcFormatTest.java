@@ -0,0 +1,104 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PdlcFormatTest extends PdlScopeTestFixture {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		PdlParser parser = parseFixtures("arith.pdl", "calls.pdl", "t1.pdl");
+		parser.parse(new StringReader("DB_TYPE = 'oracle'"), "input");
+		PdlParser loaded = roundTrip(parser);
+		Assert.assertEquals(parser.getAssignments().keySet(), loaded.getAssignments().keySet());
+		Assert.assertEquals(String.valueOf(parser.getResult().toMap()), String.valueOf(loaded.getResult().toMap()));
+		PdlConditionalAssignment url = loaded.getAssignments().get("LC_DB_URL").getConditionalAssignments().get(0);
+		Assert.assertEquals("t1.pdl", url.getSource());
+		Assert.assertEquals(22, url.getLine());
+	}
+
+	@Test
+	public void testSharedConditions() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("if (A) { if (B) { X = 1 Y = 2 } }"), "in");
+		PdlParser loaded = roundTrip(parser);
+		List<PdlExpressionNode> x = loaded.getAssignments().get("X").getConditionalAssignments().get(0).getConditions();
+		List<PdlExpressionNode> y = loaded.getAssignments().get("Y").getConditionalAssignments().get(0).getConditions();
+		Assert.assertEquals(2, x.size());
+		Assert.assertSame(x.get(0), y.get(0));
+		Assert.assertSame(x.get(1), y.get(1));
+		try {
+			x.remove(0);
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		Assert.assertSame(loaded.getAssignments().get("X").getConditionalAssignments().get(0).getBlock(),
+				loaded.getAssignments().get("Y").getConditionalAssignments().get(0).getBlock());
+	}
+
+	@Test
+	public void testLoadAfterParse() throws IOException {
+		PdlParser override = new PdlParser();
+		override.parse(new StringReader("NEW_PORT = 1999\nDB += { port = NEW_PORT }"), "override");
+		PdlParser parser = parseFixtures("ex2.pdl");
+		parser.load(toBytes(override));
+		Assert.assertEquals("jdbc:oracle:thin:@oracledev-ex2.example.com:1999/dev",
+				parser.getResult().toMap().get("DB.JDBC_URL"));
+	}
+
+	private ByteArrayInputStream toBytes(PdlParser parser) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		parser.write(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	private PdlParser roundTrip(PdlParser parser) throws IOException {
+		PdlParser loaded = new PdlParser();
+		loaded.load(toBytes(parser));
+		return loaded;
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("if (A) { X = 1 Y = X + X }"), "in");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		parser.write(out);
+		byte[] bytes = out.toByteArray();
+		// back references and everything else out of range fail as IOExceptions
+		for (int i = 4; i < bytes.length; i++) {
+			byte[] corrupt = bytes.clone();
+			corrupt[i] = 0x7f;
+			try {
+				new PdlParser().load(new ByteArrayInputStream(corrupt));
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotPdlc() throws IOException {
+		new PdlParser().load(new ByteArrayInputStream("X = 5".getBytes()));
+	}
+
+}
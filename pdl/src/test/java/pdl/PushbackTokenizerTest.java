@@ -15,6 +15,8 @@
 package pdl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -40,4 +42,34 @@ public class PushbackTokenizerTest {
 
 	}
 
+	@Test
+	public void testValues() throws IOException {
+		PushbackTokenizer tokenizer = new PushbackTokenizer(
+				new Tokenizer(ByteBuffer.wrap("in inx 0b101 'caf\u00e9'".getBytes(StandardCharsets.UTF_8))));
+		Assert.assertEquals(Tokenizer.ID, tokenizer.nextToken());
+		Assert.assertTrue(tokenizer.isIdentifier("in"));
+		Assert.assertFalse(tokenizer.isIdentifier("inx"));
+		tokenizer.nextToken();
+		Assert.assertFalse(tokenizer.isIdentifier("in"));
+		Assert.assertTrue(tokenizer.isIdentifier("inx"));
+		Assert.assertEquals(Tokenizer.NUMBER, tokenizer.nextToken());
+		Assert.assertEquals("0x5", tokenizer.getTokenValue());
+		Assert.assertFalse(tokenizer.isIdentifier("0x5"));
+		Assert.assertEquals(Tokenizer.STRING, tokenizer.nextToken());
+		Assert.assertEquals(Tokenizer.EOF, tokenizer.nextToken());
+		tokenizer.pushback();
+		tokenizer.pushback();
+		Assert.assertEquals("0x5", tokenizer.getTokenValue());
+		tokenizer.nextToken();
+		Assert.assertEquals("caf\u00e9", tokenizer.getTokenValue());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPushbackPastStart() throws IOException {
+		PushbackTokenizer tokenizer = new PushbackTokenizer(TokenizerTest.createTokenizer("a b"));
+		tokenizer.nextToken();
+		tokenizer.pushback();
+		tokenizer.pushback();
+	}
+
 }
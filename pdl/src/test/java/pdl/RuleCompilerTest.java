@@ -0,0 +1,125 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package pdl;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RuleCompilerTest extends PdlScopeTestFixture {
+
+	private void assertCompiled(PdlParser parser) {
+		PdlScope interpreted = parser.getResult();
+		interpreted.setInterpreted(true);
+		String expected = String.valueOf(interpreted.toMap());
+		parser.compile();
+		PdlScope compiled = parser.getResult();
+		Assert.assertNotNull(compiled.getRuleSet());
+		Assert.assertEquals(expected, String.valueOf(compiled.toMap()));
+	}
+
+	@Test
+	public void testFixtures() throws IOException {
+		assertCompiled(parseFixtures("arith.pdl"));
+		assertCompiled(parseFixtures("calls.pdl"));
+		assertCompiled(parseFixtures("maps.pdl"));
+		assertCompiled(parseFixtures("ex2.pdl"));
+		assertCompiled(parseFixtures("t1.pdl"));
+	}
+
+	@Test
+	public void testRules() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("ENV = 'prod'\nA = 0\nB = 'b'\nX = 1\nX += 2\n"
+				+ "if (ENV == 'prod') { X += 3 Y := 'first' }\nY := 'second'\nY = 'base'\n"
+				+ "Z = A || B\nW = A && B.missing()\nL = [A, B] + ({ c: X })\nS = ({ A, B })[0]\n"
+				+ "P = { a = X, b = a + 1 }\nP += { c = b * 2 }\nQ = P\nQ += { a = 10 }\n"
+				+ "N = new StringBuilder(B).append(!A).toString()\nR = P.c"), "in");
+		assertCompiled(parser);
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("6", String.valueOf(scope.get("X")));
+		Assert.assertEquals("first", scope.get("Y"));
+		Assert.assertEquals("btrue", scope.get("N"));
+		Assert.assertEquals("14", String.valueOf(scope.toMap().get("P.c")));
+		Assert.assertEquals("22", String.valueOf(scope.toMap().get("Q.c")));
+	}
+
+	@Test
+	public void testShadowedRules() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("A = 'a'\nX = A.missing()\nif (A.missing()) { X = 1 }\nX = 2\nX += 3\n"
+				+ "if (A == 'b') { X = 4 }\nY = A.missing()\nif (A == 'a') { Y := 5 }\nY := A.missing()\n"
+				+ "if (A == 'b') { Z := 1 }\nZ := { p = 1 }\nZ := { q = 2 }\nZ += 7"), "in");
+		assertCompiled(parser);
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("5", String.valueOf(scope.get("X")));
+		Assert.assertEquals("5", String.valueOf(scope.get("Y")));
+		Assert.assertEquals("1", String.valueOf(scope.toMap().get("Z.p")));
+		Assert.assertNull(scope.toMap().get("Z.q"));
+	}
+
+	@Test
+	public void testManyRules() throws IOException {
+		StringBuilder s = new StringBuilder("X = 1\n");
+		for (int i = 0; i < 600; i++) {
+			s.append("if (X == ").append(i % 3).append(") { Y ").append(i % 5 == 0 ? "=" : "+=").append(" ").append(i)
+					.append(" }\n");
+		}
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(s.toString()), "in");
+		assertCompiled(parser);
+	}
+
+	@Test
+	public void testLarge() throws IOException {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			s.append("P").append(i).append(" = ").append(i).append(" + X\n");
+		}
+		s.append("X = 1\n");
+		for (int i = 0; i < 5000; i++) {
+			s.append("if (X == ").append(i).append(") { BIG += [").append(i).append("] }\n");
+		}
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader(s.toString()), "in");
+		assertCompiled(parser);
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("2999", String.valueOf(scope.get("P2998")));
+		Assert.assertEquals("[1]", String.valueOf(scope.get("BIG")));
+	}
+
+	@Test
+	public void testReparseDiscards() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("X = 1"), "in");
+		parser.compile();
+		Assert.assertNotNull(parser.getResult().getRuleSet());
+		parser.parse(new StringReader("X = 2"), "more");
+		Assert.assertNull(parser.getResult().getRuleSet());
+		Assert.assertEquals("2", String.valueOf(parser.getResult().get("X")));
+	}
+
+	@Test
+	public void testExplain() throws IOException {
+		PdlDiag diag = new PdlDiag();
+		diag.parse(new StringReader("A = 1\nif (A == 1) { B = A + 1 }"), "in");
+		diag.compile();
+		Assert.assertEquals("2", String.valueOf(diag.getResult().get("B")));
+		Assert.assertTrue(diag.explain("B"), diag.explain("B").contains("in:2"));
+	}
+
+}
@@ -17,13 +17,22 @@ package pdl;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import pdl.SourceMap;
 
 public class SourceMapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
 	
 	@Test
 	public void testSourceMapReader() throws IOException {
@@ -35,4 +44,54 @@ public class SourceMapTest {
 		Assert.assertArrayEquals(expected, cbuf);
 	}
 
+	@Test
+	public void testGetLine() throws IOException {
+		SourceMap m = new SourceMap();
+		String chars = new String("chars");
+		m.ingest(new StringReader("ab\r\n\ncde\n"), chars);
+		String bytes = new String("bytes");
+		m.ingest(ByteBuffer.wrap("x = '\u00e9'\ny".getBytes(StandardCharsets.UTF_8)), bytes);
+		Assert.assertEquals("ab", m.getLine(chars, 1));
+		Assert.assertEquals("", m.getLine(chars, 2));
+		Assert.assertEquals("cde", m.getLine(chars, 3));
+		Assert.assertNull(m.getLine(chars, 4));
+		Assert.assertEquals("x = '\u00e9'", m.getLine(bytes, 1));
+		Assert.assertEquals("y", m.getLine(bytes, 2));
+		Assert.assertNull(m.getLine("bytes", 1));
+	}
+
+	@Test
+	public void testLazy() throws IOException {
+		SourceMap m = new SourceMap(true);
+		Path file = folder.newFile("lazy.pdl").toPath();
+		Files.write(file, "X = '\u00e9'\nY = 2\n".getBytes(StandardCharsets.UTF_8));
+		String mapped = new String(file.toString());
+		m.ingest(PdlParser.map(file), mapped);
+		String read = new String(file.toString());
+		m.ingest(Files.newBufferedReader(file), read);
+		String text = new String("text");
+		m.ingest(new StringReader("Z = 3"), text);
+		Assert.assertEquals("X = '\u00e9'", m.getLine(mapped, 1));
+		Assert.assertEquals("Y = 2", m.getLine(read, 2));
+		Assert.assertEquals("Z = 3", m.getLine(text, 1));
+		Files.write(file, "X = 'e'\nY = 2\n".getBytes(StandardCharsets.UTF_8));
+		Assert.assertNull(m.getLine(mapped, 2));
+		Assert.assertNull(m.getLine(read, 2));
+
+		// lines are read by themselves, at their offsets in the UTF-8 file
+		Path wide = folder.newFile("wide.pdl").toPath();
+		Files.write(wide, "A = '\u20ac\ud83d\ude00'\r\nB = '\u00e9'\r\n\r\nC = 3".getBytes(StandardCharsets.UTF_8));
+		String wideRead = new String(wide.toString());
+		m.ingest(Files.newBufferedReader(wide), wideRead);
+		String wideMapped = new String(wide.toString());
+		m.ingest(PdlParser.map(wide), wideMapped);
+		for (String name : new String[] { wideRead, wideMapped }) {
+			Assert.assertEquals("A = '\u20ac\ud83d\ude00'", m.getLine(name, 1));
+			Assert.assertEquals("B = '\u00e9'", m.getLine(name, 2));
+			Assert.assertEquals("", m.getLine(name, 3));
+			Assert.assertEquals("C = 3", m.getLine(name, 4));
+			Assert.assertNull(m.getLine(name, 5));
+		}
+	}
+
 }
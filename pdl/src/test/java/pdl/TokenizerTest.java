@@ -16,6 +16,7 @@ package pdl;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -65,6 +66,49 @@ public class TokenizerTest {
 				new String[] { "x", null, "5", "z", null, "9" });
 	}
 
+	@Test
+	public void testBufferGrowth() throws IOException {
+		// values straddle buffer refills
+		Tokenizer tokenizer = new Tokenizer(new StringReader("greeting = 'hello, world'\nn = 12345.5"), new char[4]);
+		assertTokenValues(tokenizer,
+				new int[] { Tokenizer.ID, '=', Tokenizer.STRING, Tokenizer.ID, '=', Tokenizer.NUMBER },
+				new String[] { "greeting", null, "hello, world", "n", null, "12345.5" });
+		Assert.assertEquals(2, tokenizer.getLine());
+	}
+
+	@Test
+	public void testContent() throws IOException {
+		char[] content = "xx a = \"\"\"b\nc\"\"\" xx".toCharArray();
+		Tokenizer tokenizer = new Tokenizer(content, 3, content.length - 6);
+		assertTokenValues(tokenizer, new int[] { Tokenizer.ID, '=', Tokenizer.STRING },
+				new String[] { "a", null, "b\nc" });
+	}
+
+	@Test
+	public void testBufferReuse() throws IOException {
+		char[] buffer = new char[16];
+		Tokenizer tokenizer = new Tokenizer(new StringReader("a = 'b'"), buffer);
+		assertTokenValues(tokenizer, new int[] { Tokenizer.ID, '=', Tokenizer.STRING }, new String[] { "a", null, "b" });
+		Assert.assertSame(buffer, tokenizer.getBuffer());
+		// a buffer grown for one long value isn't kept
+		char[] value = new char[100_000];
+		Arrays.fill(value, 'x');
+		tokenizer = new Tokenizer(new StringReader("a = '" + new String(value) + "'"), buffer);
+		assertTokenValues(tokenizer, new int[] { Tokenizer.ID, '=', Tokenizer.STRING },
+				new String[] { "a", null, new String(value) });
+		Assert.assertNull(tokenizer.getBuffer());
+	}
+
+	@Test
+	public void testLineAndColumn() throws IOException {
+		Tokenizer tokenizer = createTokenizer("a\n  bc = 1");
+		tokenizer.nextToken();
+		Assert.assertEquals(1, tokenizer.getLine());
+		tokenizer.nextToken();
+		Assert.assertEquals(2, tokenizer.getLine());
+		Assert.assertEquals(5, tokenizer.getColumn());
+	}
+
 	private void assertNextTokenValue(Tokenizer tokenizer, int token, String value) throws IOException {
 		Assert.assertEquals(token, tokenizer.nextToken());
 		Assert.assertEquals(token, tokenizer.getToken());
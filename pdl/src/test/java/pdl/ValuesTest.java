@@ -0,0 +1,73 @@
+// Copyright 2019 Sam Shen
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package pdl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ValuesTest {
+
+	@Test
+	public void testListValue() {
+		ListValue a = ListValue.of(new Object[] { 1, 2 });
+		ListValue b = a.plus(3);
+		ListValue c = a.plus(Arrays.asList(4, 5));
+		ListValue d = b.plus(6).plus(7);
+		Assert.assertEquals(Arrays.asList(1, 2), a);
+		Assert.assertEquals(Arrays.asList(1, 2, 3), b);
+		Assert.assertEquals(Arrays.asList(1, 2, 4, 5), c);
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 6, 7), d);
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 8), b.plus(8));
+		Assert.assertSame(a, a.plus(Collections.emptyList()));
+		Assert.assertEquals(Arrays.asList(1), ListValue.EMPTY.plus(1));
+		ListValue e = ListValue.EMPTY;
+		for (int i = 0; i < 100; i++) {
+			e = e.plus(i);
+		}
+		Assert.assertEquals(100, e.size());
+		Assert.assertEquals(99, e.get(99));
+		try {
+			b.add(4);
+			Assert.fail();
+		} catch (UnsupportedOperationException ex) {
+		}
+	}
+
+	@Test
+	public void testScope() throws IOException {
+		PdlParser parser = new PdlParser();
+		parser.parse(new StringReader("L = [1]\nL += 2\nL += [3]\nA = L + 4\nB = L + 5\n"
+				+ "S = ({ 1, 2 })\nS += 2\nS += 3\nM = ({ a: 1, b: 2 })\nN = M + ({ c: 3 })\nO = M - 'a'\n"
+				+ "T = { a = 1 }\nD = T\nD += { b = 2 }\nTB = T.b\nDB = D.b"), "in");
+		PdlScope scope = parser.getResult();
+		Assert.assertEquals("[1, 2, 3]", String.valueOf(scope.get("L")));
+		Assert.assertEquals("[1, 2, 3, 4]", String.valueOf(scope.get("A")));
+		Assert.assertEquals("[1, 2, 3, 5]", String.valueOf(scope.get("B")));
+		Assert.assertSame(scope.get("L"), scope.get("L"));
+		Assert.assertEquals("[1, 2, 3]", String.valueOf(scope.get("S")));
+		Assert.assertEquals("{a=1, b=2}", String.valueOf(scope.get("M")));
+		Assert.assertEquals("{a=1, b=2, c=3}", String.valueOf(scope.get("N")));
+		Assert.assertEquals("{b=2}", String.valueOf(scope.get("O")));
+		Assert.assertNull(scope.get("TB"));
+		Assert.assertEquals("2", scope.get("DB"));
+	}
+
+}